@@ -0,0 +1,190 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// https://developers.google.com/protocol-buffers/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import com.google.protobuf.benchmarks.CodedStreamBenchmarkProto.Leaf;
+import com.google.protobuf.benchmarks.CodedStreamBenchmarkProto.Node;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Deterministic input values shared by the {@link CodedInputStream} and {@link CodedOutputStream}
+ * benchmarks, together with the routines that encode them. Every payload is a sequence of fields
+ * numbered {@link #FIELD_NUMBER}, so the decoders can consume it with a plain {@code readTag()}
+ * loop.
+ */
+final class BenchmarkData {
+  static final int FIELD_NUMBER = 1;
+
+  /** The number of values in each payload. */
+  static final int VALUE_COUNT = 1024;
+
+  /** The shapes of data exercised by the benchmarks. */
+  enum Kind {
+    VARINT,
+    FIXED,
+    STRING,
+    MESSAGE,
+    PACKED
+  }
+
+  final int[] varints = new int[VALUE_COUNT];
+  final long[] fixed64s = new long[VALUE_COUNT];
+  final String[] strings = new String[VALUE_COUNT];
+  final Node[] messages = new Node[VALUE_COUNT / 16];
+
+  BenchmarkData() {
+    Random random = new Random(0x5eed);
+    for (int i = 0; i < VALUE_COUNT; i++) {
+      // Spread the values over all varint widths, including negative ten-byte encodings.
+      varints[i] = random.nextInt() >> random.nextInt(32);
+      fixed64s[i] = random.nextLong();
+      strings[i] = randomString(random, (i % 8 == 0) /* includeNonAscii */);
+    }
+    for (int i = 0; i < messages.length; i++) {
+      messages[i] = randomNode(random, 3 /* depth */);
+    }
+  }
+
+  private static String randomString(Random random, boolean includeNonAscii) {
+    int length = 8 + random.nextInt(56);
+    StringBuilder builder = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      if (includeNonAscii && i % 4 == 0) {
+        // Alternate between two- and three-byte UTF-8 sequences.
+        builder.append(random.nextBoolean() ? '\u00e9' : '\u4e2d');
+      } else {
+        builder.append((char) ('a' + random.nextInt(26)));
+      }
+    }
+    return builder.toString();
+  }
+
+  private static Node randomNode(Random random, int depth) {
+    Node.Builder builder =
+        Node.newBuilder().setId(random.nextLong()).setLabel(randomString(random, false));
+    for (int i = 0; i < 8; i++) {
+      builder.addValues(random.nextInt() >> random.nextInt(32));
+    }
+    for (int i = 0; i < 4; i++) {
+      builder.addLeaves(
+          Leaf.newBuilder()
+              .setId(random.nextInt(1 << 20))
+              .setTimestamp(random.nextLong())
+              .setName(randomString(random, false)));
+    }
+    if (depth > 0) {
+      builder.setChild(randomNode(random, depth - 1));
+    }
+    return builder.build();
+  }
+
+  /** Writes the payload of the given kind to {@code output}. Does not flush. */
+  void write(Kind kind, CodedOutputStream output) throws IOException {
+    switch (kind) {
+      case VARINT:
+        for (int value : varints) {
+          output.writeInt32(FIELD_NUMBER, value);
+        }
+        return;
+      case FIXED:
+        for (long value : fixed64s) {
+          output.writeFixed64(FIELD_NUMBER, value);
+        }
+        return;
+      case STRING:
+        for (String value : strings) {
+          output.writeString(FIELD_NUMBER, value);
+        }
+        return;
+      case MESSAGE:
+        for (Node value : messages) {
+          output.writeMessage(FIELD_NUMBER, value);
+        }
+        return;
+      case PACKED:
+        output.writeTag(FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        output.writeUInt32NoTag(packedDataSize());
+        for (int value : varints) {
+          output.writeInt32NoTag(value);
+        }
+        return;
+    }
+    throw new AssertionError(kind);
+  }
+
+  /** Returns the encoded form of the payload of the given kind. */
+  byte[] encode(Kind kind) throws IOException {
+    byte[] result = new byte[encodedSize(kind)];
+    CodedOutputStream output = CodedOutputStream.newInstance(result);
+    write(kind, output);
+    output.checkNoSpaceLeft();
+    return result;
+  }
+
+  /** Returns the exact number of bytes {@link #write} produces for the given kind. */
+  int encodedSize(Kind kind) {
+    int size = 0;
+    switch (kind) {
+      case VARINT:
+        for (int value : varints) {
+          size += CodedOutputStream.computeInt32Size(FIELD_NUMBER, value);
+        }
+        return size;
+      case FIXED:
+        return fixed64s.length * CodedOutputStream.computeFixed64Size(FIELD_NUMBER, 0L);
+      case STRING:
+        for (String value : strings) {
+          size += CodedOutputStream.computeStringSize(FIELD_NUMBER, value);
+        }
+        return size;
+      case MESSAGE:
+        for (Node value : messages) {
+          size += CodedOutputStream.computeMessageSize(FIELD_NUMBER, value);
+        }
+        return size;
+      case PACKED:
+        int dataSize = packedDataSize();
+        return CodedOutputStream.computeTagSize(FIELD_NUMBER)
+            + CodedOutputStream.computeUInt32SizeNoTag(dataSize)
+            + dataSize;
+    }
+    throw new AssertionError(kind);
+  }
+
+  private int packedDataSize() {
+    int size = 0;
+    for (int value : varints) {
+      size += CodedOutputStream.computeInt32SizeNoTag(value);
+    }
+    return size;
+  }
+}
@@ -0,0 +1,189 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// https://developers.google.com/protocol-buffers/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import com.google.protobuf.BenchmarkData.Kind;
+import com.google.protobuf.benchmarks.CodedStreamBenchmarkProto.Node;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures each {@link CodedInputStream} implementation decoding the {@link BenchmarkData}
+ * payloads. Every invocation creates a fresh decoder, so per-instance allocation (such as the
+ * {@code StreamDecoder} buffer) is part of the measurement and shows up under the GC profiler.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodedInputStreamBenchmark {
+
+  /** The decoder implementations, named after the classes they select. */
+  public enum DecoderType {
+    ARRAY,
+    /** Falls back to {@code ArrayDecoder} over a copy when Unsafe is unavailable. */
+    UNSAFE_DIRECT_NIO,
+    STREAM,
+    /** Falls back to {@code StreamDecoder} when Unsafe is unavailable. */
+    ITERABLE_DIRECT_BYTE_BUFFER
+  }
+
+  /** Direct buffers handed to the iterable decoder are split into chunks of this size. */
+  private static final int CHUNK_SIZE = 4096;
+
+  @Param
+  public DecoderType decoderType;
+
+  private final Payloads payloads = new Payloads();
+
+  @Setup
+  public void setUp() throws IOException {
+    BenchmarkData data = new BenchmarkData();
+    for (Kind kind : Kind.values()) {
+      payloads.put(kind, data.encode(kind));
+    }
+  }
+
+  @Benchmark
+  public void varints(Blackhole blackhole) throws IOException {
+    CodedInputStream input = newDecoder(Kind.VARINT);
+    while (input.readTag() != 0) {
+      blackhole.consume(input.readInt32());
+    }
+  }
+
+  @Benchmark
+  public void fixed64s(Blackhole blackhole) throws IOException {
+    CodedInputStream input = newDecoder(Kind.FIXED);
+    while (input.readTag() != 0) {
+      blackhole.consume(input.readFixed64());
+    }
+  }
+
+  @Benchmark
+  public void strings(Blackhole blackhole) throws IOException {
+    CodedInputStream input = newDecoder(Kind.STRING);
+    while (input.readTag() != 0) {
+      blackhole.consume(input.readStringRequireUtf8());
+    }
+  }
+
+  @Benchmark
+  public void messages(Blackhole blackhole) throws IOException {
+    CodedInputStream input = newDecoder(Kind.MESSAGE);
+    ExtensionRegistryLite registry = ExtensionRegistryLite.getEmptyRegistry();
+    while (input.readTag() != 0) {
+      blackhole.consume(input.readMessage(Node.parser(), registry));
+    }
+  }
+
+  @Benchmark
+  public void packedVarints(Blackhole blackhole) throws IOException {
+    CodedInputStream input = newDecoder(Kind.PACKED);
+    while (input.readTag() != 0) {
+      int oldLimit = input.pushLimit(input.readRawVarint32());
+      while (input.getBytesUntilLimit() > 0) {
+        blackhole.consume(input.readInt32());
+      }
+      input.popLimit(oldLimit);
+    }
+  }
+
+  private CodedInputStream newDecoder(Kind kind) {
+    switch (decoderType) {
+      case ARRAY:
+        return CodedInputStream.newInstance(payloads.heap(kind));
+      case UNSAFE_DIRECT_NIO:
+        return CodedInputStream.newInstance(payloads.direct(kind));
+      case STREAM:
+        return CodedInputStream.newInstance(new ByteArrayInputStream(payloads.heap(kind)));
+      case ITERABLE_DIRECT_BYTE_BUFFER:
+        return CodedInputStream.newInstance(payloads.directChunks(kind));
+    }
+    throw new AssertionError(decoderType);
+  }
+
+  /** The encoded payloads for every {@link Kind}, in each of the layouts the decoders accept. */
+  private static final class Payloads {
+    private final EnumMap<Kind, byte[]> heap = new EnumMap<Kind, byte[]>(Kind.class);
+    private final EnumMap<Kind, ByteBuffer> direct = new EnumMap<Kind, ByteBuffer>(Kind.class);
+    private final EnumMap<Kind, List<ByteBuffer>> directChunks =
+        new EnumMap<Kind, List<ByteBuffer>>(Kind.class);
+
+    void put(Kind kind, byte[] bytes) {
+      heap.put(kind, bytes);
+      direct.put(kind, toDirect(bytes, 0, bytes.length));
+      List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+      for (int offset = 0; offset < bytes.length; offset += CHUNK_SIZE) {
+        chunks.add(toDirect(bytes, offset, Math.min(CHUNK_SIZE, bytes.length - offset)));
+      }
+      directChunks.put(kind, chunks);
+    }
+
+    byte[] heap(Kind kind) {
+      return heap.get(kind);
+    }
+
+    ByteBuffer direct(Kind kind) {
+      return direct.get(kind);
+    }
+
+    List<ByteBuffer> directChunks(Kind kind) {
+      return directChunks.get(kind);
+    }
+
+    private static ByteBuffer toDirect(byte[] bytes, int offset, int length) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+      buffer.put(bytes, offset, length);
+      buffer.flip();
+      return buffer;
+    }
+  }
+}
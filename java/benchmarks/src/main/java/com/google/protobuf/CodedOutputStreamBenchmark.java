@@ -0,0 +1,189 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// https://developers.google.com/protocol-buffers/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import com.google.protobuf.BenchmarkData.Kind;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures each {@link CodedOutputStream} implementation encoding the {@link BenchmarkData}
+ * payloads. The destination buffers and sinks are reused across invocations; the encoder itself
+ * is created per invocation, as it would be for each serialized message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodedOutputStreamBenchmark {
+
+  /** The encoder implementations, named after the classes they select. */
+  public enum EncoderType {
+    ARRAY,
+    SAFE_DIRECT_NIO,
+    /** Only meaningful when {@link UnsafeUtil#hasUnsafeByteBufferOperations()} is true. */
+    UNSAFE_DIRECT_NIO,
+    BYTE_OUTPUT,
+    OUTPUT_STREAM
+  }
+
+  private static final int BUFFER_SIZE = 4096;
+
+  @Param
+  public EncoderType encoderType;
+
+  private BenchmarkData data;
+  private byte[] array;
+  private ByteBuffer directBuffer;
+  private final CountingByteOutput byteOutput = new CountingByteOutput();
+  private final CountingOutputStream outputStream = new CountingOutputStream();
+
+  @Setup
+  public void setUp() {
+    data = new BenchmarkData();
+    int maxSize = 0;
+    for (Kind kind : Kind.values()) {
+      maxSize = Math.max(maxSize, data.encodedSize(kind));
+    }
+    array = new byte[maxSize];
+    directBuffer = ByteBuffer.allocateDirect(maxSize);
+  }
+
+  @Benchmark
+  public long varints() throws IOException {
+    return encode(Kind.VARINT);
+  }
+
+  @Benchmark
+  public long fixed64s() throws IOException {
+    return encode(Kind.FIXED);
+  }
+
+  @Benchmark
+  public long strings() throws IOException {
+    return encode(Kind.STRING);
+  }
+
+  @Benchmark
+  public long messages() throws IOException {
+    return encode(Kind.MESSAGE);
+  }
+
+  @Benchmark
+  public long packedVarints() throws IOException {
+    return encode(Kind.PACKED);
+  }
+
+  private long encode(Kind kind) throws IOException {
+    CodedOutputStream output = newEncoder();
+    data.write(kind, output);
+    output.flush();
+    return output.getTotalBytesWritten();
+  }
+
+  private CodedOutputStream newEncoder() {
+    switch (encoderType) {
+      case ARRAY:
+        return CodedOutputStream.newInstance(array);
+      case SAFE_DIRECT_NIO:
+        directBuffer.clear();
+        return CodedOutputStream.newSafeInstance(directBuffer);
+      case UNSAFE_DIRECT_NIO:
+        directBuffer.clear();
+        return CodedOutputStream.newUnsafeInstance(directBuffer);
+      case BYTE_OUTPUT:
+        return CodedOutputStream.newInstance(byteOutput, BUFFER_SIZE);
+      case OUTPUT_STREAM:
+        return CodedOutputStream.newInstance(outputStream, BUFFER_SIZE);
+    }
+    throw new AssertionError(encoderType);
+  }
+
+  /** A {@link ByteOutput} that only counts what it is given, so the sink costs nothing. */
+  private static final class CountingByteOutput extends ByteOutput {
+    long count;
+
+    @Override
+    public void write(byte value) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] value, int offset, int length) {
+      count += length;
+    }
+
+    @Override
+    public void writeLazy(byte[] value, int offset, int length) {
+      count += length;
+    }
+
+    @Override
+    public void write(ByteBuffer value) {
+      count += value.remaining();
+    }
+
+    @Override
+    public void writeLazy(ByteBuffer value) {
+      count += value.remaining();
+    }
+  }
+
+  /** An {@link OutputStream} that only counts what it is given, so the sink costs nothing. */
+  private static final class CountingOutputStream extends OutputStream {
+    long count;
+
+    @Override
+    public void write(int value) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] value, int offset, int length) {
+      count += length;
+    }
+  }
+}
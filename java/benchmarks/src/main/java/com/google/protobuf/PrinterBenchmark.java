@@ -0,0 +1,156 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// https://developers.google.com/protocol-buffers/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.google.protobuf;
+
+import com.google.protobuf.benchmarks.CodedStreamBenchmarkProto.Node;
+import com.google.protobuf.util.JsonFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures printing the {@link BenchmarkData} messages as UTF-8 in the text and JSON formats:
+ * through a {@code String}, through an {@link OutputStreamWriter}, and with the byte-level
+ * {@code printTo} overloads of {@link TextFormat.Printer} and {@link JsonFormat.Printer}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PrinterBenchmark {
+
+  /** The format to print. */
+  public enum Format {
+    TEXT,
+    JSON
+  }
+
+  /** How the printed text reaches its bytes. */
+  public enum Target {
+    /** Print to a {@code String}, then encode it with {@link String#getBytes}. */
+    STRING,
+    /** Print through an {@link OutputStreamWriter} over the stream. */
+    WRITER,
+    /** {@code printTo(message, OutputStream)}. */
+    STREAM,
+    /** {@code printTo(message, ByteBuffer)}. */
+    BUFFER
+  }
+
+  @Param
+  public Format format;
+
+  @Param
+  public Target target;
+
+  private Node[] messages;
+  private TextFormat.Printer textPrinter;
+  private JsonFormat.Printer jsonPrinter;
+  private ByteArrayOutputStream stream;
+  private ByteBuffer buffer;
+
+  @Setup
+  public void setUp() throws IOException {
+    messages = new BenchmarkData().messages;
+    textPrinter = TextFormat.printer().escapingNonAscii(false);
+    jsonPrinter = JsonFormat.printer();
+    int size = 0;
+    for (Node message : messages) {
+      size += toString(message).getBytes(Internal.UTF_8).length;
+    }
+    stream = new ByteArrayOutputStream(size);
+    buffer = ByteBuffer.allocate(size);
+  }
+
+  @Benchmark
+  public int print() throws IOException {
+    stream.reset();
+    buffer.clear();
+    switch (target) {
+      case STRING:
+        for (Node message : messages) {
+          stream.write(toString(message).getBytes(Internal.UTF_8));
+        }
+        return stream.size();
+      case WRITER:
+        Writer writer = new OutputStreamWriter(stream, Internal.UTF_8);
+        for (Node message : messages) {
+          if (format == Format.TEXT) {
+            textPrinter.print(message, writer);
+          } else {
+            jsonPrinter.appendTo(message, writer);
+          }
+        }
+        writer.flush();
+        return stream.size();
+      case STREAM:
+        for (Node message : messages) {
+          if (format == Format.TEXT) {
+            textPrinter.printTo(message, stream);
+          } else {
+            jsonPrinter.printTo(message, stream);
+          }
+        }
+        return stream.size();
+      case BUFFER:
+        for (Node message : messages) {
+          if (format == Format.TEXT) {
+            textPrinter.printTo(message, buffer);
+          } else {
+            jsonPrinter.printTo(message, buffer);
+          }
+        }
+        return buffer.position();
+    }
+    throw new AssertionError(target);
+  }
+
+  private String toString(Node message) throws IOException {
+    return format == Format.TEXT ? textPrinter.printToString(message) : jsonPrinter.print(message);
+  }
+}
@@ -0,0 +1,130 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// https://developers.google.com/protocol-buffers/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.google.protobuf;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link Utf8} validation and decoding of a single long string, from both heap arrays
+ * and direct buffers. These are the routines behind {@link CodedInputStream#readStringRequireUtf8}
+ * and {@link ByteString#isValidUtf8}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Utf8Benchmark {
+
+  /** The shape of the text, from the cheapest to the most expensive to decode. */
+  public enum Text {
+    /** Identifiers, JSON and log lines. */
+    ASCII("{\"request_id\": 1234, \"path\": \"/v1/items/list\", \"status\": \"OK\"} "),
+    /** Mostly ASCII with occasional two-byte characters. */
+    LATIN("Quizdeltagerne spiste jordb\u00e6r med fl\u00f8de, mens cirkusklovnen "),
+    /** ASCII markup around three-byte characters, with runs of both kinds. */
+    MIXED("<p class=\"title\">\u8fd4\u56de\u94fe\u4e2d\u7684\u4e0b\u4e00\u4e2a</p> "),
+    /** Three-byte characters only. */
+    CJK("\u8fd4\u56de\u94fe\u4e2d\u7684\u4e0b\u4e00\u4e2a\u4ee3\u7406\u9879\u9009\u62e9\u5668");
+
+    final String sample;
+
+    Text(String sample) {
+      this.sample = sample;
+    }
+  }
+
+  /** Where the encoded text lives. */
+  public enum Layout {
+    HEAP,
+    DIRECT
+  }
+
+  /** The encoded text is the sample repeated up to at least this many bytes. */
+  private static final int MIN_SIZE = 4096;
+
+  @Param
+  public Text text;
+
+  @Param
+  public Layout layout;
+
+  private byte[] heap;
+  private ByteBuffer direct;
+
+  @Setup
+  public void setUp() {
+    StringBuilder builder = new StringBuilder();
+    while (builder.toString().getBytes(Internal.UTF_8).length < MIN_SIZE) {
+      builder.append(text.sample);
+    }
+    heap = builder.toString().getBytes(Internal.UTF_8);
+    direct = ByteBuffer.allocateDirect(heap.length);
+    direct.put(heap);
+    direct.flip();
+  }
+
+  @Benchmark
+  public boolean isValidUtf8() {
+    switch (layout) {
+      case HEAP:
+        return Utf8.isValidUtf8(heap);
+      case DIRECT:
+        return Utf8.isValidUtf8(direct);
+    }
+    throw new AssertionError(layout);
+  }
+
+  @Benchmark
+  public String decodeUtf8() throws InvalidProtocolBufferException {
+    switch (layout) {
+      case HEAP:
+        return Utf8.decodeUtf8(heap, 0, heap.length);
+      case DIRECT:
+        return Utf8.decodeUtf8(direct, 0, heap.length);
+    }
+    throw new AssertionError(layout);
+  }
+}
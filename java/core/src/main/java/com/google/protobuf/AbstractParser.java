@@ -101,7 +101,7 @@ public abstract class AbstractParser<MessageType extends MessageLite>
       throws InvalidProtocolBufferException {
     MessageType message;
     try {
-      CodedInputStream input = data.newCodedInput();
+      CodedInputStream input = newCodedInput(data);
       message = parsePartialFrom(input, extensionRegistry);
       try {
         input.checkLastTagWas(0);
@@ -135,7 +135,7 @@ public abstract class AbstractParser<MessageType extends MessageLite>
       throws InvalidProtocolBufferException {
     MessageType message;
     try {
-      CodedInputStream input = CodedInputStream.newInstance(data);
+      CodedInputStream input = newCodedInput(data);
       message = parsePartialFrom(input, extensionRegistry);
       try {
         input.checkLastTagWas(0);
@@ -159,7 +159,7 @@ public abstract class AbstractParser<MessageType extends MessageLite>
       byte[] data, int off, int len, ExtensionRegistryLite extensionRegistry)
       throws InvalidProtocolBufferException {
     try {
-      CodedInputStream input = CodedInputStream.newInstance(data, off, len);
+      CodedInputStream input = newCodedInput(data, off, len);
       MessageType message = parsePartialFrom(input, extensionRegistry);
       try {
         input.checkLastTagWas(0);
@@ -279,4 +279,38 @@ public abstract class AbstractParser<MessageType extends MessageLite>
   public MessageType parseDelimitedFrom(InputStream input) throws InvalidProtocolBufferException {
     return parseDelimitedFrom(input, EMPTY_REGISTRY);
   }
+
+  /**
+   * Returns a parser for the same message type whose messages alias the input instead of copying
+   * from it. When parsing a {@code byte[]}, {@link ByteBuffer} or {@link ByteString}, every
+   * {@code bytes} field, and every string field the message keeps as a {@link ByteString} until
+   * its first {@code getXxx()} call, becomes a view into the input, including direct buffers.
+   *
+   * <p>The caller must not modify the input for as long as any message parsed from it is in use.
+   * Parsing from an {@link InputStream} or a caller-supplied {@link CodedInputStream} is
+   * unaffected.
+   */
+  @ExperimentalApi
+  public static <MessageType extends MessageLite> Parser<MessageType> aliasing(
+      Parser<MessageType> parser) {
+    if (parser instanceof AliasingParser) {
+      return parser;
+    }
+    return new AliasingParser<MessageType>(parser);
+  }
+
+  /** Creates the stream that {@link #parseFrom(ByteString)} and friends read from. */
+  CodedInputStream newCodedInput(ByteString data) {
+    return data.newCodedInput();
+  }
+
+  /** Creates the stream that {@link #parseFrom(ByteBuffer)} and friends read from. */
+  CodedInputStream newCodedInput(ByteBuffer data) {
+    return CodedInputStream.newInstance(data);
+  }
+
+  /** Creates the stream that {@link #parseFrom(byte[])} and friends read from. */
+  CodedInputStream newCodedInput(byte[] data, int off, int len) {
+    return CodedInputStream.newInstance(data, off, len);
+  }
 }
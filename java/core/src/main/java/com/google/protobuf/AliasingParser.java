@@ -0,0 +1,75 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// https://developers.google.com/protocol-buffers/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A parser that creates its input streams with aliasing enabled, so that {@code bytes} fields of
+ * the parsed messages are views into the input. See {@link AbstractParser#aliasing(Parser)}.
+ */
+final class AliasingParser<MessageType extends MessageLite> extends AbstractParser<MessageType> {
+  private final Parser<MessageType> delegate;
+
+  AliasingParser(Parser<MessageType> delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public MessageType parsePartialFrom(
+      CodedInputStream input, ExtensionRegistryLite extensionRegistry)
+      throws InvalidProtocolBufferException {
+    return delegate.parsePartialFrom(input, extensionRegistry);
+  }
+
+  @Override
+  CodedInputStream newCodedInput(ByteString data) {
+    // Literal and NIO ByteStrings already create immutable streams.
+    CodedInputStream input = data.newCodedInput();
+    input.enableAliasing(true);
+    return input;
+  }
+
+  @Override
+  CodedInputStream newCodedInput(ByteBuffer data) {
+    CodedInputStream input = CodedInputStream.newInstance(data, true /* bufferIsImmutable */);
+    input.enableAliasing(true);
+    return input;
+  }
+
+  @Override
+  CodedInputStream newCodedInput(byte[] data, int off, int len) {
+    CodedInputStream input =
+        CodedInputStream.newInstance(data, off, len, true /* bufferIsImmutable */);
+    input.enableAliasing(true);
+    return input;
+  }
+}
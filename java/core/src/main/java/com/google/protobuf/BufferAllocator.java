@@ -0,0 +1,70 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// https://developers.google.com/protocol-buffers/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+/**
+ * Supplies the buffers a {@link CodedOutputStream} works in while it writes to an {@link
+ * java.io.OutputStream} or a {@link java.nio.channels.WritableByteChannel}, so that they can come
+ * from, and go back to, a pool. A stream borrows its buffers when it is created and returns them
+ * when {@link CodedOutputStream#release()} is called.
+ *
+ * <p>The default, {@link #unpooled()}, allocates a new buffer each time and leaves returned
+ * buffers to the garbage collector.
+ *
+ * <p>Implementations must be thread-safe if they are shared between threads.
+ */
+@ExperimentalApi
+public abstract class BufferAllocator {
+  private static final BufferAllocator UNPOOLED =
+      new BufferAllocator() {
+        @Override
+        public byte[] allocateHeapBuffer(int capacity) {
+          return new byte[capacity];
+        }
+      };
+
+  /** Returns an allocator that allocates a new buffer for every request. */
+  public static BufferAllocator unpooled() {
+    return UNPOOLED;
+  }
+
+  /**
+   * Returns an array of at least {@code capacity} bytes, all of which the caller may use until it
+   * returns the array to {@link #release(byte[])}.
+   */
+  public abstract byte[] allocateHeapBuffer(int capacity);
+
+  /**
+   * Takes back an array returned by {@link #allocateHeapBuffer(int)}, which the caller no longer
+   * uses. Does nothing by default.
+   */
+  public void release(byte[] buffer) {}
+}
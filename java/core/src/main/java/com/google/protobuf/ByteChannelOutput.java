@@ -0,0 +1,236 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// https://developers.google.com/protocol-buffers/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link ByteOutput} that writes to a {@link WritableByteChannel}, without copying large lazy
+ * writes. Small writes are copied into a scratch buffer; large lazy writes, such as the bytes of
+ * a {@link ByteString}, are queued as they are. {@link #flush()} then writes everything queued
+ * with a single gathering write when the channel supports it.
+ *
+ * <p>The channel must be in blocking mode.
+ */
+final class ByteChannelOutput extends ByteOutput {
+  /** Lazy writes at least this long are queued instead of copied. */
+  static final int MIN_LAZY_SEGMENT_SIZE = 1024;
+
+  /** The number of queued segments that triggers a flush, to bound the length of the queue. */
+  private static final int MAX_SEGMENTS = 256;
+
+  private final WritableByteChannel channel;
+  // Written to at its position; the bytes from scratchStart to there are not queued yet. Both
+  // are null once released, so that neither this output nor an encoder writing into the array
+  // can use an array the allocator may have handed out again.
+  private ByteBuffer scratch;
+  private byte[] allocated;
+  private int scratchStart;
+  private final List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+  // The allocator the scratch array was borrowed from, if any.
+  private final BufferAllocator allocator;
+
+  ByteChannelOutput(WritableByteChannel channel, int scratchSize) {
+    this(channel, new byte[Math.max(scratchSize, MIN_LAZY_SEGMENT_SIZE)], null);
+  }
+
+  /** Creates an output whose scratch array is borrowed from the allocator. */
+  ByteChannelOutput(WritableByteChannel channel, int scratchSize, BufferAllocator allocator) {
+    this(
+        channel,
+        allocator.allocateHeapBuffer(Math.max(scratchSize, MIN_LAZY_SEGMENT_SIZE)),
+        allocator);
+  }
+
+  private ByteChannelOutput(
+      WritableByteChannel channel, byte[] allocated, BufferAllocator allocator) {
+    if (channel == null) {
+      throw new NullPointerException("channel");
+    }
+    this.channel = channel;
+    this.scratch = ByteBuffer.wrap(allocated);
+    this.allocated = allocated;
+    this.allocator = allocator;
+  }
+
+  /**
+   * Returns the array behind the scratch buffer. An encoder can write into it directly, starting
+   * at {@link #scratchPosition()}, instead of having the bytes copied in; it then moves the
+   * position past them with {@link #setScratchPosition(int)} before calling any other method.
+   */
+  byte[] scratchArray() {
+    checkNotReleased();
+    return allocated;
+  }
+
+  /** Returns where the next byte goes in {@link #scratchArray()}. */
+  int scratchPosition() {
+    checkNotReleased();
+    return scratch.position();
+  }
+
+  /** Marks the bytes of {@link #scratchArray()} up to {@code position} as written. */
+  void setScratchPosition(int position) {
+    checkNotReleased();
+    scratch.position(position);
+  }
+
+  @Override
+  public void write(byte value) throws IOException {
+    checkNotReleased();
+    if (!scratch.hasRemaining()) {
+      flush();
+    }
+    scratch.put(value);
+  }
+
+  @Override
+  public void write(byte[] value, int offset, int length) throws IOException {
+    checkNotReleased();
+    if (length > scratch.remaining()) {
+      flush();
+      if (length > scratch.remaining()) {
+        // Too big to copy; write it before returning instead.
+        writeFully(new ByteBuffer[] {ByteBuffer.wrap(value, offset, length)});
+        return;
+      }
+    }
+    scratch.put(value, offset, length);
+  }
+
+  @Override
+  public void writeLazy(byte[] value, int offset, int length) throws IOException {
+    checkNotReleased();
+    if (length < MIN_LAZY_SEGMENT_SIZE) {
+      write(value, offset, length);
+    } else {
+      queue(ByteBuffer.wrap(value, offset, length));
+    }
+  }
+
+  @Override
+  public void write(ByteBuffer value) throws IOException {
+    checkNotReleased();
+    if (value.remaining() > scratch.remaining()) {
+      flush();
+      if (value.remaining() > scratch.remaining()) {
+        // Too big to copy; write it before returning instead.
+        writeFully(new ByteBuffer[] {value});
+        return;
+      }
+    }
+    scratch.put(value);
+  }
+
+  @Override
+  public void writeLazy(ByteBuffer value) throws IOException {
+    checkNotReleased();
+    if (value.remaining() < MIN_LAZY_SEGMENT_SIZE) {
+      write(value);
+    } else {
+      queue(value.slice());
+      value.position(value.limit());
+    }
+  }
+
+  /** Writes everything written so far to the channel. */
+  void flush() throws IOException {
+    checkNotReleased();
+    queueScratch();
+    if (!segments.isEmpty()) {
+      writeFully(segments.toArray(new ByteBuffer[segments.size()]));
+      segments.clear();
+    }
+    scratch.clear();
+    scratchStart = 0;
+  }
+
+  /** Gives the scratch array back to the allocator it came from, if any. */
+  void release() {
+    if (scratch != null) {
+      scratch = null;
+      segments.clear();
+      if (allocator != null) {
+        allocator.release(allocated);
+      }
+      allocated = null;
+    }
+  }
+
+  private void checkNotReleased() {
+    if (scratch == null) {
+      throw new IllegalStateException("ByteChannelOutput was released.");
+    }
+  }
+
+  private void queue(ByteBuffer segment) throws IOException {
+    queueScratch();
+    segments.add(segment);
+    if (segments.size() >= MAX_SEGMENTS) {
+      flush();
+    }
+  }
+
+  /** Queues the part of the scratch buffer written since it was last queued. */
+  private void queueScratch() {
+    if (scratch.position() > scratchStart) {
+      ByteBuffer segment = scratch.duplicate();
+      segment.flip();
+      segment.position(scratchStart);
+      segments.add(segment);
+      scratchStart = scratch.position();
+    }
+  }
+
+  private void writeFully(ByteBuffer[] buffers) throws IOException {
+    if (channel instanceof GatheringByteChannel) {
+      GatheringByteChannel gatheringChannel = (GatheringByteChannel) channel;
+      int first = 0;
+      while (first < buffers.length) {
+        gatheringChannel.write(buffers, first, buffers.length - first);
+        while (first < buffers.length && !buffers[first].hasRemaining()) {
+          first++;
+        }
+      }
+    } else {
+      for (ByteBuffer buffer : buffers) {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      }
+    }
+  }
+}
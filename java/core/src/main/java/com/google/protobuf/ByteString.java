@@ -32,20 +32,25 @@ package com.google.protobuf;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.UnsupportedCharsetException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -499,6 +504,49 @@ public abstract class ByteString implements Iterable<Byte>, Serializable {
       return ByteString.copyFrom(buf, 0, bytesRead);
   }
 
+  // =================================================================
+  // File -> ByteString
+
+  /**
+   * Maps a region of the given file into memory and returns it as a {@code ByteString}, without
+   * copying it onto the heap. Parsing from the returned {@code ByteString} reads the mapped memory
+   * directly, and so does writing it to a {@link CodedOutputStream}.
+   *
+   * <p>The file must not be changed while the {@code ByteString} is in use, or it will not be
+   * immutable any more. The region stays mapped until the returned {@code ByteString}, and every
+   * {@code ByteString} sliced from it, is garbage collected; it does not keep the file open.
+   *
+   * @param file the file to map
+   * @param offset the offset of the region in the file
+   * @param length the length of the region, at most {@link Integer#MAX_VALUE}
+   * @throws IllegalArgumentException if {@code offset} or {@code length} is negative or the
+   *     region is too large for a {@code ByteString}
+   * @throws IOException if the file cannot be opened or mapped, or ends before the region does
+   */
+  public static ByteString fromMappedFile(File file, long offset, long length)
+      throws IOException {
+    if (offset < 0 || length < 0 || length > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(
+          "Invalid region: offset " + offset + ", length " + length);
+    }
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = in.getChannel();
+      if (offset + length > channel.size()) {
+        throw new EOFException(
+            "Region ends at " + (offset + length) + ", past the end of " + file
+                + " (" + channel.size() + " bytes)");
+      }
+      if (length == 0) {
+        return EMPTY;
+      }
+      return new NioByteString(channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+    } finally {
+      // The mapping stays valid after the file is closed.
+      in.close();
+    }
+  }
+
   // =================================================================
   // Multiple ByteStrings -> One ByteString
 
@@ -861,6 +909,141 @@ public abstract class ByteString implements Iterable<Byte>, Serializable {
     return h;
   }
 
+  // =================================================================
+  // Comparison
+
+  private static final Comparator<ByteString> UNSIGNED_LEXICOGRAPHICAL_COMPARATOR =
+      new Comparator<ByteString>() {
+        @Override
+        public int compare(ByteString former, ByteString latter) {
+          if (former == latter) {
+            return 0;
+          }
+          if (former instanceof LiteralByteString && latter instanceof LiteralByteString) {
+            int result =
+                compareRanges(
+                    (LiteralByteString) former,
+                    0,
+                    (LiteralByteString) latter,
+                    0,
+                    Math.min(former.size(), latter.size()));
+            return result != 0 ? result : former.size() - latter.size();
+          }
+          return compareLeaves(former, latter);
+        }
+      };
+
+  /**
+   * Returns a {@link Comparator} which compares {@code ByteString}s lexicographically as sequences
+   * of unsigned bytes (i.e. values between 0 and 255, inclusive). A prefix compares less than the
+   * strings it is a prefix of.
+   *
+   * <p>For example, {@code (byte) -1} is considered to be greater than {@code (byte) 1} because it
+   * is interpreted as an unsigned value, {@code 255}.
+   *
+   * <p>Comparisons walk both strings one leaf at a time, so ropes compare as quickly as flat
+   * strings, and stop at the first difference.
+   *
+   * @return the comparator, which is thread-safe and consistent with {@link #equals(Object)}
+   */
+  public static Comparator<ByteString> unsignedLexicographicalComparator() {
+    return UNSIGNED_LEXICOGRAPHICAL_COMPARATOR;
+  }
+
+  /** Compares two strings leaf by leaf, comparing the overlapping part of each pair of leaves. */
+  private static int compareLeaves(ByteString former, ByteString latter) {
+    Iterator<LeafByteString> formerLeaves = new RopeByteString.PieceIterator(former);
+    Iterator<LeafByteString> latterLeaves = new RopeByteString.PieceIterator(latter);
+    LeafByteString formerLeaf = formerLeaves.next();
+    LeafByteString latterLeaf = latterLeaves.next();
+    int formerOffset = 0;
+    int latterOffset = 0;
+    while (true) {
+      int formerRemaining = formerLeaf.size() - formerOffset;
+      int latterRemaining = latterLeaf.size() - latterOffset;
+      int length = Math.min(formerRemaining, latterRemaining);
+      int result = compareRanges(formerLeaf, formerOffset, latterLeaf, latterOffset, length);
+      if (result != 0) {
+        return result;
+      }
+      if (length == formerRemaining) {
+        if (!formerLeaves.hasNext()) {
+          return latterLeaves.hasNext() || length < latterRemaining ? -1 : 0;
+        }
+        formerLeaf = formerLeaves.next();
+        formerOffset = 0;
+      } else {
+        formerOffset += length;
+      }
+      if (length == latterRemaining) {
+        if (!latterLeaves.hasNext()) {
+          return 1;
+        }
+        latterLeaf = latterLeaves.next();
+        latterOffset = 0;
+      } else {
+        latterOffset += length;
+      }
+    }
+  }
+
+  /** Compares ranges of two leaves as unsigned bytes. */
+  private static int compareRanges(
+      LeafByteString former, int formerOffset, LeafByteString latter, int latterOffset,
+      int length) {
+    if (former instanceof LiteralByteString && latter instanceof LiteralByteString) {
+      byte[] formerBytes = ((LiteralByteString) former).bytes;
+      byte[] latterBytes = ((LiteralByteString) latter).bytes;
+      int formerIndex = ((LiteralByteString) former).getOffsetIntoBytes() + formerOffset;
+      int latterIndex = ((LiteralByteString) latter).getOffsetIntoBytes() + latterOffset;
+      int i = mismatch(formerBytes, formerIndex, latterBytes, latterIndex, length);
+      return i < 0
+          ? 0
+          : (formerBytes[formerIndex + i] & 0xFF) - (latterBytes[latterIndex + i] & 0xFF);
+    }
+    for (int i = 0; i < length; i++) {
+      int result =
+          (former.byteAt(formerOffset + i) & 0xFF) - (latter.byteAt(latterOffset + i) & 0xFF);
+      if (result != 0) {
+        return result;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the index, relative to the given offsets, of the first byte that differs between two
+   * ranges of the given length, or -1 if they are equal. Compares eight bytes at a time when it
+   * can do so with aligned reads.
+   */
+  static int mismatch(byte[] left, int leftOffset, byte[] right, int rightOffset, int length) {
+    if (left == right && leftOffset == rightOffset) {
+      return -1;
+    }
+    int i = 0;
+    if (UnsafeUtil.hasUnsafeArrayOperations() && ((leftOffset - rightOffset) & 7) == 0) {
+      // Array objects are 8-byte aligned, so both ranges reach an 8-byte boundary together.
+      int unaligned = (int) -(UnsafeUtil.BYTE_ARRAY_BASE_OFFSET + leftOffset) & 7;
+      for (; i < unaligned && i < length; i++) {
+        if (left[leftOffset + i] != right[rightOffset + i]) {
+          return i;
+        }
+      }
+      for (; i + 8 <= length; i += 8) {
+        if (UnsafeUtil.getLong(left, leftOffset + i)
+            != UnsafeUtil.getLong(right, rightOffset + i)) {
+          break;
+        }
+      }
+    }
+    for (; i < length; i++) {
+      if (left[leftOffset + i] != right[rightOffset + i]) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
   // =================================================================
   // Input stream
 
@@ -1408,18 +1591,13 @@ public abstract class ByteString implements Iterable<Byte>, Serializable {
 
       if (other instanceof LiteralByteString) {
         LiteralByteString lbsOther = (LiteralByteString) other;
-        byte[] thisBytes = bytes;
-        byte[] otherBytes = lbsOther.bytes;
-        int thisLimit = getOffsetIntoBytes() + length;
-        for (
-            int thisIndex = getOffsetIntoBytes(),
-                otherIndex = lbsOther.getOffsetIntoBytes() + offset;
-            (thisIndex < thisLimit); ++thisIndex, ++otherIndex) {
-          if (thisBytes[thisIndex] != otherBytes[otherIndex]) {
-            return false;
-          }
-        }
-        return true;
+        return mismatch(
+                bytes,
+                getOffsetIntoBytes(),
+                lbsOther.bytes,
+                lbsOther.getOffsetIntoBytes() + offset,
+                length)
+            < 0;
       }
 
       return other.substring(offset, offset + length).equals(substring(0, length));
@@ -62,7 +62,7 @@ public abstract class CodedInputStream {
   private static final int DEFAULT_BUFFER_SIZE = 4096;
   private static final int DEFAULT_RECURSION_LIMIT = 100;
   // Integer.MAX_VALUE == 0x7FFFFFF == INT_MAX from limits.h
-  private static final int DEFAULT_SIZE_LIMIT = Integer.MAX_VALUE;
+  static final int DEFAULT_SIZE_LIMIT = Integer.MAX_VALUE;
 
   /**
    * Whether to enable our custom UTF-8 decode codepath which does not use {@link StringCoding}.
@@ -80,6 +80,9 @@ public abstract class CodedInputStream {
   /** Visible for subclasses. See setSizeLimit() */
   int sizeLimit = DEFAULT_SIZE_LIMIT;
 
+  /** Visible for subclasses. See setStringInterner() */
+  StringInterner stringInterner;
+
   /** Create a new CodedInputStream wrapping the given InputStream. */
   public static CodedInputStream newInstance(final InputStream input) {
     return newInstance(input, DEFAULT_BUFFER_SIZE);
@@ -199,6 +202,67 @@ public abstract class CodedInputStream {
   /** Disable construction/inheritance outside of this class. */
   private CodedInputStream() {}
 
+  // -----------------------------------------------------------------
+  // Reuse
+
+  /**
+   * Resets this stream to read {@code buf}, as if it had been created by {@link
+   * #newInstance(byte[])}. The recursion limit, size limit and unknown-field handling are restored
+   * to their defaults, aliasing is disabled and the {@link StringInterner} is cleared, so that one
+   * instance (for example, one per thread) can read any number of messages without allocating a
+   * new stream for each.
+   *
+   * @throws UnsupportedOperationException if this stream was not created from a byte array.
+   */
+  public final void reset(final byte[] buf) {
+    reset(buf, 0, buf.length);
+  }
+
+  /**
+   * Resets this stream to read the given slice of {@code buf}, as if it had been created by {@link
+   * #newInstance(byte[], int, int)}. See {@link #reset(byte[])}.
+   *
+   * @throws UnsupportedOperationException if this stream was not created from a byte array.
+   */
+  public void reset(final byte[] buf, final int off, final int len) {
+    throw new UnsupportedOperationException("Only byte array-backed streams can be reset to one.");
+  }
+
+  /**
+   * Resets this stream to read {@code buf}, as if it had been created by {@link
+   * #newInstance(ByteBuffer)}. See {@link #reset(byte[])}.
+   *
+   * <p>A stream created from a byte array or heap buffer reads a heap {@code buf} in place, but
+   * copies the remaining bytes of a direct {@code buf} into a new array, as {@link
+   * #newInstance(ByteBuffer)} does when it cannot read the buffer directly.
+   *
+   * @throws UnsupportedOperationException if this stream was not created from a byte array or
+   *     {@link ByteBuffer}, or if it was created from a direct buffer and {@code buf} is not one.
+   */
+  public void reset(ByteBuffer buf) {
+    throw new UnsupportedOperationException("Only buffer-backed streams can be reset to a buffer.");
+  }
+
+  /**
+   * Resets this stream to read {@code input}, as if it had been created by {@link
+   * #newInstance(InputStream)}, reusing the existing read buffer. See {@link #reset(byte[])}.
+   *
+   * @throws UnsupportedOperationException if this stream was not created from an {@link
+   *     InputStream}.
+   */
+  public void reset(final InputStream input) {
+    throw new UnsupportedOperationException("Only InputStream-backed streams can be reset to one.");
+  }
+
+  /** Restores the state shared by all implementations to that of a new instance. */
+  final void resetCommonState() {
+    recursionDepth = 0;
+    recursionLimit = DEFAULT_RECURSION_LIMIT;
+    sizeLimit = DEFAULT_SIZE_LIMIT;
+    explicitDiscardUnknownFields = false;
+    stringInterner = null;
+  }
+
   // -----------------------------------------------------------------
 
   /**
@@ -419,6 +483,16 @@ public abstract class CodedInputStream {
   }
 
 
+  /**
+   * Sets the {@link StringInterner} with which {@link #readString()}, {@link
+   * #readStringRequireUtf8()} and {@link #readBytes()} share the values they read, or {@code null}
+   * (the default) to create a new value every time. Interned {@code bytes} values are copied even
+   * when aliasing is enabled.
+   */
+  public final void setStringInterner(StringInterner interner) {
+    stringInterner = interner;
+  }
+
   private boolean explicitDiscardUnknownFields = false;
 
   private static volatile boolean proto3DiscardUnknownFieldsDefault = false;
@@ -453,6 +527,7 @@ public abstract class CodedInputStream {
    */
   final void unsetDiscardUnknownFields() {
     explicitDiscardUnknownFields = false;
+    stringInterner = null;
   }
 
   /**
@@ -620,8 +695,8 @@ public abstract class CodedInputStream {
 
   /** A {@link CodedInputStream} implementation that uses a backing array as the input. */
   private static final class ArrayDecoder extends CodedInputStream {
-    private final byte[] buffer;
-    private final boolean immutable;
+    private byte[] buffer;
+    private boolean immutable;
     private int limit;
     private int bufferSizeAfterLimit;
     private int pos;
@@ -640,6 +715,39 @@ public abstract class CodedInputStream {
       this.immutable = immutable;
     }
 
+    @Override
+    public void reset(final byte[] buf, final int off, final int len) {
+      resetCommonState();
+      buffer = buf;
+      limit = off + len;
+      pos = off;
+      startPos = pos;
+      immutable = false;
+      bufferSizeAfterLimit = 0;
+      lastTag = 0;
+      enableAliasing = false;
+      currentLimit = Integer.MAX_VALUE;
+      try {
+        // See newInstance(byte[], int, int, boolean).
+        pushLimit(len);
+      } catch (InvalidProtocolBufferException ex) {
+        throw new IllegalArgumentException(ex);
+      }
+    }
+
+    @Override
+    public void reset(ByteBuffer buf) {
+      if (buf.hasArray()) {
+        reset(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        return;
+      }
+      // Same fallback as newInstance(ByteBuffer, boolean).
+      byte[] copy = new byte[buf.remaining()];
+      buf.duplicate().get(copy);
+      reset(copy, 0, copy.length);
+      immutable = true;
+    }
+
     @Override
     public int readTag() throws IOException {
       if (isAtEnd()) {
@@ -815,7 +923,10 @@ public abstract class CodedInputStream {
       if (size > 0 && size <= (limit - pos)) {
         // Fast path:  We already have the bytes in a contiguous buffer, so
         //   just copy directly from it.
-        final String result = new String(buffer, pos, size, UTF_8);
+        final String result =
+            stringInterner != null && stringInterner.canIntern(size)
+                ? stringInterner.internString(buffer, pos, size, false)
+                : new String(buffer, pos, size, UTF_8);
         pos += size;
         return result;
       }
@@ -833,7 +944,11 @@ public abstract class CodedInputStream {
     public String readStringRequireUtf8() throws IOException {
       final int size = readRawVarint32();
       if (size > 0 && size <= (limit - pos)) {
-        if (ENABLE_CUSTOM_UTF8_DECODE) {
+        if (stringInterner != null && stringInterner.canIntern(size)) {
+          String result = stringInterner.internString(buffer, pos, size, true);
+          pos += size;
+          return result;
+        } else if (ENABLE_CUSTOM_UTF8_DECODE) {
           String result = Utf8.decodeUtf8(buffer, pos, size);
           pos += size;
           return result;
@@ -936,9 +1051,11 @@ public abstract class CodedInputStream {
         // Fast path:  We already have the bytes in a contiguous buffer, so
         //   just copy directly from it.
         final ByteString result =
-            immutable && enableAliasing
-                ? ByteString.wrap(buffer, pos, size)
-                : ByteString.copyFrom(buffer, pos, size);
+            stringInterner != null && stringInterner.canIntern(size)
+                ? stringInterner.internBytes(buffer, pos, size)
+                : immutable && enableAliasing
+                    ? ByteString.wrap(buffer, pos, size)
+                    : ByteString.copyFrom(buffer, pos, size);
         pos += size;
         return result;
       }
@@ -1316,16 +1433,16 @@ public abstract class CodedInputStream {
    */
   private static final class UnsafeDirectNioDecoder extends CodedInputStream {
     /** The direct buffer that is backing this stream. */
-    private final ByteBuffer buffer;
+    private ByteBuffer buffer;
 
     /**
      * If {@code true}, indicates that the buffer is backing a {@link ByteString} and is therefore
      * considered to be an immutable input source.
      */
-    private final boolean immutable;
+    private boolean immutable;
 
     /** The unsafe address of the content of {@link #buffer}. */
-    private final long address;
+    private long address;
 
     /** The unsafe address of the current read limit of the buffer. */
     private long limit;
@@ -1364,6 +1481,25 @@ public abstract class CodedInputStream {
       this.immutable = immutable;
     }
 
+    @Override
+    public void reset(ByteBuffer buf) {
+      if (!buf.isDirect()) {
+        throw new UnsupportedOperationException(
+            "Streams created from a direct ByteBuffer can only be reset to another one.");
+      }
+      resetCommonState();
+      buffer = buf;
+      address = UnsafeUtil.addressOffset(buf);
+      limit = address + buf.limit();
+      pos = address + buf.position();
+      startPos = pos;
+      immutable = false;
+      bufferSizeAfterLimit = 0;
+      lastTag = 0;
+      enableAliasing = false;
+      currentLimit = Integer.MAX_VALUE;
+    }
+
     @Override
     public int readTag() throws IOException {
       if (isAtEnd()) {
@@ -1537,6 +1673,11 @@ public abstract class CodedInputStream {
     public String readString() throws IOException {
       final int size = readRawVarint32();
       if (size > 0 && size <= remaining()) {
+        if (stringInterner != null && stringInterner.canIntern(size)) {
+          String result = stringInterner.internString(buffer, bufferPos(pos), size, false);
+          pos += size;
+          return result;
+        }
         // TODO(nathanmittler): Is there a way to avoid this copy?
         // TODO(anuraaga): It might be possible to share the optimized loop with
         // readStringRequireUtf8 by implementing Java replacement logic there.
@@ -1561,7 +1702,11 @@ public abstract class CodedInputStream {
     public String readStringRequireUtf8() throws IOException {
       final int size = readRawVarint32();
       if (size > 0 && size <= remaining()) {
-        if (ENABLE_CUSTOM_UTF8_DECODE) {
+        if (stringInterner != null && stringInterner.canIntern(size)) {
+          String result = stringInterner.internString(buffer, bufferPos(pos), size, true);
+          pos += size;
+          return result;
+        } else if (ENABLE_CUSTOM_UTF8_DECODE) {
           final int bufferPos = bufferPos(pos);
           String result = Utf8.decodeUtf8(buffer, bufferPos, size);
           pos += size;
@@ -1667,7 +1812,11 @@ public abstract class CodedInputStream {
     public ByteString readBytes() throws IOException {
       final int size = readRawVarint32();
       if (size > 0 && size <= remaining()) {
-        if (immutable && enableAliasing) {
+        if (stringInterner != null && stringInterner.canIntern(size)) {
+          final ByteString result = stringInterner.internBytes(buffer, bufferPos(pos), size);
+          pos += size;
+          return result;
+        } else if (immutable && enableAliasing) {
           final ByteBuffer result = slice(pos, pos + size);
           pos += size;
           return ByteString.wrap(result);
@@ -2077,7 +2226,7 @@ public abstract class CodedInputStream {
    * Implementation of {@link CodedInputStream} that uses an {@link InputStream} as the data source.
    */
   private static final class StreamDecoder extends CodedInputStream {
-    private final InputStream input;
+    private InputStream input;
     private final byte[] buffer;
     /** bufferSize represents how many bytes are currently filled in the buffer */
     private int bufferSize;
@@ -2106,6 +2255,20 @@ public abstract class CodedInputStream {
       totalBytesRetired = 0;
     }
 
+    @Override
+    public void reset(final InputStream input) {
+      checkNotNull(input, "input");
+      resetCommonState();
+      this.input = input;
+      bufferSize = 0;
+      bufferSizeAfterLimit = 0;
+      pos = 0;
+      lastTag = 0;
+      totalBytesRetired = 0;
+      currentLimit = Integer.MAX_VALUE;
+      refillCallback = null;
+    }
+
     @Override
     public int readTag() throws IOException {
       if (isAtEnd()) {
@@ -2306,7 +2469,7 @@ public abstract class CodedInputStream {
       if (size > 0 && size <= (bufferSize - pos)) {
         // Fast path:  We already have the bytes in a contiguous buffer, so
         //   just copy directly from it.
-        final String result = new String(buffer, pos, size, UTF_8);
+        final String result = readStringFromBuffer(size);
         pos += size;
         return result;
       }
@@ -2315,7 +2478,7 @@ public abstract class CodedInputStream {
       }
       if (size <= bufferSize) {
         refillBuffer(size);
-        String result = new String(buffer, pos, size, UTF_8);
+        String result = readStringFromBuffer(size);
         pos += size;
         return result;
       }
@@ -2323,6 +2486,13 @@ public abstract class CodedInputStream {
       return new String(readRawBytesSlowPath(size), UTF_8);
     }
 
+    /** Reads a string of the given size at {@code pos}, which must be within the buffer. */
+    private String readStringFromBuffer(int size) throws InvalidProtocolBufferException {
+      return stringInterner != null && stringInterner.canIntern(size)
+          ? stringInterner.internString(buffer, pos, size, false)
+          : new String(buffer, pos, size, UTF_8);
+    }
+
     @Override
     public String readStringRequireUtf8() throws IOException {
       final int size = readRawVarint32();
@@ -2347,7 +2517,9 @@ public abstract class CodedInputStream {
         bytes = readRawBytesSlowPath(size);
         tempPos = 0;
       }
-      if (ENABLE_CUSTOM_UTF8_DECODE) {
+      if (stringInterner != null && stringInterner.canIntern(size)) {
+        return stringInterner.internString(bytes, tempPos, size, true);
+      } else if (ENABLE_CUSTOM_UTF8_DECODE) {
         return Utf8.decodeUtf8(bytes, tempPos, size);
       } else {
         // TODO(martinrb): We could save a pass by validating while decoding.
@@ -2436,7 +2608,10 @@ public abstract class CodedInputStream {
       if (size <= (bufferSize - pos) && size > 0) {
         // Fast path:  We already have the bytes in a contiguous buffer, so
         //   just copy directly from it.
-        final ByteString result = ByteString.copyFrom(buffer, pos, size);
+        final ByteString result =
+            stringInterner != null && stringInterner.canIntern(size)
+                ? stringInterner.internBytes(buffer, pos, size)
+                : ByteString.copyFrom(buffer, pos, size);
         pos += size;
         return result;
       }
@@ -3349,6 +3524,12 @@ public abstract class CodedInputStream {
     public String readString() throws IOException {
       final int size = readRawVarint32();
       if (size > 0 && size <= currentByteBufferLimit - currentByteBufferPos) {
+        if (stringInterner != null && stringInterner.canIntern(size)) {
+          final int index = (int) (currentByteBufferPos - currentAddress);
+          String result = stringInterner.internString(currentByteBuffer, index, size, false);
+          currentByteBufferPos += size;
+          return result;
+        }
         byte[] bytes = new byte[size];
         UnsafeUtil.copyMemory(currentByteBufferPos, bytes, 0, size);
         String result = new String(bytes, UTF_8);
@@ -3375,7 +3556,12 @@ public abstract class CodedInputStream {
     public String readStringRequireUtf8() throws IOException {
       final int size = readRawVarint32();
       if (size > 0 && size <= currentByteBufferLimit - currentByteBufferPos) {
-        if (ENABLE_CUSTOM_UTF8_DECODE) {
+        if (stringInterner != null && stringInterner.canIntern(size)) {
+          final int index = (int) (currentByteBufferPos - currentAddress);
+          String result = stringInterner.internString(currentByteBuffer, index, size, true);
+          currentByteBufferPos += size;
+          return result;
+        } else if (ENABLE_CUSTOM_UTF8_DECODE) {
           final int bufferPos = (int) (currentByteBufferPos - currentByteBufferStartPos);
           String result = Utf8.decodeUtf8(currentByteBuffer, bufferPos, size);
           currentByteBufferPos += size;
@@ -3490,7 +3676,12 @@ public abstract class CodedInputStream {
     public ByteString readBytes() throws IOException {
       final int size = readRawVarint32();
       if (size > 0 && size <= currentByteBufferLimit - currentByteBufferPos) {
-        if (immutable && enableAliasing) {
+        if (stringInterner != null && stringInterner.canIntern(size)) {
+          final int index = (int) (currentByteBufferPos - currentAddress);
+          final ByteString result = stringInterner.internBytes(currentByteBuffer, index, size);
+          currentByteBufferPos += size;
+          return result;
+        } else if (immutable && enableAliasing) {
           final int idx = (int) (currentByteBufferPos - currentAddress);
           final ByteString result = ByteString.wrap(slice(idx, idx + size));
           currentByteBufferPos += size;
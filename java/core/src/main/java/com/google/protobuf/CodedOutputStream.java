@@ -41,6 +41,7 @@ import java.io.OutputStream;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -105,7 +106,50 @@ public abstract class CodedOutputStream extends ByteOutput {
    * difficult to debug.
    */
   public static CodedOutputStream newInstance(final OutputStream output, final int bufferSize) {
-    return new OutputStreamEncoder(output, bufferSize);
+    return new OutputStreamEncoder(output, bufferSize, BufferAllocator.unpooled());
+  }
+
+  /**
+   * Create a new {@code CodedOutputStream} wrapping the given {@code OutputStream} with a buffer
+   * of at least the given size borrowed from {@code allocator}. Call {@link #release()} when done
+   * with the stream to give the buffer back.
+   */
+  @ExperimentalApi
+  public static CodedOutputStream newInstance(
+      final OutputStream output, final int bufferSize, final BufferAllocator allocator) {
+    return new OutputStreamEncoder(output, bufferSize, allocator);
+  }
+
+  /**
+   * Create a new {@code CodedOutputStream} that writes to the given channel, which must be in
+   * blocking mode. Nothing is written to the channel until {@link #flush()} is called, which then
+   * writes everything with as few (gathering) writes as possible. Large {@code bytes} fields are
+   * not copied on the way: the channel reads them straight from their {@link ByteString}s, which
+   * is why the stream must be flushed before those go away.
+   */
+  public static CodedOutputStream newInstance(final WritableByteChannel channel) {
+    return newInstance(channel, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Create a new {@code CodedOutputStream} that writes to the given channel, as {@link
+   * #newInstance(WritableByteChannel)} does, with a given buffer size.
+   */
+  public static CodedOutputStream newInstance(
+      final WritableByteChannel channel, final int bufferSize) {
+    return new ByteChannelEncoder(new ByteChannelOutput(channel, bufferSize));
+  }
+
+  /**
+   * Create a new {@code CodedOutputStream} that writes to the given channel, as {@link
+   * #newInstance(WritableByteChannel)} does, with a buffer of at least the given size borrowed
+   * from {@code allocator}. Call {@link #release()} when done with the stream to give the buffer
+   * back.
+   */
+  @ExperimentalApi
+  public static CodedOutputStream newInstance(
+      final WritableByteChannel channel, final int bufferSize, final BufferAllocator allocator) {
+    return new ByteChannelEncoder(new ByteChannelOutput(channel, bufferSize, allocator));
   }
 
   /**
@@ -190,8 +234,24 @@ public abstract class CodedOutputStream extends ByteOutput {
   boolean isSerializationDeterministic() {
     return serializationDeterministic;
   }
+
   private boolean serializationDeterministic;
 
+  final void resetSerializationDeterministic() {
+    serializationDeterministic = false;
+  }
+
+  /** Checks the argument of {@code reset(ByteBuffer)} for the direct buffer encoders. */
+  private static void checkResetToDirect(ByteBuffer buffer) {
+    if (!buffer.isDirect()) {
+      throw new UnsupportedOperationException(
+          "Streams created from a direct ByteBuffer can only be reset to another one.");
+    }
+    if (buffer.isReadOnly()) {
+      throw new IllegalArgumentException("ByteBuffer is read-only");
+    }
+  }
+
   /**
    * Create a new {@code CodedOutputStream} that writes to the given {@link ByteBuffer}.
    *
@@ -221,13 +281,64 @@ public abstract class CodedOutputStream extends ByteOutput {
       throw new IllegalArgumentException("bufferSize must be positive");
     }
 
-    return new ByteOutputEncoder(byteOutput, bufferSize);
+    return new ByteOutputEncoder(byteOutput, bufferSize, BufferAllocator.unpooled());
   }
 
   // Disallow construction outside of this class.
   private CodedOutputStream() {
   }
 
+  // -----------------------------------------------------------------
+  // Reuse
+
+  /**
+   * Resets this stream to write to {@code flatArray}, as if it had been created by {@link
+   * #newInstance(byte[])}. Deterministic serialization is turned off again. This lets one instance
+   * (for example, one per thread) serialize any number of messages without allocating a new
+   * stream for each.
+   *
+   * @throws UnsupportedOperationException if this stream was not created from a byte array.
+   */
+  public final void reset(final byte[] flatArray) {
+    reset(flatArray, 0, flatArray.length);
+  }
+
+  /**
+   * Resets this stream to write to the given slice of {@code flatArray}, as if it had been created
+   * by {@link #newInstance(byte[], int, int)}. See {@link #reset(byte[])}.
+   *
+   * @throws UnsupportedOperationException if this stream was not created from a byte array.
+   */
+  public void reset(final byte[] flatArray, final int offset, final int length) {
+    throw new UnsupportedOperationException("Only byte array-backed streams can be reset to one.");
+  }
+
+  /**
+   * Resets this stream to write to {@code buffer}, as if it had been created by {@link
+   * #newInstance(ByteBuffer)}. See {@link #reset(byte[])}.
+   *
+   * @throws UnsupportedOperationException if this stream was not created from a {@link ByteBuffer}
+   *     of the same kind (heap or direct) as {@code buffer}.
+   */
+  public void reset(ByteBuffer buffer) {
+    throw new UnsupportedOperationException(
+        "Only streams created from the same kind of ByteBuffer can be reset to one.");
+  }
+
+  /**
+   * Resets this stream to write to {@code output}, as if it had been created by {@link
+   * #newInstance(OutputStream)}, reusing the existing buffer, or borrowing a new one if it was
+   * {@linkplain #release() released}. Any bytes that were written but not yet flushed are
+   * discarded. See {@link #reset(byte[])}.
+   *
+   * @throws UnsupportedOperationException if this stream was not created from an {@link
+   *     OutputStream}.
+   */
+  public void reset(final OutputStream output) {
+    throw new UnsupportedOperationException(
+        "Only OutputStream-backed streams can be reset to one.");
+  }
+
   // -----------------------------------------------------------------
 
   /** Encode and write a tag. */
@@ -955,6 +1066,16 @@ public abstract class CodedOutputStream extends ByteOutput {
    */
   public abstract void flush() throws IOException;
 
+  /**
+   * Gives back the buffers this stream borrowed from a {@link BufferAllocator}, if any. Call it
+   * after the last {@link #flush()}; writing to or flushing the stream afterwards throws an {@link
+   * IllegalStateException}, unless it is first given a new output with {@link
+   * #reset(OutputStream)}, which borrows a new buffer. Calling it more than once has no further
+   * effect.
+   */
+  @ExperimentalApi
+  public void release() {}
+
   /**
    * If writing to a flat array, return the space left in the array.
    * Otherwise, throws {@code UnsupportedOperationException}.
@@ -1148,12 +1269,16 @@ public abstract class CodedOutputStream extends ByteOutput {
    * A {@link CodedOutputStream} that writes directly to a byte array.
    */
   private static class ArrayEncoder extends CodedOutputStream {
-    private final byte[] buffer;
-    private final int offset;
-    private final int limit;
+    private byte[] buffer;
+    private int offset;
+    private int limit;
     private int position;
 
     ArrayEncoder(byte[] buffer, int offset, int length) {
+      init(buffer, offset, length);
+    }
+
+    private void init(byte[] buffer, int offset, int length) {
       if (buffer == null) {
         throw new NullPointerException("buffer");
       }
@@ -1168,6 +1293,17 @@ public abstract class CodedOutputStream extends ByteOutput {
       limit = offset + length;
     }
 
+    @Override
+    public void reset(final byte[] flatArray, final int offset, final int length) {
+      resetArray(flatArray, offset, length);
+    }
+
+    /** Also used by {@link HeapNioEncoder}, which does not allow resetting to a bare array. */
+    final void resetArray(byte[] flatArray, int offset, int length) {
+      init(flatArray, offset, length);
+      resetSerializationDeterministic();
+    }
+
     @Override
     public final void writeTag(final int fieldNumber, final int wireType) throws IOException {
       writeUInt32NoTag(WireFormat.makeTag(fieldNumber, wireType));
@@ -1445,24 +1581,26 @@ public abstract class CodedOutputStream extends ByteOutput {
       final int oldPosition = position;
       try {
         // UTF-8 byte length of the string is at least its UTF-16 code unit length (value.length()),
-        // and at most 3 times of it. We take advantage of this in both branches below.
-        final int maxLength = value.length() * Utf8.MAX_BYTES_PER_CHAR;
-        final int maxLengthVarIntSize = computeUInt32SizeNoTag(maxLength);
+        // so the length varint takes at least minLengthVarIntSize bytes. Encode the string after
+        // that many bytes, then prepend the length. That saves a Utf8.encodedLength() pass over
+        // the string; the rare string whose length needs a longer varint is shifted to make room.
         final int minLengthVarIntSize = computeUInt32SizeNoTag(value.length());
-        if (minLengthVarIntSize == maxLengthVarIntSize) {
-          position = oldPosition + minLengthVarIntSize;
-          int newPosition = Utf8.encode(value, buffer, position, spaceLeft());
-          // Since this class is stateful and tracks the position, we rewind and store the state,
-          // prepend the length, then reset it back to the end of the string.
-          position = oldPosition;
-          int length = newPosition - oldPosition - minLengthVarIntSize;
-          writeUInt32NoTag(length);
-          position = newPosition;
-        } else {
-          int length = Utf8.encodedLength(value);
-          writeUInt32NoTag(length);
-          position = Utf8.encode(value, buffer, position, spaceLeft());
+        final int start = oldPosition + minLengthVarIntSize;
+        int end = Utf8.encode(value, buffer, start, limit - start);
+        int length = end - start;
+        int shift = computeUInt32SizeNoTag(length) - minLengthVarIntSize;
+        if (shift > 0) {
+          if (end + shift > limit) {
+            throw new OutOfSpaceException(
+                String.format("Pos: %d, limit: %d, len: %d", end, limit, shift));
+          }
+          System.arraycopy(buffer, start, buffer, start + shift, length);
         }
+        // Since this class is stateful and tracks the position, we rewind and store the state,
+        // prepend the length, then reset it back to the end of the string.
+        position = oldPosition;
+        writeUInt32NoTag(length);
+        position = end + shift;
       } catch (UnpairedSurrogateException e) {
         // Roll back the change - we fall back to inefficient path.
         position = oldPosition;
@@ -1495,7 +1633,7 @@ public abstract class CodedOutputStream extends ByteOutput {
    * done directly to the underlying array. The buffer position is only updated after a flush.
    */
   private static final class HeapNioEncoder extends ArrayEncoder {
-    private final ByteBuffer byteBuffer;
+    private ByteBuffer byteBuffer;
     private int initialPosition;
 
     HeapNioEncoder(ByteBuffer byteBuffer) {
@@ -1505,6 +1643,23 @@ public abstract class CodedOutputStream extends ByteOutput {
       this.initialPosition = byteBuffer.position();
     }
 
+    @Override
+    public void reset(final byte[] flatArray, final int offset, final int length) {
+      throw new UnsupportedOperationException(
+          "Streams created from a ByteBuffer can only be reset to another one.");
+    }
+
+    @Override
+    public void reset(ByteBuffer buffer) {
+      if (!buffer.hasArray()) {
+        throw new UnsupportedOperationException(
+            "Streams created from a heap ByteBuffer can only be reset to another one.");
+      }
+      resetArray(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+      byteBuffer = buffer;
+      initialPosition = buffer.position();
+    }
+
     @Override
     public void flush() {
       // Update the position on the buffer.
@@ -1517,16 +1672,27 @@ public abstract class CodedOutputStream extends ByteOutput {
    * safe operations..
    */
   private static final class SafeDirectNioEncoder extends CodedOutputStream {
-    private final ByteBuffer originalBuffer;
-    private final ByteBuffer buffer;
-    private final int initialPosition;
+    private ByteBuffer originalBuffer;
+    private ByteBuffer buffer;
+    private int initialPosition;
 
     SafeDirectNioEncoder(ByteBuffer buffer) {
+      init(buffer);
+    }
+
+    private void init(ByteBuffer buffer) {
       this.originalBuffer = buffer;
       this.buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
       initialPosition = buffer.position();
     }
 
+    @Override
+    public void reset(ByteBuffer buffer) {
+      checkResetToDirect(buffer);
+      init(buffer);
+      resetSerializationDeterministic();
+    }
+
     @Override
     public void writeTag(final int fieldNumber, final int wireType) throws IOException {
       writeUInt32NoTag(WireFormat.makeTag(fieldNumber, wireType));
@@ -1828,15 +1994,19 @@ public abstract class CodedOutputStream extends ByteOutput {
    * sun.misc.Unsafe}.
    */
   private static final class UnsafeDirectNioEncoder extends CodedOutputStream {
-    private final ByteBuffer originalBuffer;
-    private final ByteBuffer buffer;
-    private final long address;
-    private final long initialPosition;
-    private final long limit;
-    private final long oneVarintLimit;
+    private ByteBuffer originalBuffer;
+    private ByteBuffer buffer;
+    private long address;
+    private long initialPosition;
+    private long limit;
+    private long oneVarintLimit;
     private long position;
 
     UnsafeDirectNioEncoder(ByteBuffer buffer) {
+      init(buffer);
+    }
+
+    private void init(ByteBuffer buffer) {
       this.originalBuffer = buffer;
       this.buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
       address = UnsafeUtil.addressOffset(buffer);
@@ -1846,6 +2016,13 @@ public abstract class CodedOutputStream extends ByteOutput {
       position = initialPosition;
     }
 
+    @Override
+    public void reset(ByteBuffer buffer) {
+      checkResetToDirect(buffer);
+      init(buffer);
+      resetSerializationDeterministic();
+    }
+
     static boolean isSupported() {
       return UnsafeUtil.hasUnsafeByteBufferOperations();
     }
@@ -2176,21 +2353,69 @@ public abstract class CodedOutputStream extends ByteOutput {
    * Abstract base class for buffered encoders.
    */
   private abstract static class AbstractBufferedEncoder extends CodedOutputStream {
-    final byte[] buffer;
-    final int limit;
+    byte[] buffer;
+    // Zero once released, so that every write reaches a flush, which checks the state, instead of
+    // using an array the allocator may have handed out again.
+    int limit;
     int position;
     int totalBytesWritten;
+    // Null if the buffer is owned by someone else.
+    private final BufferAllocator allocator;
+    private final int capacity;
+    private boolean released;
 
-    AbstractBufferedEncoder(int bufferSize) {
+    AbstractBufferedEncoder(int bufferSize, BufferAllocator allocator) {
       if (bufferSize < 0) {
         throw new IllegalArgumentException("bufferSize must be >= 0");
       }
+      if (allocator == null) {
+        throw new NullPointerException("allocator");
+      }
       // As an optimization, we require that the buffer be able to store at least 2
       // varints so that we can buffer any integer write (tag + value). This reduces the
       // number of range checks for a single write to 1 (i.e. if there is not enough space
       // to buffer the tag+value, flush and then buffer it).
-      this.buffer = new byte[max(bufferSize, MAX_VARINT_SIZE * 2)];
+      this.capacity = max(bufferSize, MAX_VARINT_SIZE * 2);
+      this.buffer = allocator.allocateHeapBuffer(capacity);
       this.limit = buffer.length;
+      this.allocator = allocator;
+    }
+
+    /** Creates an encoder that works in a buffer it does not own, of at least 2 varints. */
+    AbstractBufferedEncoder(byte[] buffer) {
+      this.buffer = buffer;
+      this.limit = buffer.length;
+      this.allocator = null;
+      this.capacity = buffer.length;
+    }
+
+    @Override
+    public void release() {
+      if (!released) {
+        if (allocator != null) {
+          allocator.release(buffer);
+        }
+        released = true;
+        buffer = Internal.EMPTY_BYTE_ARRAY;
+        limit = 0;
+        position = 0;
+      }
+    }
+
+    /** Borrows a new buffer if the last one was released. */
+    final void ensureBuffer() {
+      if (released) {
+        buffer = allocator.allocateHeapBuffer(capacity);
+        limit = buffer.length;
+        released = false;
+      }
+    }
+
+    /** Called before the buffer is flushed or bypassed. */
+    final void checkNotReleased() {
+      if (released) {
+        throw new IllegalStateException("CodedOutputStream was released.");
+      }
     }
 
     @Override
@@ -2335,11 +2560,20 @@ public abstract class CodedOutputStream extends ByteOutput {
    * support string encoding operations. All other writes are just passed through to the
    * {@link ByteOutput}.
    */
-  private static final class ByteOutputEncoder extends AbstractBufferedEncoder {
+  private static class ByteOutputEncoder extends AbstractBufferedEncoder {
     private final ByteOutput out;
 
-    ByteOutputEncoder(ByteOutput out, int bufferSize) {
-      super(bufferSize);
+    ByteOutputEncoder(ByteOutput out, int bufferSize, BufferAllocator allocator) {
+      super(bufferSize, allocator);
+      if (out == null) {
+        throw new NullPointerException("out");
+      }
+      this.out = out;
+    }
+
+    /** Creates an encoder that works in {@code buffer}, which it does not own. */
+    ByteOutputEncoder(ByteOutput out, byte[] buffer) {
+      super(buffer);
       if (out == null) {
         throw new NullPointerException("out");
       }
@@ -2526,7 +2760,7 @@ public abstract class CodedOutputStream extends ByteOutput {
     @Override
     public void writeStringNoTag(String value) throws IOException {
       // UTF-8 byte length of the string is at least its UTF-16 code unit length (value.length()),
-      // and at most 3 times of it. We take advantage of this in both branches below.
+      // and at most 3 times of it. We take advantage of this below.
       final int maxLength = value.length() * Utf8.MAX_BYTES_PER_CHAR;
       final int maxLengthVarIntSize = computeUInt32SizeNoTag(maxLength);
 
@@ -2552,26 +2786,22 @@ public abstract class CodedOutputStream extends ByteOutput {
 
       final int oldPosition = position;
       try {
-        // Optimize for the case where we know this length results in a constant varint length as
-        // this saves a pass for measuring the length of the string.
+        // Encode the string after the shortest possible length varint, then prepend the length.
+        // This saves a pass for measuring the length of the string; the rare string whose length
+        // needs a longer varint is shifted to make room, which the flush above leaves space for.
         final int minLengthVarIntSize = computeUInt32SizeNoTag(value.length());
-
-        if (minLengthVarIntSize == maxLengthVarIntSize) {
-          position = oldPosition + minLengthVarIntSize;
-          int newPosition = Utf8.encode(value, buffer, position, limit - position);
-          // Since this class is stateful and tracks the position, we rewind and store the state,
-          // prepend the length, then reset it back to the end of the string.
-          position = oldPosition;
-          int length = newPosition - oldPosition - minLengthVarIntSize;
-          bufferUInt32NoTag(length);
-          position = newPosition;
-          totalBytesWritten += length;
-        } else {
-          int length = Utf8.encodedLength(value);
-          bufferUInt32NoTag(length);
-          position = Utf8.encode(value, buffer, position, length);
-          totalBytesWritten += length;
+        final int start = oldPosition + minLengthVarIntSize;
+        int end = Utf8.encode(value, buffer, start, limit - start);
+        int length = end - start;
+        int shift = computeUInt32SizeNoTag(length) - minLengthVarIntSize;
+        if (shift > 0) {
+          System.arraycopy(buffer, start, buffer, start + shift, length);
         }
+        // Since this class is stateful and tracks the position, we store the length at the old
+        // position, then move past the end of the string.
+        bufferUInt32NoTag(length);
+        position = end + shift;
+        totalBytesWritten += length;
       } catch (UnpairedSurrogateException e) {
         // Roll back the change and convert to an IOException.
         totalBytesWritten -= position - oldPosition;
@@ -2586,29 +2816,26 @@ public abstract class CodedOutputStream extends ByteOutput {
 
     @Override
     public void flush() throws IOException {
-      if (position > 0) {
-        // Flush the buffer.
-        doFlush();
-      }
+      flushBuffer();
     }
 
     @Override
     public void write(byte[] value, int offset, int length) throws IOException {
-      flush();
+      flushBuffer();
       out.write(value, offset, length);
       totalBytesWritten += length;
     }
 
     @Override
     public void writeLazy(byte[] value, int offset, int length) throws IOException {
-      flush();
+      flushBuffer();
       out.writeLazy(value, offset, length);
       totalBytesWritten += length;
     }
 
     @Override
     public void write(ByteBuffer value) throws IOException {
-      flush();
+      flushBuffer();
       int length = value.remaining();
       out.write(value);
       totalBytesWritten += length;
@@ -2616,39 +2843,137 @@ public abstract class CodedOutputStream extends ByteOutput {
 
     @Override
     public void writeLazy(ByteBuffer value) throws IOException {
-      flush();
+      flushBuffer();
       int length = value.remaining();
       out.writeLazy(value);
       totalBytesWritten += length;
     }
 
+    /** Hands the buffered bytes to the {@link ByteOutput}. */
+    final void flushBuffer() throws IOException {
+      checkNotReleased();
+      if (position > 0) {
+        // Flush the buffer.
+        doFlush();
+      }
+    }
+
     private void flushIfNotAvailable(int requiredSize) throws IOException {
       if (limit - position < requiredSize) {
         doFlush();
       }
     }
 
-    private void doFlush() throws IOException {
+    /** Hands the buffered bytes to the {@link ByteOutput}, leaving the whole buffer free. */
+    void doFlush() throws IOException {
+      checkNotReleased();
       out.write(buffer, 0, position);
       position = 0;
     }
   }
 
+  /**
+   * A {@link ByteOutputEncoder} for a {@link ByteChannelOutput}, which {@link #flush()} flushes
+   * as well. It encodes straight into the scratch array of the {@link ByteChannelOutput}, so that
+   * the bytes it buffers are not copied again before the channel reads them.
+   */
+  private static final class ByteChannelEncoder extends ByteOutputEncoder {
+    private final ByteChannelOutput out;
+
+    ByteChannelEncoder(ByteChannelOutput out) {
+      super(out, out.scratchArray());
+      this.out = out;
+      position = out.scratchPosition();
+    }
+
+    @Override
+    public void flush() throws IOException {
+      doFlush();
+    }
+
+    @Override
+    void doFlush() throws IOException {
+      checkNotReleased();
+      out.setScratchPosition(position);
+      out.flush();
+      position = out.scratchPosition();
+    }
+
+    // The writes below let the output copy or queue the value, which it does after the bytes
+    // encoded so far, so they hand over the position instead of flushing.
+
+    @Override
+    public void write(byte[] value, int offset, int length) throws IOException {
+      checkNotReleased();
+      out.setScratchPosition(position);
+      out.write(value, offset, length);
+      position = out.scratchPosition();
+      totalBytesWritten += length;
+    }
+
+    @Override
+    public void writeLazy(byte[] value, int offset, int length) throws IOException {
+      checkNotReleased();
+      out.setScratchPosition(position);
+      out.writeLazy(value, offset, length);
+      position = out.scratchPosition();
+      totalBytesWritten += length;
+    }
+
+    @Override
+    public void write(ByteBuffer value) throws IOException {
+      checkNotReleased();
+      int length = value.remaining();
+      out.setScratchPosition(position);
+      out.write(value);
+      position = out.scratchPosition();
+      totalBytesWritten += length;
+    }
+
+    @Override
+    public void writeLazy(ByteBuffer value) throws IOException {
+      checkNotReleased();
+      int length = value.remaining();
+      out.setScratchPosition(position);
+      out.writeLazy(value);
+      position = out.scratchPosition();
+      totalBytesWritten += length;
+    }
+
+    @Override
+    public void release() {
+      super.release();
+      out.release();
+    }
+  }
+
   /**
    * An {@link CodedOutputStream} that decorates an {@link OutputStream}. It performs internal
    * buffering to optimize writes to the {@link OutputStream}.
    */
   private static final class OutputStreamEncoder extends AbstractBufferedEncoder {
-    private final OutputStream out;
+    private OutputStream out;
 
-    OutputStreamEncoder(OutputStream out, int bufferSize) {
-      super(bufferSize);
+    OutputStreamEncoder(OutputStream out, int bufferSize, BufferAllocator allocator) {
+      super(bufferSize, allocator);
       if (out == null) {
         throw new NullPointerException("out");
       }
       this.out = out;
     }
 
+    @Override
+    public void reset(final OutputStream output) {
+      if (output == null) {
+        throw new NullPointerException("output");
+      }
+      ensureBuffer();
+      out = output;
+      position = 0;
+      totalBytesWritten = 0;
+      resetSerializationDeterministic();
+    }
+
     @Override
     public void writeTag(final int fieldNumber, final int wireType) throws IOException {
       writeUInt32NoTag(WireFormat.makeTag(fieldNumber, wireType));
@@ -2830,7 +3155,7 @@ public abstract class CodedOutputStream extends ByteOutput {
     public void writeStringNoTag(String value) throws IOException {
       try {
         // UTF-8 byte length of the string is at least its UTF-16 code unit length (value.length()),
-        // and at most 3 times of it. We take advantage of this in both branches below.
+        // and at most 3 times of it. We take advantage of this below.
         final int maxLength = value.length() * Utf8.MAX_BYTES_PER_CHAR;
         final int maxLengthVarIntSize = computeUInt32SizeNoTag(maxLength);
 
@@ -2854,26 +3179,23 @@ public abstract class CodedOutputStream extends ByteOutput {
           doFlush();
         }
 
-        // Optimize for the case where we know this length results in a constant varint length as
-        // this saves a pass for measuring the length of the string.
+        // Encode the string after the shortest possible length varint, then prepend the length.
+        // This saves a pass for measuring the length of the string; the rare string whose length
+        // needs a longer varint is shifted to make room, which the flush above leaves space for.
         final int minLengthVarIntSize = computeUInt32SizeNoTag(value.length());
         int oldPosition = position;
-        final int length;
         try {
-          if (minLengthVarIntSize == maxLengthVarIntSize) {
-            position = oldPosition + minLengthVarIntSize;
-            int newPosition = Utf8.encode(value, buffer, position, limit - position);
-            // Since this class is stateful and tracks the position, we rewind and store the
-            // state, prepend the length, then reset it back to the end of the string.
-            position = oldPosition;
-            length = newPosition - oldPosition - minLengthVarIntSize;
-            bufferUInt32NoTag(length);
-            position = newPosition;
-          } else {
-            length = Utf8.encodedLength(value);
-            bufferUInt32NoTag(length);
-            position = Utf8.encode(value, buffer, position, length);
+          final int start = oldPosition + minLengthVarIntSize;
+          int end = Utf8.encode(value, buffer, start, limit - start);
+          int length = end - start;
+          int shift = computeUInt32SizeNoTag(length) - minLengthVarIntSize;
+          if (shift > 0) {
+            System.arraycopy(buffer, start, buffer, start + shift, length);
           }
+          // Since this class is stateful and tracks the position, we store the length at the old
+          // position, then move past the end of the string.
+          bufferUInt32NoTag(length);
+          position = end + shift;
           totalBytesWritten += length;
         } catch (UnpairedSurrogateException e) {
           // Be extra careful and restore the original position for retrying the write with the
@@ -2982,6 +3304,7 @@ public abstract class CodedOutputStream extends ByteOutput {
     }
 
     private void doFlush() throws IOException {
+      checkNotReleased();
       out.write(buffer, 0, position);
       position = 0;
     }
@@ -0,0 +1,247 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// https://developers.google.com/protocol-buffers/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.google.protobuf;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes a stream of length-delimited messages, as written by {@link
+ * MessageLite#writeDelimitedTo}, from chunks of bytes pushed to it as they arrive. Unlike {@link
+ * Parser#parseDelimitedFrom(java.io.InputStream)}, this never blocks, so it suits event loops that
+ * receive data from non-blocking channels.
+ *
+ * <p>Each complete message is parsed and passed to the {@link Listener} during the {@link
+ * #decode} call that supplies its last byte. A message that lies entirely within one chunk is
+ * parsed directly from that chunk. Only a message split across chunks is copied, into a buffer that
+ * grows as its bytes arrive; at most one such message is buffered at a time. Messages larger than
+ * the {@linkplain #setSizeLimit size limit} are rejected as soon as their length prefix is read.
+ *
+ * <p>A decoder is not thread-safe. Example usage:
+ *
+ * <pre>
+ * DelimitedMessageDecoder&lt;Foo&gt; decoder = DelimitedMessageDecoder.newInstance(
+ *     Foo.parser(),
+ *     new DelimitedMessageDecoder.Listener&lt;Foo&gt;() {
+ *       public void onMessage(Foo foo) {
+ *         handle(foo);
+ *       }
+ *     });
+ * while (channel.read(buffer) != -1) {
+ *   buffer.flip();
+ *   decoder.decode(buffer);
+ *   buffer.clear();
+ * }
+ * if (!decoder.isAtMessageBoundary()) {
+ *   // The stream ended in the middle of a message.
+ * }
+ * </pre>
+ */
+@ExperimentalApi
+public final class DelimitedMessageDecoder<MessageType extends MessageLite> {
+
+  /** Receives the messages decoded by a {@link DelimitedMessageDecoder}. */
+  public interface Listener<MessageType> {
+    /** Called with each complete message, in stream order. */
+    void onMessage(MessageType message);
+  }
+
+  /** The shift of the fifth and last byte of a varint32 length prefix. */
+  private static final int MAX_SIZE_SHIFT = 28;
+
+  /** The initial size of the buffer of a message split across chunks. */
+  private static final int INITIAL_PARTIAL_SIZE = 4096;
+
+  private final Parser<MessageType> parser;
+  private final ExtensionRegistryLite extensionRegistry;
+  private final Listener<MessageType> listener;
+
+  /** The length prefix of the next message, as much of it as has been read. */
+  private int size;
+
+  /** The number of bits of {@link #size} read so far. */
+  private int sizeShift;
+
+  private int sizeLimit = CodedInputStream.DEFAULT_SIZE_LIMIT;
+
+  /** The message split across chunks, as much of it as has arrived, or null if there is none. */
+  private byte[] partial;
+
+  private int partialPosition;
+
+  /** The size of the message in {@link #partial}. */
+  private int partialSize;
+
+  /** The number of bytes of a message over the size limit that are still to be skipped. */
+  private int bytesToSkip;
+
+  private DelimitedMessageDecoder(
+      Parser<MessageType> parser,
+      ExtensionRegistryLite extensionRegistry,
+      Listener<MessageType> listener) {
+    this.parser = Internal.checkNotNull(parser, "parser");
+    this.extensionRegistry = Internal.checkNotNull(extensionRegistry, "extensionRegistry");
+    this.listener = Internal.checkNotNull(listener, "listener");
+  }
+
+  /**
+   * Creates a decoder that parses messages with {@code parser} and passes them to {@code
+   * listener}.
+   */
+  public static <MessageType extends MessageLite> DelimitedMessageDecoder<MessageType> newInstance(
+      Parser<MessageType> parser, Listener<MessageType> listener) {
+    return newInstance(parser, ExtensionRegistryLite.getEmptyRegistry(), listener);
+  }
+
+  /**
+   * Creates a decoder that parses messages with {@code parser}, resolving extensions in {@code
+   * extensionRegistry}, and passes them to {@code listener}.
+   */
+  public static <MessageType extends MessageLite> DelimitedMessageDecoder<MessageType> newInstance(
+      Parser<MessageType> parser,
+      ExtensionRegistryLite extensionRegistry,
+      Listener<MessageType> listener) {
+    return new DelimitedMessageDecoder<MessageType>(parser, extensionRegistry, listener);
+  }
+
+  /**
+   * Sets the maximum size of a message. A length prefix larger than this fails {@link #decode} with
+   * an {@link InvalidProtocolBufferException}, before any memory is allocated for the message, and
+   * the bytes of that message are skipped. The default limit is that of {@link CodedInputStream},
+   * {@code Integer.MAX_VALUE}; set it as small as you can when decoding data from untrusted peers.
+   *
+   * @return the old limit.
+   */
+  public int setSizeLimit(int limit) {
+    if (limit < 0) {
+      throw new IllegalArgumentException("Size limit cannot be negative: " + limit);
+    }
+    int oldLimit = sizeLimit;
+    sizeLimit = limit;
+    return oldLimit;
+  }
+
+  /**
+   * Consumes all remaining bytes of {@code chunk}, passing every message they complete to the
+   * listener. Bytes of an incomplete message are kept until the next call.
+   *
+   * <p>Messages parsed directly from {@code chunk} may alias it if the parser does (see {@link
+   * AbstractParser#aliasing(Parser)}); such a chunk must not be modified while the messages are
+   * in use.
+   *
+   * @throws InvalidProtocolBufferException if a message fails to parse, is missing required
+   *     fields or exceeds the size limit. The bytes of that message have been consumed, or will be
+   *     skipped as they arrive, so decoding can continue with the next one. Any other exception
+   *     means the framing of the stream is lost, and the decoder should be discarded.
+   */
+  public void decode(ByteBuffer chunk) throws InvalidProtocolBufferException {
+    while (chunk.hasRemaining()) {
+      if (bytesToSkip > 0) {
+        int length = Math.min(chunk.remaining(), bytesToSkip);
+        chunk.position(chunk.position() + length);
+        bytesToSkip -= length;
+      } else if (partial != null) {
+        int length = Math.min(chunk.remaining(), partialSize - partialPosition);
+        ensurePartialCapacity(partialPosition + length);
+        chunk.get(partial, partialPosition, length);
+        partialPosition += length;
+        if (partialPosition == partialSize) {
+          byte[] message = partial;
+          partial = null;
+          listener.onMessage(parser.parseFrom(message, 0, partialSize, extensionRegistry));
+        }
+      } else if (readSize(chunk)) {
+        int messageSize = size;
+        size = 0;
+        sizeShift = 0;
+        if (messageSize > sizeLimit) {
+          bytesToSkip = messageSize;
+          throw InvalidProtocolBufferException.sizeLimitExceeded();
+        }
+        if (messageSize <= chunk.remaining()) {
+          ByteBuffer message = chunk.duplicate();
+          message.limit(chunk.position() + messageSize);
+          chunk.position(chunk.position() + messageSize);
+          listener.onMessage(parser.parseFrom(message, extensionRegistry));
+        } else {
+          // Only as much memory as the peer has actually sent is committed to the message.
+          partial = new byte[Math.min(messageSize, INITIAL_PARTIAL_SIZE)];
+          partialPosition = 0;
+          partialSize = messageSize;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns true if every byte decoded so far belongs to a complete message, i.e. the stream could
+   * end here without truncating a message.
+   */
+  public boolean isAtMessageBoundary() {
+    return partial == null && sizeShift == 0 && bytesToSkip == 0;
+  }
+
+  /** Grows {@link #partial}, at most to the size of its message, to hold {@code capacity} bytes. */
+  private void ensurePartialCapacity(int capacity) {
+    if (capacity > partial.length) {
+      // Double the buffer, which keeps the copying linear in the size of the message.
+      int newLength = (int) Math.min(partialSize, Math.max(capacity, 2L * partial.length));
+      byte[] newPartial = new byte[newLength];
+      System.arraycopy(partial, 0, newPartial, 0, partialPosition);
+      partial = newPartial;
+    }
+  }
+
+  /**
+   * Reads the length prefix of the next message from {@code chunk}, continuing any prefix started
+   * by an earlier chunk.
+   *
+   * @return true if the prefix is complete, false if {@code chunk} ran out first
+   */
+  private boolean readSize(ByteBuffer chunk) throws InvalidProtocolBufferException {
+    while (chunk.hasRemaining()) {
+      byte b = chunk.get();
+      if (sizeShift == MAX_SIZE_SHIFT && (b & 0xF0) != 0) {
+        // The varint is longer than 5 bytes, or its value does not fit in 32 bits.
+        throw InvalidProtocolBufferException.malformedVarint();
+      }
+      size |= (b & 0x7F) << sizeShift;
+      if (b >= 0) {
+        if (size < 0) {
+          throw InvalidProtocolBufferException.negativeSize();
+        }
+        return true;
+      }
+      sizeShift += 7;
+    }
+    return false;
+  }
+}
@@ -644,6 +644,35 @@ public final class Descriptors {
       return Collections.unmodifiableList(Arrays.asList(oneofs));
     }
 
+    /**
+     * Returns this message type's fields ordered by number, the order in which they are
+     * serialized. The caller must not modify the array.
+     */
+    FieldDescriptor[] getFieldsInNumberOrder() {
+      return getFieldLookup().fieldsInNumberOrder;
+    }
+
+    private FieldLookup getFieldLookup() {
+      FieldLookup result = fieldLookup;
+      if (result == null) {
+        result = new FieldLookup(fields, extensions);
+        // Racing threads build equal tables, so any one of them may win.
+        fieldLookup = result;
+      }
+      return result;
+    }
+
+    /** Returns the plan {@link DynamicMessage} follows to parse this message type. */
+    DynamicMessageSchema getDynamicMessageSchema() {
+      DynamicMessageSchema result = dynamicMessageSchema;
+      if (result == null) {
+        result = new DynamicMessageSchema(this);
+        // Racing threads build equivalent schemas, so any one of them may win.
+        dynamicMessageSchema = result;
+      }
+      return result;
+    }
+
     /** Get a list of this message type's extensions. */
     public List<FieldDescriptor> getExtensions() {
       return Collections.unmodifiableList(Arrays.asList(extensions));
@@ -706,6 +735,10 @@ public final class Descriptors {
      * @return The field's descriptor, or {@code null} if not found.
      */
     public FieldDescriptor findFieldByName(final String name) {
+      if (name.indexOf('.') == -1) {
+        return getFieldLookup().findFieldByName(name);
+      }
+      // A qualified name may still resolve to a field of a nested type.
       final GenericDescriptor result =
           file.pool.findSymbol(fullName + '.' + name);
       if (result != null && result instanceof FieldDescriptor) {
@@ -721,8 +754,7 @@ public final class Descriptors {
      * @return The field's descriptor, or {@code null} if not found.
      */
     public FieldDescriptor findFieldByNumber(final int number) {
-      return file.pool.fieldsByNumber.get(
-        new DescriptorPool.DescriptorIntPair(this, number));
+      return getFieldLookup().findFieldByNumber(number);
     }
 
     /**
@@ -765,6 +797,87 @@ public final class Descriptors {
     private final FieldDescriptor[] fields;
     private final FieldDescriptor[] extensions;
     private final OneofDescriptor[] oneofs;
+    private volatile FieldLookup fieldLookup;
+    private volatile DynamicMessageSchema dynamicMessageSchema;
+
+    /**
+     * Tables for finding a message type's fields by number and by name, built
+     * once per type so that lookups neither allocate nor go through the
+     * {@link DescriptorPool}.
+     */
+    private static final class FieldLookup {
+      final FieldDescriptor[] fieldsInNumberOrder;
+      // The numbers of fieldsInNumberOrder, for binary search.
+      private final int[] sortedNumbers;
+      // Fields indexed by number, or null if the numbers are too sparse.
+      private final FieldDescriptor[] fieldsByNumber;
+      // Open-addressed hash table of the fields and the extensions declared in
+      // the type, by name. Always has at least one empty slot.
+      private final FieldDescriptor[] fieldsByName;
+
+      FieldLookup(FieldDescriptor[] fields, FieldDescriptor[] extensions) {
+        fieldsInNumberOrder = fields.clone();
+        Arrays.sort(fieldsInNumberOrder);
+        sortedNumbers = new int[fieldsInNumberOrder.length];
+        for (int i = 0; i < sortedNumbers.length; i++) {
+          sortedNumbers[i] = fieldsInNumberOrder[i].getNumber();
+        }
+
+        int maxNumber = sortedNumbers.length == 0 ? 0 : sortedNumbers[sortedNumbers.length - 1];
+        if (maxNumber <= 2 * fields.length + 16) {
+          fieldsByNumber = new FieldDescriptor[maxNumber + 1];
+          for (FieldDescriptor field : fields) {
+            fieldsByNumber[field.getNumber()] = field;
+          }
+        } else {
+          fieldsByNumber = null;
+        }
+
+        int size = 1;
+        while (size < 2 * (fields.length + extensions.length)) {
+          size <<= 1;
+        }
+        fieldsByName = new FieldDescriptor[size];
+        for (FieldDescriptor field : fields) {
+          addByName(field);
+        }
+        for (FieldDescriptor extension : extensions) {
+          addByName(extension);
+        }
+      }
+
+      private void addByName(FieldDescriptor field) {
+        int mask = fieldsByName.length - 1;
+        int i = hash(field.getName()) & mask;
+        while (fieldsByName[i] != null) {
+          i = (i + 1) & mask;
+        }
+        fieldsByName[i] = field;
+      }
+
+      FieldDescriptor findFieldByName(String name) {
+        int mask = fieldsByName.length - 1;
+        for (int i = hash(name) & mask; ; i = (i + 1) & mask) {
+          FieldDescriptor field = fieldsByName[i];
+          if (field == null || field.getName().equals(name)) {
+            return field;
+          }
+        }
+      }
+
+      FieldDescriptor findFieldByNumber(int number) {
+        if (fieldsByNumber != null) {
+          return number >= 0 && number < fieldsByNumber.length ? fieldsByNumber[number] : null;
+        }
+        int i = Arrays.binarySearch(sortedNumbers, number);
+        return i >= 0 ? fieldsInNumberOrder[i] : null;
+      }
+
+      private static int hash(String name) {
+        int h = name.hashCode();
+        return h ^ (h >>> 16);
+      }
+    }
 
     // Used to create a placeholder when the type cannot be found.
     Descriptor(final String fullname) throws DescriptorValidationException {
@@ -930,7 +1043,12 @@ public final class Descriptors {
 
     /** Get the JSON name of this field. */
     public String getJsonName() {
-      return jsonName;
+      String result = jsonName;
+      if (result == null) {
+        // Strings are immutable, so racing threads may each compute the name.
+        result = jsonName = fieldNameToJsonName(proto.getName());
+      }
+      return result;
     }
 
     /**
@@ -1132,7 +1250,8 @@ public final class Descriptors {
 
     private FieldDescriptorProto proto;
     private final String fullName;
-    private final String jsonName;
+    // Computed on first use unless the proto sets it.
+    private String jsonName;
     private final FileDescriptor file;
     private final Descriptor extensionScope;
 
@@ -1242,8 +1361,6 @@ public final class Descriptors {
       this.file = file;
       if (proto.hasJsonName()) {
         jsonName = proto.getJsonName();
-      } else {
-        jsonName = fieldNameToJsonName(proto.getName());
       }
 
       if (proto.hasType()) {
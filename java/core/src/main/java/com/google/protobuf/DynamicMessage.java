@@ -38,37 +38,50 @@ import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.Descriptors.OneofDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * An implementation of {@link Message} that can represent arbitrary types,
  * given a {@link Descriptors.Descriptor}.
  *
+ * <p>The values of the type's own fields are kept in an array indexed by
+ * {@link FieldDescriptor#getIndex()}, so reading or writing one takes constant
+ * time. Extensions are kept in a {@link FieldSet}.
+ *
  * @author kenton@google.com Kenton Varda
  */
 public final class DynamicMessage extends AbstractMessage {
   private final Descriptor type;
-  private final FieldSet<FieldDescriptor> fields;
+  // Indexed by FieldDescriptor.getIndex(), null for fields that are not set.
+  private final Object[] values;
+  private final FieldSet<FieldDescriptor> extensions;
   private final FieldDescriptor[] oneofCases;
   private final UnknownFieldSet unknownFields;
   private int memoizedSize = -1;
+  // Built on the first call to getAllFields(), which equals(), hashCode() and the text formats
+  // all go through. Volatile to publish the map safely; it is immutable once built.
+  private volatile Map<FieldDescriptor, Object> memoizedAllFields;
 
   /**
-   * Construct a {@code DynamicMessage} using the given {@code FieldSet}.
+   * Construct a {@code DynamicMessage} using the given field values, indexed
+   * by {@link FieldDescriptor#getIndex()}, and extensions.
    * oneofCases stores the FieldDescriptor for each oneof to indicate
-   * which field is set. Caller should make sure the array is immutable.
-   *
-   * This constructor is package private and will be used in
-   * {@code DynamicMutableMessage} to convert a mutable message to an immutable
-   * message.
+   * which field is set. Caller should make sure the arrays are immutable,
+   * and so are the lists of repeated fields.
    */
-  DynamicMessage(Descriptor type, FieldSet<FieldDescriptor> fields,
+  DynamicMessage(Descriptor type, Object[] values,
+                 FieldSet<FieldDescriptor> extensions,
                  FieldDescriptor[] oneofCases,
                  UnknownFieldSet unknownFields) {
     this.type = type;
-    this.fields = fields;
+    this.values = values;
+    this.extensions = extensions;
     this.oneofCases = oneofCases;
     this.unknownFields = unknownFields;
   }
@@ -80,7 +93,9 @@ public final class DynamicMessage extends AbstractMessage {
   public static DynamicMessage getDefaultInstance(Descriptor type) {
     int oneofDeclCount = type.toProto().getOneofDeclCount();
     FieldDescriptor[] oneofCases = new FieldDescriptor[oneofDeclCount];
-    return new DynamicMessage(type, FieldSet.<FieldDescriptor>emptySet(),
+    return new DynamicMessage(type,
+                              new Object[type.getFieldsInNumberOrder().length],
+                              FieldSet.<FieldDescriptor>emptySet(),
                               oneofCases,
                               UnknownFieldSet.getDefaultInstance());
   }
@@ -169,7 +184,12 @@ public final class DynamicMessage extends AbstractMessage {
 
   @Override
   public Map<FieldDescriptor, Object> getAllFields() {
-    return fields.getAllFields();
+    Map<FieldDescriptor, Object> result = memoizedAllFields;
+    if (result == null) {
+      result = getAllFields(type, values, extensions);
+      memoizedAllFields = result;
+    }
+    return result;
   }
 
   @Override
@@ -191,35 +211,25 @@ public final class DynamicMessage extends AbstractMessage {
   @Override
   public boolean hasField(FieldDescriptor field) {
     verifyContainingType(field);
-    return fields.hasField(field);
+    return hasValue(values, extensions, field);
   }
 
   @Override
   public Object getField(FieldDescriptor field) {
     verifyContainingType(field);
-    Object result = fields.getField(field);
-    if (result == null) {
-      if (field.isRepeated()) {
-        result = Collections.emptyList();
-      } else if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
-        result = getDefaultInstance(field.getMessageType());
-      } else {
-        result = field.getDefaultValue();
-      }
-    }
-    return result;
+    return getValueOrDefault(field, getValue(values, extensions, field));
   }
 
   @Override
   public int getRepeatedFieldCount(FieldDescriptor field) {
     verifyContainingType(field);
-    return fields.getRepeatedFieldCount(field);
+    return getRepeatedValueCount(values, extensions, field);
   }
 
   @Override
   public Object getRepeatedField(FieldDescriptor field, int index) {
     verifyContainingType(field);
-    return fields.getRepeatedField(field, index);
+    return getRepeatedValue(values, extensions, field, index);
   }
 
   @Override
@@ -227,33 +237,51 @@ public final class DynamicMessage extends AbstractMessage {
     return unknownFields;
   }
 
-  static boolean isInitialized(Descriptor type,
-                               FieldSet<FieldDescriptor> fields) {
-    // Check that all required fields are present.
-    for (final FieldDescriptor field : type.getFields()) {
-      if (field.isRequired()) {
-        if (!fields.hasField(field)) {
-          return false;
-        }
-      }
-    }
-
-    // Check that embedded messages are initialized.
-    return fields.isInitialized();
-  }
-
   @Override
   public boolean isInitialized() {
-    return isInitialized(type, fields);
+    return isInitialized(type, values, extensions);
   }
 
   @Override
   public void writeTo(CodedOutputStream output) throws IOException {
     if (type.getOptions().getMessageSetWireFormat()) {
-      fields.writeMessageSetTo(output);
+      for (FieldDescriptor field : type.getFieldsInNumberOrder()) {
+        Object value = values[field.getIndex()];
+        if (value != null) {
+          FieldSet.writeField(field, value, output);
+        }
+      }
+      extensions.writeMessageSetTo(output);
       unknownFields.writeAsMessageSetTo(output);
+    } else if (extensions.isEmpty()) {
+      for (FieldDescriptor field : type.getFieldsInNumberOrder()) {
+        Object value = values[field.getIndex()];
+        if (value != null) {
+          FieldSet.writeField(field, value, output);
+        }
+      }
+      unknownFields.writeTo(output);
     } else {
-      fields.writeTo(output);
+      // Interleave the fields with the extensions, in number order.
+      Iterator<Map.Entry<FieldDescriptor, Object>> extensionIterator =
+          extensions.iterator();
+      Map.Entry<FieldDescriptor, Object> extension = extensionIterator.next();
+      for (FieldDescriptor field : type.getFieldsInNumberOrder()) {
+        Object value = values[field.getIndex()];
+        if (value == null) {
+          continue;
+        }
+        while (extension != null
+            && extension.getKey().getNumber() < field.getNumber()) {
+          FieldSet.writeField(extension.getKey(), extension.getValue(), output);
+          extension = extensionIterator.hasNext() ? extensionIterator.next() : null;
+        }
+        FieldSet.writeField(field, value, output);
+      }
+      while (extension != null) {
+        FieldSet.writeField(extension.getKey(), extension.getValue(), output);
+        extension = extensionIterator.hasNext() ? extensionIterator.next() : null;
+      }
       unknownFields.writeTo(output);
     }
   }
@@ -263,11 +291,18 @@ public final class DynamicMessage extends AbstractMessage {
     int size = memoizedSize;
     if (size != -1) return size;
 
+    size = 0;
+    for (FieldDescriptor field : type.getFieldsInNumberOrder()) {
+      Object value = values[field.getIndex()];
+      if (value != null) {
+        size += FieldSet.computeFieldSize(field, value);
+      }
+    }
     if (type.getOptions().getMessageSetWireFormat()) {
-      size = fields.getMessageSetSerializedSize();
+      size += extensions.getMessageSetSerializedSize();
       size += unknownFields.getSerializedSizeAsMessageSet();
     } else {
-      size = fields.getSerializedSize();
+      size += extensions.getSerializedSize();
       size += unknownFields.getSerializedSize();
     }
 
@@ -322,6 +357,112 @@ public final class DynamicMessage extends AbstractMessage {
     }
   }
 
+  // -----------------------------------------------------------------
+  // Field access shared by DynamicMessage and its Builder.
+
+  /** Returns the value of the field, or {@code null} if it is not set. */
+  private static Object getValue(Object[] values,
+                                 FieldSet<FieldDescriptor> extensions,
+                                 FieldDescriptor field) {
+    return field.isExtension()
+        ? extensions.getField(field) : values[field.getIndex()];
+  }
+
+  private static Object getValueOrDefault(FieldDescriptor field, Object value) {
+    if (value == null) {
+      if (field.isRepeated()) {
+        value = Collections.emptyList();
+      } else if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
+        value = getDefaultInstance(field.getMessageType());
+      } else {
+        value = field.getDefaultValue();
+      }
+    }
+    return value;
+  }
+
+  private static boolean hasValue(Object[] values,
+                                  FieldSet<FieldDescriptor> extensions,
+                                  FieldDescriptor field) {
+    if (field.isRepeated()) {
+      throw new IllegalArgumentException(
+        "hasField() can only be called on non-repeated fields.");
+    }
+    return getValue(values, extensions, field) != null;
+  }
+
+  private static int getRepeatedValueCount(Object[] values,
+                                           FieldSet<FieldDescriptor> extensions,
+                                           FieldDescriptor field) {
+    if (!field.isRepeated()) {
+      throw new IllegalArgumentException(
+        "getRepeatedField() can only be called on repeated fields.");
+    }
+    Object value = getValue(values, extensions, field);
+    return value == null ? 0 : ((List<?>) value).size();
+  }
+
+  private static Object getRepeatedValue(Object[] values,
+                                         FieldSet<FieldDescriptor> extensions,
+                                         FieldDescriptor field, int index) {
+    if (!field.isRepeated()) {
+      throw new IllegalArgumentException(
+        "getRepeatedField() can only be called on repeated fields.");
+    }
+    Object value = getValue(values, extensions, field);
+    if (value == null) {
+      throw new IndexOutOfBoundsException();
+    }
+    return ((List<?>) value).get(index);
+  }
+
+  private static Map<FieldDescriptor, Object> getAllFields(
+      Descriptor type, Object[] values, FieldSet<FieldDescriptor> extensions) {
+    TreeMap<FieldDescriptor, Object> result =
+        new TreeMap<FieldDescriptor, Object>();
+    for (FieldDescriptor field : type.getFieldsInNumberOrder()) {
+      Object value = values[field.getIndex()];
+      if (value != null) {
+        result.put(field, value);
+      }
+    }
+    result.putAll(extensions.getAllFields());
+    return Collections.unmodifiableMap(result);
+  }
+
+  private static boolean isInitialized(Descriptor type, Object[] values,
+                                       FieldSet<FieldDescriptor> extensions) {
+    for (FieldDescriptor field : type.getFieldsInNumberOrder()) {
+      Object value = values[field.getIndex()];
+      if (value == null) {
+        // Check that all required fields are present.
+        if (field.isRequired()) {
+          return false;
+        }
+      } else if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
+        // Check that embedded messages are initialized.
+        if (field.isRepeated()) {
+          for (Object element : (List<?>) value) {
+            if (!((MessageLite) element).isInitialized()) {
+              return false;
+            }
+          }
+        } else if (!((MessageLite) value).isInitialized()) {
+          return false;
+        }
+      }
+    }
+    return extensions.isInitialized();
+  }
+
+  /** Copies byte arrays, the only mutable values a field can have. */
+  private static Object cloneIfMutable(Object value) {
+    if (value instanceof byte[]) {
+      return ((byte[]) value).clone();
+    }
+    return value;
+  }
+
   // =================================================================
 
   /**
@@ -329,14 +470,19 @@ public final class DynamicMessage extends AbstractMessage {
    */
   public static final class Builder extends AbstractMessage.Builder<Builder> {
     private final Descriptor type;
-    private FieldSet<FieldDescriptor> fields;
+    private Object[] values;
+    // Whether values, and the lists in it, are shared with a built message,
+    // and must be copied before they change.
+    private boolean valuesShared;
+    private FieldSet<FieldDescriptor> extensions;
     private final FieldDescriptor[] oneofCases;
     private UnknownFieldSet unknownFields;
 
     /** Construct a {@code Builder} for the given type. */
     private Builder(Descriptor type) {
       this.type = type;
-      this.fields = FieldSet.newFieldSet();
+      this.values = new Object[type.getFieldsInNumberOrder().length];
+      this.extensions = FieldSet.newFieldSet();
       this.unknownFields = UnknownFieldSet.getDefaultInstance();
       this.oneofCases = new FieldDescriptor[type.toProto().getOneofDeclCount()];
     }
@@ -346,11 +492,14 @@ public final class DynamicMessage extends AbstractMessage {
 
     @Override
     public Builder clear() {
-      if (fields.isImmutable()) {
-        fields = FieldSet.newFieldSet();
+      values = new Object[values.length];
+      valuesShared = false;
+      if (extensions.isImmutable()) {
+        extensions = FieldSet.newFieldSet();
       } else {
-        fields.clear();
+        extensions.clear();
       }
+      Arrays.fill(oneofCases, null);
       unknownFields = UnknownFieldSet.getDefaultInstance();
       return this;
     }
@@ -365,7 +514,13 @@ public final class DynamicMessage extends AbstractMessage {
             "mergeFrom(Message) can only merge messages of the same type.");
         }
         ensureIsMutable();
-        fields.mergeFrom(otherDynamicMessage.fields);
+        for (FieldDescriptor field : type.getFieldsInNumberOrder()) {
+          Object otherValue = otherDynamicMessage.values[field.getIndex()];
+          if (otherValue != null) {
+            mergeValue(field, otherValue);
+          }
+        }
+        extensions.mergeFrom(otherDynamicMessage.extensions);
         mergeUnknownFields(otherDynamicMessage.unknownFields);
         for (int i = 0; i < oneofCases.length; i++) {
           if (oneofCases[i] == null) {
@@ -373,7 +528,7 @@ public final class DynamicMessage extends AbstractMessage {
           } else {
             if ((otherDynamicMessage.oneofCases[i] != null)
                 && (oneofCases[i] != otherDynamicMessage.oneofCases[i])) {
-              fields.clearField(oneofCases[i]);
+              clearValue(oneofCases[i]);
               oneofCases[i] = otherDynamicMessage.oneofCases[i];
             }
           }
@@ -384,12 +539,164 @@ public final class DynamicMessage extends AbstractMessage {
       }
     }
 
+    /** Merges a value of another message into the field, as mergeFrom() does. */
+    @SuppressWarnings("unchecked")
+    private void mergeValue(FieldDescriptor field, Object otherValue) {
+      int index = field.getIndex();
+      Object value = values[index];
+      if (field.isRepeated()) {
+        List<Object> list = (List<Object>) value;
+        if (list == null) {
+          list = new ArrayList<Object>();
+          values[index] = list;
+        }
+        for (Object element : (List<?>) otherValue) {
+          list.add(cloneIfMutable(element));
+        }
+      } else if (value != null
+          && field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
+        values[index] = field.internalMergeFrom(
+            ((MessageLite) value).toBuilder(), (MessageLite) otherValue).build();
+      } else {
+        values[index] = cloneIfMutable(otherValue);
+      }
+    }
+
+    @Override
+    public Builder mergeFrom(
+        CodedInputStream input, ExtensionRegistryLite extensionRegistry)
+        throws IOException {
+      // The type's own fields are decoded as the schema says and stored
+      // directly; everything else goes through MessageReflection.
+      DynamicMessageSchema schema = type.getDynamicMessageSchema();
+      boolean discardUnknown =
+          type.getFile().getSyntax() == Descriptors.FileDescriptor.Syntax.PROTO3
+              ? input.shouldDiscardUnknownFieldsProto3()
+              : input.shouldDiscardUnknownFields();
+      UnknownFieldSet.Builder unknownFieldsBuilder =
+          discardUnknown ? null : UnknownFieldSet.newBuilder(unknownFields);
+      MessageReflection.BuilderAdapter builderAdapter = null;
+      while (true) {
+        int tag = input.readTag();
+        if (tag == 0) {
+          break;
+        }
+
+        DynamicMessageSchema.FieldInfo info = schema.findFieldInfoByTag(tag);
+        if (info == null) {
+          if (builderAdapter == null) {
+            builderAdapter = new MessageReflection.BuilderAdapter(this);
+          }
+          if (!MessageReflection.mergeFieldFrom(input, unknownFieldsBuilder,
+                                                extensionRegistry, type,
+                                                builderAdapter, tag)) {
+            // end group tag
+            break;
+          }
+        } else if (tag == info.tag) {
+          readField(input, extensionRegistry, info, unknownFieldsBuilder);
+        } else {
+          int length = input.readRawVarint32();
+          int limit = input.pushLimit(length);
+          while (input.getBytesUntilLimit() > 0) {
+            storeValue(info, WireFormat.readPrimitiveField(
+                input, info.field.getLiteType(), info.utf8Validation));
+          }
+          input.popLimit(limit);
+        }
+      }
+      if (unknownFieldsBuilder != null) {
+        setUnknownFields(unknownFieldsBuilder.build());
+      }
+      return this;
+    }
+
+    /** Reads one unpacked value of a field, as MessageReflection would. */
+    private void readField(CodedInputStream input,
+                           ExtensionRegistryLite extensionRegistry,
+                           DynamicMessageSchema.FieldInfo info,
+                           UnknownFieldSet.Builder unknownFieldsBuilder)
+        throws IOException {
+      FieldDescriptor field = info.field;
+      Object value;
+      switch (field.getLiteType()) {
+        case GROUP:
+        case MESSAGE: {
+          Builder subBuilder = new Builder(field.getMessageType());
+          Object originalMessage =
+              field.isRepeated() ? null : values[field.getIndex()];
+          if (originalMessage != null) {
+            subBuilder.mergeFrom((Message) originalMessage);
+          }
+          if (field.getLiteType() == WireFormat.FieldType.GROUP) {
+            input.readGroup(field.getNumber(), subBuilder, extensionRegistry);
+          } else {
+            input.readMessage(subBuilder, extensionRegistry);
+          }
+          value = subBuilder.buildPartial();
+          break;
+        }
+        case ENUM: {
+          int rawValue = input.readEnum();
+          if (info.openEnum) {
+            value = field.getEnumType().findValueByNumberCreatingIfUnknown(rawValue);
+          } else {
+            value = field.getEnumType().findValueByNumber(rawValue);
+            // If the number isn't recognized as a valid value for this enum,
+            // drop it.
+            if (value == null) {
+              if (unknownFieldsBuilder != null) {
+                unknownFieldsBuilder.mergeVarintField(field.getNumber(), rawValue);
+              }
+              return;
+            }
+          }
+          break;
+        }
+        default:
+          value = WireFormat.readPrimitiveField(
+              input, field.getLiteType(), info.utf8Validation);
+          break;
+      }
+      storeValue(info, value);
+    }
+
+    /**
+     * Stores a parsed value the way setField() or addRepeatedField() would,
+     * without checking a type the parser already got right.
+     */
+    @SuppressWarnings("unchecked")
+    private void storeValue(DynamicMessageSchema.FieldInfo info, Object value) {
+      ensureIsMutable();
+      FieldDescriptor field = info.field;
+      int index = field.getIndex();
+      if (field.isRepeated()) {
+        List<Object> list = (List<Object>) values[index];
+        if (list == null) {
+          list = new ArrayList<Object>();
+          values[index] = list;
+        }
+        list.add(value);
+        return;
+      }
+      OneofDescriptor oneofDescriptor = field.getContainingOneof();
+      if (oneofDescriptor != null) {
+        FieldDescriptor oldField = oneofCases[oneofDescriptor.getIndex()];
+        if ((oldField != null) && (oldField != field)) {
+          clearValue(oldField);
+        }
+        oneofCases[oneofDescriptor.getIndex()] = field;
+      } else if (info.defaultClearsField && value.equals(field.getDefaultValue())) {
+        // In proto3, setting a field to its default value is equivalent to clearing the field.
+        value = null;
+      }
+      values[index] = value;
+    }
+
     @Override
     public DynamicMessage build() {
       if (!isInitialized()) {
-        throw newUninitializedMessageException(
-          new DynamicMessage(type, fields,
-              java.util.Arrays.copyOf(oneofCases, oneofCases.length), unknownFields));
+        throw newUninitializedMessageException(buildPartial());
       }
       return buildPartial();
     }
@@ -401,9 +708,7 @@ public final class DynamicMessage extends AbstractMessage {
      */
     private DynamicMessage buildParsed() throws InvalidProtocolBufferException {
       if (!isInitialized()) {
-        throw newUninitializedMessageException(
-          new DynamicMessage(type, fields,
-              java.util.Arrays.copyOf(oneofCases, oneofCases.length), unknownFields))
+        throw newUninitializedMessageException(buildPartial())
           .asInvalidProtocolBufferException();
       }
       return buildPartial();
@@ -411,9 +716,17 @@ public final class DynamicMessage extends AbstractMessage {
 
     @Override
     public DynamicMessage buildPartial() {
-      fields.makeImmutable();
+      if (!valuesShared) {
+        for (int i = 0; i < values.length; i++) {
+          if (values[i] instanceof List) {
+            values[i] = Collections.unmodifiableList((List<?>) values[i]);
+          }
+        }
+        valuesShared = true;
+      }
+      extensions.makeImmutable();
       DynamicMessage result =
-        new DynamicMessage(type, fields,
+        new DynamicMessage(type, values, extensions,
             java.util.Arrays.copyOf(oneofCases, oneofCases.length), unknownFields);
       return result;
     }
@@ -421,7 +734,19 @@ public final class DynamicMessage extends AbstractMessage {
     @Override
     public Builder clone() {
       Builder result = new Builder(type);
-      result.fields.mergeFrom(fields);
+      for (int i = 0; i < values.length; i++) {
+        Object value = values[i];
+        if (value instanceof List) {
+          List<Object> list = new ArrayList<Object>();
+          for (Object element : (List<?>) value) {
+            list.add(cloneIfMutable(element));
+          }
+          result.values[i] = list;
+        } else {
+          result.values[i] = cloneIfMutable(value);
+        }
+      }
+      result.extensions.mergeFrom(extensions);
       result.mergeUnknownFields(unknownFields);
       System.arraycopy(oneofCases, 0, result.oneofCases, 0 , oneofCases.length);
       return result;
@@ -429,7 +754,7 @@ public final class DynamicMessage extends AbstractMessage {
 
     @Override
     public boolean isInitialized() {
-      return DynamicMessage.isInitialized(type, fields);
+      return DynamicMessage.isInitialized(type, values, extensions);
     }
 
     @Override
@@ -444,7 +769,7 @@ public final class DynamicMessage extends AbstractMessage {
 
     @Override
     public Map<FieldDescriptor, Object> getAllFields() {
-      return fields.getAllFields();
+      return DynamicMessage.getAllFields(type, values, extensions);
     }
 
     @Override
@@ -488,23 +813,13 @@ public final class DynamicMessage extends AbstractMessage {
     @Override
     public boolean hasField(FieldDescriptor field) {
       verifyContainingType(field);
-      return fields.hasField(field);
+      return hasValue(values, extensions, field);
     }
 
     @Override
     public Object getField(FieldDescriptor field) {
       verifyContainingType(field);
-      Object result = fields.getField(field);
-      if (result == null) {
-        if (field.isRepeated()) {
-          result = Collections.emptyList();
-        } else if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
-          result = getDefaultInstance(field.getMessageType());
-        } else {
-          result = field.getDefaultValue();
-        }
-      }
-      return result;
+      return getValueOrDefault(field, getValue(values, extensions, field));
     }
 
     @Override
@@ -524,7 +839,7 @@ public final class DynamicMessage extends AbstractMessage {
         int index = oneofDescriptor.getIndex();
         FieldDescriptor oldField = oneofCases[index];
         if ((oldField != null) && (oldField != field)) {
-          fields.clearField(oldField);
+          clearValue(oldField);
         }
         oneofCases[index] = field;
       } else if (field.getFile().getSyntax() == Descriptors.FileDescriptor.Syntax.PROTO3) {
@@ -532,11 +847,30 @@ public final class DynamicMessage extends AbstractMessage {
             && field.getJavaType() != FieldDescriptor.JavaType.MESSAGE
             && value.equals(field.getDefaultValue())) {
           // In proto3, setting a field to its default value is equivalent to clearing the field.
-          fields.clearField(field);
+          clearValue(field);
           return this;
         }
       }
-      fields.setField(field, value);
+      if (field.isExtension()) {
+        extensions.setField(field, value);
+      } else if (field.isRepeated()) {
+        if (!(value instanceof List)) {
+          throw new IllegalArgumentException(
+            "Wrong object type used with protocol message reflection.");
+        }
+        // Copy the list so that the caller cannot change it afterwards.
+        List<Object> list = new ArrayList<Object>((List<?>) value);
+        for (Object element : list) {
+          FieldSet.verifyType(field.getLiteType(), element);
+        }
+        values[field.getIndex()] = list;
+      } else {
+        FieldSet.verifyType(field.getLiteType(), value);
+        if (value instanceof LazyField) {
+          value = ((LazyField) value).getValue();
+        }
+        values[field.getIndex()] = value;
+      }
       return this;
     }
 
@@ -551,35 +885,72 @@ public final class DynamicMessage extends AbstractMessage {
           oneofCases[index] = null;
         }
       }
-      fields.clearField(field);
+      clearValue(field);
       return this;
     }
 
+    private void clearValue(FieldDescriptor field) {
+      if (field.isExtension()) {
+        extensions.clearField(field);
+      } else {
+        values[field.getIndex()] = null;
+      }
+    }
+
     @Override
     public int getRepeatedFieldCount(FieldDescriptor field) {
       verifyContainingType(field);
-      return fields.getRepeatedFieldCount(field);
+      return getRepeatedValueCount(values, extensions, field);
     }
 
     @Override
     public Object getRepeatedField(FieldDescriptor field, int index) {
       verifyContainingType(field);
-      return fields.getRepeatedField(field, index);
+      return getRepeatedValue(values, extensions, field, index);
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public Builder setRepeatedField(FieldDescriptor field, int index, Object value) {
       verifyContainingType(field);
       ensureIsMutable();
-      fields.setRepeatedField(field, index, value);
+      if (field.isExtension()) {
+        extensions.setRepeatedField(field, index, value);
+        return this;
+      }
+      if (!field.isRepeated()) {
+        throw new IllegalArgumentException(
+          "getRepeatedField() can only be called on repeated fields.");
+      }
+      List<Object> list = (List<Object>) values[field.getIndex()];
+      if (list == null) {
+        throw new IndexOutOfBoundsException();
+      }
+      FieldSet.verifyType(field.getLiteType(), value);
+      list.set(index, value);
       return this;
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public Builder addRepeatedField(FieldDescriptor field, Object value) {
       verifyContainingType(field);
       ensureIsMutable();
-      fields.addRepeatedField(field, value);
+      if (field.isExtension()) {
+        extensions.addRepeatedField(field, value);
+        return this;
+      }
+      if (!field.isRepeated()) {
+        throw new IllegalArgumentException(
+          "addRepeatedField() can only be called on repeated fields.");
+      }
+      FieldSet.verifyType(field.getLiteType(), value);
+      List<Object> list = (List<Object>) values[field.getIndex()];
+      if (list == null) {
+        list = new ArrayList<Object>();
+        values[field.getIndex()] = list;
+      }
+      list.add(value);
       return this;
     }
 
@@ -659,8 +1030,17 @@ public final class DynamicMessage extends AbstractMessage {
     }
 
     private void ensureIsMutable() {
-      if (fields.isImmutable()) {
-        fields = fields.clone();
+      if (valuesShared) {
+        Object[] copy = new Object[values.length];
+        for (int i = 0; i < values.length; i++) {
+          Object value = values[i];
+          copy[i] = value instanceof List ? new ArrayList<Object>((List<?>) value) : value;
+        }
+        values = copy;
+        valuesShared = false;
+      }
+      if (extensions.isImmutable()) {
+        extensions = extensions.clone();
       }
     }
 
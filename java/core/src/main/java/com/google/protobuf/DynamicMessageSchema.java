@@ -0,0 +1,111 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// https://developers.google.com/protocol-buffers/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.google.protobuf;
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+
+/**
+ * The parsing plan of a message type, used by {@link DynamicMessage} to decode
+ * the type's own fields straight into its builder instead of going through
+ * {@link MessageReflection}. Everything that depends only on the field, such
+ * as its expected tags, its UTF-8 validation and how its values are stored, is
+ * worked out once per {@link Descriptor}; see
+ * {@link Descriptor#getDynamicMessageSchema()}.
+ */
+final class DynamicMessageSchema {
+
+  /** How a field of the message type is decoded. */
+  static final class FieldInfo {
+    final FieldDescriptor field;
+    /** The tag of an unpacked value of the field. */
+    final int tag;
+    /** The tag of a packed run of values, or 0 if they are not decoded here. */
+    final int packedTag;
+    final WireFormat.Utf8Validation utf8Validation;
+    /** Whether unknown enum values are kept rather than dropped. */
+    final boolean openEnum;
+    /** Whether setting the default value clears the field, as in proto3. */
+    final boolean defaultClearsField;
+
+    FieldInfo(FieldDescriptor field) {
+      this.field = field;
+      WireFormat.FieldType type = field.getLiteType();
+      this.tag = WireFormat.makeTag(field.getNumber(), type.getWireType());
+      // Packed enums go through MessageReflection, which handles unknown values.
+      this.packedTag = field.isPackable() && type != WireFormat.FieldType.ENUM
+          ? WireFormat.makeTag(field.getNumber(), WireFormat.WIRETYPE_LENGTH_DELIMITED)
+          : 0;
+      this.utf8Validation = field.needsUtf8Check()
+          ? WireFormat.Utf8Validation.STRICT : WireFormat.Utf8Validation.LOOSE;
+      this.openEnum = type == WireFormat.FieldType.ENUM
+          && field.getFile().supportsUnknownEnumValue();
+      this.defaultClearsField =
+          field.getFile().getSyntax() == Descriptors.FileDescriptor.Syntax.PROTO3
+          && field.getContainingOneof() == null
+          && !field.isRepeated()
+          && field.getJavaType() != FieldDescriptor.JavaType.MESSAGE;
+    }
+  }
+
+  private final Descriptor type;
+  // Indexed by FieldDescriptor.getIndex().
+  private final FieldInfo[] fields;
+  private final boolean messageSetWireFormat;
+
+  DynamicMessageSchema(Descriptor type) {
+    this.type = type;
+    this.fields = new FieldInfo[type.getFields().size()];
+    for (FieldDescriptor field : type.getFields()) {
+      fields[field.getIndex()] = new FieldInfo(field);
+    }
+    this.messageSetWireFormat = type.getOptions().getMessageSetWireFormat();
+  }
+
+  /**
+   * Returns how to decode the value that follows {@code tag}, or {@code null}
+   * if the tag is not one of the message type's own fields with the wire type
+   * it is decoded with here. Such tags, which include extensions and unknown
+   * fields, are left to {@link MessageReflection}.
+   */
+  FieldInfo findFieldInfoByTag(int tag) {
+    if (messageSetWireFormat) {
+      return null;
+    }
+    FieldDescriptor field = type.findFieldByNumber(WireFormat.getTagFieldNumber(tag));
+    if (field == null) {
+      return null;
+    }
+    FieldInfo info = fields[field.getIndex()];
+    return tag == info.tag || tag == info.packedTag ? info : null;
+  }
+}
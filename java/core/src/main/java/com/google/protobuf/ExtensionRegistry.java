@@ -180,8 +180,7 @@ public class ExtensionRegistry extends ExtensionRegistryLite {
    */
   public ExtensionInfo findImmutableExtensionByNumber(
       final Descriptor containingType, final int fieldNumber) {
-    return immutableExtensionsByNumber.get(
-      new DescriptorIntPair(containingType, fieldNumber));
+    return immutableExtensionsByNumber.get(containingType, fieldNumber);
   }
 
   /**
@@ -192,8 +191,7 @@ public class ExtensionRegistry extends ExtensionRegistryLite {
    */
   public ExtensionInfo findMutableExtensionByNumber(
       final Descriptor containingType, final int fieldNumber) {
-    return mutableExtensionsByNumber.get(
-        new DescriptorIntPair(containingType, fieldNumber));
+    return mutableExtensionsByNumber.get(containingType, fieldNumber);
   }
 
   /**
@@ -206,9 +204,9 @@ public class ExtensionRegistry extends ExtensionRegistryLite {
    */
   public Set<ExtensionInfo> getAllMutableExtensionsByExtendedType(final String fullName) {
     HashSet<ExtensionInfo> extensions = new HashSet<ExtensionInfo>();
-    for (DescriptorIntPair pair : mutableExtensionsByNumber.keySet()) {
-      if (pair.descriptor.getFullName().equals(fullName)) {
-        extensions.add(mutableExtensionsByNumber.get(pair));
+    for (ExtensionInfo extension : mutableExtensionsByNumber.values()) {
+      if (extension.descriptor.getContainingType().getFullName().equals(fullName)) {
+        extensions.add(extension);
       }
     }
     return extensions;
@@ -224,9 +222,9 @@ public class ExtensionRegistry extends ExtensionRegistryLite {
    */
   public Set<ExtensionInfo> getAllImmutableExtensionsByExtendedType(final String fullName) {
     HashSet<ExtensionInfo> extensions = new HashSet<ExtensionInfo>();
-    for (DescriptorIntPair pair : immutableExtensionsByNumber.keySet()) {
-      if (pair.descriptor.getFullName().equals(fullName)) {
-        extensions.add(immutableExtensionsByNumber.get(pair));
+    for (ExtensionInfo extension : immutableExtensionsByNumber.values()) {
+      if (extension.descriptor.getContainingType().getFullName().equals(fullName)) {
+        extensions.add(extension);
       }
     }
     return extensions;
@@ -291,10 +289,8 @@ public class ExtensionRegistry extends ExtensionRegistryLite {
   private ExtensionRegistry() {
     this.immutableExtensionsByName = new HashMap<String, ExtensionInfo>();
     this.mutableExtensionsByName = new HashMap<String, ExtensionInfo>();
-    this.immutableExtensionsByNumber =
-        new HashMap<DescriptorIntPair, ExtensionInfo>();
-    this.mutableExtensionsByNumber =
-        new HashMap<DescriptorIntPair, ExtensionInfo>();
+    this.immutableExtensionsByNumber = new ObjectIntMap<ExtensionInfo>();
+    this.mutableExtensionsByNumber = new ObjectIntMap<ExtensionInfo>();
   }
 
   private ExtensionRegistry(ExtensionRegistry other) {
@@ -303,16 +299,16 @@ public class ExtensionRegistry extends ExtensionRegistryLite {
         Collections.unmodifiableMap(other.immutableExtensionsByName);
     this.mutableExtensionsByName =
         Collections.unmodifiableMap(other.mutableExtensionsByName);
-    this.immutableExtensionsByNumber =
-        Collections.unmodifiableMap(other.immutableExtensionsByNumber);
-    this.mutableExtensionsByNumber =
-            Collections.unmodifiableMap(other.mutableExtensionsByNumber);
+    // Additions are rejected by the unmodifiable name maps above, so the
+    // number maps can be shared as they are.
+    this.immutableExtensionsByNumber = other.immutableExtensionsByNumber;
+    this.mutableExtensionsByNumber = other.mutableExtensionsByNumber;
   }
 
   private final Map<String, ExtensionInfo> immutableExtensionsByName;
   private final Map<String, ExtensionInfo> mutableExtensionsByName;
-  private final Map<DescriptorIntPair, ExtensionInfo> immutableExtensionsByNumber;
-  private final Map<DescriptorIntPair, ExtensionInfo> mutableExtensionsByNumber;
+  private final ObjectIntMap<ExtensionInfo> immutableExtensionsByNumber;
+  private final ObjectIntMap<ExtensionInfo> mutableExtensionsByNumber;
 
   ExtensionRegistry(boolean empty) {
     super(EMPTY_REGISTRY_LITE);
@@ -320,10 +316,8 @@ public class ExtensionRegistry extends ExtensionRegistryLite {
         Collections.<String, ExtensionInfo>emptyMap();
     this.mutableExtensionsByName =
         Collections.<String, ExtensionInfo>emptyMap();
-    this.immutableExtensionsByNumber =
-        Collections.<DescriptorIntPair, ExtensionInfo>emptyMap();
-    this.mutableExtensionsByNumber =
-            Collections.<DescriptorIntPair, ExtensionInfo>emptyMap();
+    this.immutableExtensionsByNumber = new ObjectIntMap<ExtensionInfo>();
+    this.mutableExtensionsByNumber = new ObjectIntMap<ExtensionInfo>();
   }
   static final ExtensionRegistry EMPTY_REGISTRY = new ExtensionRegistry(true);
 
@@ -337,7 +331,7 @@ public class ExtensionRegistry extends ExtensionRegistryLite {
     }
 
     Map<String, ExtensionInfo> extensionsByName;
-    Map<DescriptorIntPair, ExtensionInfo> extensionsByNumber;
+    ObjectIntMap<ExtensionInfo> extensionsByNumber;
     switch (extensionType) {
       case IMMUTABLE:
         extensionsByName = immutableExtensionsByName;
@@ -354,8 +348,8 @@ public class ExtensionRegistry extends ExtensionRegistryLite {
 
     extensionsByName.put(extension.descriptor.getFullName(), extension);
     extensionsByNumber.put(
-      new DescriptorIntPair(extension.descriptor.getContainingType(),
-                            extension.descriptor.getNumber()),
+      extension.descriptor.getContainingType(),
+      extension.descriptor.getNumber(),
       extension);
 
     final FieldDescriptor field = extension.descriptor;
@@ -369,28 +363,4 @@ public class ExtensionRegistry extends ExtensionRegistryLite {
       extensionsByName.put(field.getMessageType().getFullName(), extension);
     }
   }
-
-  /** A (GenericDescriptor, int) pair, used as a map key. */
-  private static final class DescriptorIntPair {
-    private final Descriptor descriptor;
-    private final int number;
-
-    DescriptorIntPair(final Descriptor descriptor, final int number) {
-      this.descriptor = descriptor;
-      this.number = number;
-    }
-
-    @Override
-    public int hashCode() {
-      return descriptor.hashCode() * ((1 << 16) - 1) + number;
-    }
-    @Override
-    public boolean equals(final Object obj) {
-      if (!(obj instanceof DescriptorIntPair)) {
-        return false;
-      }
-      final DescriptorIntPair other = (DescriptorIntPair)obj;
-      return descriptor == other.descriptor && number == other.number;
-    }
-  }
 }
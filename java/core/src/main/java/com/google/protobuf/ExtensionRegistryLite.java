@@ -30,9 +30,8 @@
 
 package com.google.protobuf;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Equivalent to {@link ExtensionRegistry} but supports only "lite" types.
@@ -140,16 +139,17 @@ public class ExtensionRegistryLite {
           final ContainingType containingTypeDefaultInstance,
           final int fieldNumber) {
     return (GeneratedMessageLite.GeneratedExtension<ContainingType, ?>)
-      extensionsByNumber.get(
-        new ObjectIntPair(containingTypeDefaultInstance, fieldNumber));
+      extensionsByNumber.get(containingTypeDefaultInstance, fieldNumber);
   }
 
   /** Add an extension from a lite generated file to the registry. */
   public final void add(
       final GeneratedMessageLite.GeneratedExtension<?, ?> extension) {
+    if (unmodifiable) {
+      throw new UnsupportedOperationException();
+    }
     extensionsByNumber.put(
-      new ObjectIntPair(extension.getContainingTypeDefaultInstance(),
-                        extension.getNumber()),
+      extension.getContainingTypeDefaultInstance(), extension.getNumber(),
       extension);
   }
 
@@ -178,50 +178,121 @@ public class ExtensionRegistryLite {
 
   ExtensionRegistryLite() {
     this.extensionsByNumber =
-        new HashMap<ObjectIntPair,
-                    GeneratedMessageLite.GeneratedExtension<?, ?>>();
+        new ObjectIntMap<GeneratedMessageLite.GeneratedExtension<?, ?>>();
+    this.unmodifiable = false;
   }
   static final ExtensionRegistryLite EMPTY_REGISTRY_LITE =
       new ExtensionRegistryLite(true);
 
   ExtensionRegistryLite(ExtensionRegistryLite other) {
-    if (other == EMPTY_REGISTRY_LITE) {
-      this.extensionsByNumber = Collections.emptyMap();
-    } else {
-      this.extensionsByNumber =
-        Collections.unmodifiableMap(other.extensionsByNumber);
-    }
+    // The view shares the other registry's table, and so sees what is added
+    // to it later.
+    this.extensionsByNumber = other.extensionsByNumber;
+    this.unmodifiable = true;
   }
 
-  private final Map<ObjectIntPair,
-                    GeneratedMessageLite.GeneratedExtension<?, ?>>
+  private final ObjectIntMap<GeneratedMessageLite.GeneratedExtension<?, ?>>
       extensionsByNumber;
+  private final boolean unmodifiable;
 
   ExtensionRegistryLite(boolean empty) {
-    this.extensionsByNumber = Collections.emptyMap();
+    this.extensionsByNumber =
+        new ObjectIntMap<GeneratedMessageLite.GeneratedExtension<?, ?>>();
+    this.unmodifiable = true;
   }
 
-  /** A (Object, int) pair, used as a map key. */
-  private static final class ObjectIntPair {
-    private final Object object;
-    private final int number;
+  /**
+   * A map from (Object, int) pairs to values, used to find extensions by
+   * containing type and field number. Objects are compared by identity.
+   *
+   * <p>Lookups neither allocate a key nor take a lock. The entries are
+   * immutable and are kept in an open-addressed table that is replaced, not
+   * rehashed in place, when it grows, so a lookup racing with an addition
+   * sees the table either before or after it.
+   */
+  static final class ObjectIntMap<V> {
+    private static final class Entry {
+      final Object object;
+      final int number;
+      final Object value;
 
-    ObjectIntPair(final Object object, final int number) {
-      this.object = object;
-      this.number = number;
+      Entry(Object object, int number, Object value) {
+        this.object = object;
+        this.number = number;
+        this.value = value;
+      }
     }
 
-    @Override
-    public int hashCode() {
-      return System.identityHashCode(object) * ((1 << 16) - 1) + number;
+    // Its length is a power of two, and at most half of it is used.
+    private volatile Entry[] table = new Entry[16];
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    V get(Object object, int number) {
+      final Entry[] table = this.table;
+      final int mask = table.length - 1;
+      for (int i = hash(object, number) & mask; ; i = (i + 1) & mask) {
+        final Entry entry = table[i];
+        if (entry == null) {
+          return null;
+        }
+        if (entry.object == object && entry.number == number) {
+          return (V) entry.value;
+        }
+      }
     }
-    @Override
-    public boolean equals(final Object obj) {
-      if (!(obj instanceof ObjectIntPair)) {
-        return false;
+
+    void put(Object object, int number, V value) {
+      Entry[] table = this.table;
+      if (2 * (size + 1) > table.length) {
+        final Entry[] newTable = new Entry[table.length * 2];
+        for (Entry entry : table) {
+          if (entry != null) {
+            insert(newTable, entry);
+          }
+        }
+        table = newTable;
+        this.table = newTable;
       }
-      final ObjectIntPair other = (ObjectIntPair)obj;
-      return object == other.object && number == other.number;
+      if (insert(table, new Entry(object, number, value))) {
+        size++;
+      }
+    }
+
+    /** Returns the values in the map, in no particular order. */
+    @SuppressWarnings("unchecked")
+    List<V> values() {
+      final List<V> values = new ArrayList<V>(size);
+      for (Entry entry : table) {
+        if (entry != null) {
+          values.add((V) entry.value);
+        }
+      }
+      return values;
+    }
+
+    /**
+     * Stores the entry in the table, replacing any with the same key. Returns
+     * whether the key is new.
+     */
+    private static boolean insert(Entry[] table, Entry entry) {
+      final int mask = table.length - 1;
+      for (int i = hash(entry.object, entry.number) & mask; ; i = (i + 1) & mask) {
+        final Entry existing = table[i];
+        if (existing == null) {
+          table[i] = entry;
+          return true;
+        }
+        if (existing.object == entry.object && existing.number == entry.number) {
+          table[i] = entry;
+          return false;
+        }
+      }
+    }
+
+    private static int hash(Object object, int number) {
+      final int h = System.identityHashCode(object) * ((1 << 16) - 1) + number;
+      return h ^ (h >>> 16);
     }
   }
 }
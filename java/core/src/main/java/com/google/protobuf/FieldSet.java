@@ -389,8 +389,8 @@ final class FieldSet<FieldDescriptorType extends
    *
    * @throws IllegalArgumentException The value is not of the right type.
    */
-  private static void verifyType(final WireFormat.FieldType type,
-                                 final Object value) {
+  static void verifyType(final WireFormat.FieldType type,
+                         final Object value) {
     checkNotNull(value);
 
     boolean isValid = false;
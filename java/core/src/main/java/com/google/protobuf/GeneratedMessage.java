@@ -49,6 +49,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * All generated protocol message classes extend this class.  This class
@@ -2050,8 +2051,8 @@ public abstract class GeneratedMessage extends AbstractMessage
         final String[] camelCaseNames) {
       this.descriptor = descriptor;
       this.camelCaseNames = camelCaseNames;
-      fields = new FieldAccessor[descriptor.getFields().size()];
-      oneofs = new OneofAccessor[descriptor.getOneofs().size()];
+      fields = new AtomicReferenceArray<FieldAccessor>(descriptor.getFields().size());
+      oneofs = new AtomicReferenceArray<OneofAccessor>(descriptor.getOneofs().size());
       initialized = false;
     }
 
@@ -2061,7 +2062,12 @@ public abstract class GeneratedMessage extends AbstractMessage
     }
 
     /**
-     * Ensures the field accessors are initialized. This method is thread-safe.
+     * Ensures the field accessors can be initialized. This method is
+     * thread-safe. The accessor of each field and oneof is created the first
+     * time it is used, so a type with many fields only pays for the ones that
+     * are accessed through reflection. As a result, a generated method that
+     * an accessor needs but the message class lacks is reported when its
+     * field or oneof is first accessed, not by this method.
      *
      * @param messageClass   The message type.
      * @param builderClass   The builder type.
@@ -2073,68 +2079,21 @@ public abstract class GeneratedMessage extends AbstractMessage
       if (initialized) { return this; }
       synchronized (this) {
         if (initialized) { return this; }
-        int fieldsSize = fields.length;
-        for (int i = 0; i < fieldsSize; i++) {
-          FieldDescriptor field = descriptor.getFields().get(i);
-          String containingOneofCamelCaseName = null;
-          if (field.getContainingOneof() != null) {
-            containingOneofCamelCaseName =
-                camelCaseNames[fieldsSize + field.getContainingOneof().getIndex()];
-          }
-          if (field.isRepeated()) {
-            if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
-              if (field.isMapField() && isMapFieldEnabled(field)) {
-                fields[i] = new MapFieldAccessor(
-                    field, camelCaseNames[i], messageClass, builderClass);
-              } else {
-                fields[i] = new RepeatedMessageFieldAccessor(
-                    field, camelCaseNames[i], messageClass, builderClass);
-              }
-            } else if (field.getJavaType() == FieldDescriptor.JavaType.ENUM) {
-              fields[i] = new RepeatedEnumFieldAccessor(
-                  field, camelCaseNames[i], messageClass, builderClass);
-            } else {
-              fields[i] = new RepeatedFieldAccessor(
-                  field, camelCaseNames[i], messageClass, builderClass);
-            }
-          } else {
-            if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
-              fields[i] = new SingularMessageFieldAccessor(
-                  field, camelCaseNames[i], messageClass, builderClass,
-                  containingOneofCamelCaseName);
-            } else if (field.getJavaType() == FieldDescriptor.JavaType.ENUM) {
-              fields[i] = new SingularEnumFieldAccessor(
-                  field, camelCaseNames[i], messageClass, builderClass,
-                  containingOneofCamelCaseName);
-            } else if (field.getJavaType() == FieldDescriptor.JavaType.STRING) {
-              fields[i] = new SingularStringFieldAccessor(
-                  field, camelCaseNames[i], messageClass, builderClass,
-                  containingOneofCamelCaseName);
-            } else {
-              fields[i] = new SingularFieldAccessor(
-                  field, camelCaseNames[i], messageClass, builderClass,
-                  containingOneofCamelCaseName);
-            }
-          }
-        }
-
-        int oneofsSize = oneofs.length;
-        for (int i = 0; i < oneofsSize; i++) {
-          oneofs[i] = new OneofAccessor(
-              descriptor, camelCaseNames[i + fieldsSize],
-              messageClass, builderClass);
-        }
+        this.messageClass = messageClass;
+        this.builderClass = builderClass;
         initialized = true;
-        camelCaseNames = null;
         return this;
       }
     }
 
     private final Descriptor descriptor;
-    private final FieldAccessor[] fields;
-    private String[] camelCaseNames;
-    private final OneofAccessor[] oneofs;
+    private final AtomicReferenceArray<FieldAccessor> fields;
+    private final String[] camelCaseNames;
+    private final AtomicReferenceArray<OneofAccessor> oneofs;
+    // Set, along with the classes, by ensureFieldAccessorsInitialized().
     private volatile boolean initialized;
+    private Class<? extends GeneratedMessage> messageClass;
+    private Class<? extends Builder> builderClass;
 
     /** Get the FieldAccessor for a particular field. */
     private FieldAccessor getField(final FieldDescriptor field) {
@@ -2147,7 +2106,59 @@ public abstract class GeneratedMessage extends AbstractMessage
         throw new IllegalArgumentException(
           "This type does not have extensions.");
       }
-      return fields[field.getIndex()];
+      final int index = field.getIndex();
+      FieldAccessor accessor = fields.get(index);
+      if (accessor == null) {
+        // Racing threads create equivalent accessors; the first one is kept.
+        fields.compareAndSet(index, null, newFieldAccessor(field));
+        accessor = fields.get(index);
+      }
+      return accessor;
+    }
+
+    /** Creates the FieldAccessor for a field of this type. */
+    private FieldAccessor newFieldAccessor(final FieldDescriptor field) {
+      final int i = field.getIndex();
+      String containingOneofCamelCaseName = null;
+      if (field.getContainingOneof() != null) {
+        containingOneofCamelCaseName =
+            camelCaseNames[fields.length() + field.getContainingOneof().getIndex()];
+      }
+      if (field.isRepeated()) {
+        if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
+          if (field.isMapField() && isMapFieldEnabled(field)) {
+            return new MapFieldAccessor(
+                field, camelCaseNames[i], messageClass, builderClass);
+          } else {
+            return new RepeatedMessageFieldAccessor(
+                field, camelCaseNames[i], messageClass, builderClass);
+          }
+        } else if (field.getJavaType() == FieldDescriptor.JavaType.ENUM) {
+          return new RepeatedEnumFieldAccessor(
+              field, camelCaseNames[i], messageClass, builderClass);
+        } else {
+          return new RepeatedFieldAccessor(
+              field, camelCaseNames[i], messageClass, builderClass);
+        }
+      } else {
+        if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
+          return new SingularMessageFieldAccessor(
+              field, camelCaseNames[i], messageClass, builderClass,
+              containingOneofCamelCaseName);
+        } else if (field.getJavaType() == FieldDescriptor.JavaType.ENUM) {
+          return new SingularEnumFieldAccessor(
+              field, camelCaseNames[i], messageClass, builderClass,
+              containingOneofCamelCaseName);
+        } else if (field.getJavaType() == FieldDescriptor.JavaType.STRING) {
+          return new SingularStringFieldAccessor(
+              field, camelCaseNames[i], messageClass, builderClass,
+              containingOneofCamelCaseName);
+        } else {
+          return new SingularFieldAccessor(
+              field, camelCaseNames[i], messageClass, builderClass,
+              containingOneofCamelCaseName);
+        }
+      }
     }
 
     /** Get the OneofAccessor for a particular oneof. */
@@ -2156,7 +2167,15 @@ public abstract class GeneratedMessage extends AbstractMessage
         throw new IllegalArgumentException(
           "OneofDescriptor does not match message type.");
       }
-      return oneofs[oneof.getIndex()];
+      final int index = oneof.getIndex();
+      OneofAccessor accessor = oneofs.get(index);
+      if (accessor == null) {
+        oneofs.compareAndSet(index, null, new OneofAccessor(
+            descriptor, camelCaseNames[fields.length() + index],
+            messageClass, builderClass));
+        accessor = oneofs.get(index);
+      }
+      return accessor;
     }
 
     /**
@@ -62,6 +62,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * All generated protocol message classes extend this class.  This class
@@ -1648,6 +1649,17 @@ public abstract class GeneratedMessageV3 extends AbstractMessage
     }
   }
 
+  private static final Object[] NO_ARGUMENTS = new Object[0];
+
+  /**
+   * Calls a no-argument method through {@link #invokeOrDie(Method, Object, Object...)}. Most
+   * reflective accessors take no arguments; calling the varargs overload directly would allocate
+   * an empty array on every call.
+   */
+  private static Object invokeOrDie(final Method method, final Object object) {
+    return invokeOrDie(method, object, NO_ARGUMENTS);
+  }
+
   /** Calls invoke and throws a RuntimeException if it fails. */
   private static Object invokeOrDie(
       final Method method, final Object object, final Object... params) {
@@ -1723,13 +1735,18 @@ public abstract class GeneratedMessageV3 extends AbstractMessage
         final String[] camelCaseNames) {
       this.descriptor = descriptor;
       this.camelCaseNames = camelCaseNames;
-      fields = new FieldAccessor[descriptor.getFields().size()];
-      oneofs = new OneofAccessor[descriptor.getOneofs().size()];
+      fields = new AtomicReferenceArray<FieldAccessor>(descriptor.getFields().size());
+      oneofs = new AtomicReferenceArray<OneofAccessor>(descriptor.getOneofs().size());
       initialized = false;
     }
 
     /**
-     * Ensures the field accessors are initialized. This method is thread-safe.
+     * Ensures the field accessors can be initialized. This method is
+     * thread-safe. The accessor of each field and oneof is created the first
+     * time it is used, so a type with many fields only pays for the ones that
+     * are accessed through reflection. As a result, a generated method that
+     * an accessor needs but the message class lacks is reported when its
+     * field or oneof is first accessed, not by this method.
      *
      * @param messageClass   The message type.
      * @param builderClass   The builder type.
@@ -1741,71 +1758,24 @@ public abstract class GeneratedMessageV3 extends AbstractMessage
       if (initialized) { return this; }
       synchronized (this) {
         if (initialized) { return this; }
-        int fieldsSize = fields.length;
-        for (int i = 0; i < fieldsSize; i++) {
-          FieldDescriptor field = descriptor.getFields().get(i);
-          String containingOneofCamelCaseName = null;
-          if (field.getContainingOneof() != null) {
-            containingOneofCamelCaseName =
-                camelCaseNames[fieldsSize + field.getContainingOneof().getIndex()];
-          }
-          if (field.isRepeated()) {
-            if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
-              if (field.isMapField()) {
-                fields[i] = new MapFieldAccessor(
-                    field, camelCaseNames[i], messageClass, builderClass);
-              } else {
-                fields[i] = new RepeatedMessageFieldAccessor(
-                    field, camelCaseNames[i], messageClass, builderClass);
-              }
-            } else if (field.getJavaType() == FieldDescriptor.JavaType.ENUM) {
-              fields[i] = new RepeatedEnumFieldAccessor(
-                  field, camelCaseNames[i], messageClass, builderClass);
-            } else {
-              fields[i] = new RepeatedFieldAccessor(
-                  field, camelCaseNames[i], messageClass, builderClass);
-            }
-          } else {
-            if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
-              fields[i] = new SingularMessageFieldAccessor(
-                  field, camelCaseNames[i], messageClass, builderClass,
-                  containingOneofCamelCaseName);
-            } else if (field.getJavaType() == FieldDescriptor.JavaType.ENUM) {
-              fields[i] = new SingularEnumFieldAccessor(
-                  field, camelCaseNames[i], messageClass, builderClass,
-                  containingOneofCamelCaseName);
-            } else if (field.getJavaType() == FieldDescriptor.JavaType.STRING) {
-              fields[i] = new SingularStringFieldAccessor(
-                  field, camelCaseNames[i], messageClass, builderClass,
-                  containingOneofCamelCaseName);
-            } else {
-              fields[i] = new SingularFieldAccessor(
-                  field, camelCaseNames[i], messageClass, builderClass,
-                  containingOneofCamelCaseName);
-            }
-          }
-        }
-
-        int oneofsSize = oneofs.length;
-        for (int i = 0; i < oneofsSize; i++) {
-          oneofs[i] = new OneofAccessor(
-              descriptor, camelCaseNames[i + fieldsSize],
-              messageClass, builderClass);
-        }
+        this.messageClass = messageClass;
+        this.builderClass = builderClass;
         initialized = true;
-        camelCaseNames = null;
         return this;
       }
     }
 
     private final Descriptor descriptor;
-    private final FieldAccessor[] fields;
-    private String[] camelCaseNames;
-    private final OneofAccessor[] oneofs;
+    private final AtomicReferenceArray<FieldAccessor> fields;
+    private final String[] camelCaseNames;
+    private final AtomicReferenceArray<OneofAccessor> oneofs;
+    // Set, along with the classes, by ensureFieldAccessorsInitialized().
     private volatile boolean initialized;
+    private Class<? extends GeneratedMessageV3> messageClass;
+    private Class<? extends Builder> builderClass;
 
-    /** Get the FieldAccessor for a particular field. */
-    private FieldAccessor getField(final FieldDescriptor field) {
+    /** Get the FieldAccessor for a particular field. Visible for testing. */
+    FieldAccessor getField(final FieldDescriptor field) {
       if (field.getContainingType() != descriptor) {
         throw new IllegalArgumentException(
           "FieldDescriptor does not match message type.");
@@ -1815,23 +1785,83 @@ public abstract class GeneratedMessageV3 extends AbstractMessage
         throw new IllegalArgumentException(
           "This type does not have extensions.");
       }
-      return fields[field.getIndex()];
+      final int index = field.getIndex();
+      FieldAccessor accessor = fields.get(index);
+      if (accessor == null) {
+        // Racing threads create equivalent accessors; the first one is kept.
+        fields.compareAndSet(index, null, newFieldAccessor(field));
+        accessor = fields.get(index);
+      }
+      return accessor;
+    }
+
+    /** Creates the FieldAccessor for a field of this type. */
+    private FieldAccessor newFieldAccessor(final FieldDescriptor field) {
+      final int i = field.getIndex();
+      String containingOneofCamelCaseName = null;
+      if (field.getContainingOneof() != null) {
+        containingOneofCamelCaseName =
+            camelCaseNames[fields.length() + field.getContainingOneof().getIndex()];
+      }
+      if (field.isRepeated()) {
+        if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
+          if (field.isMapField()) {
+            return new MapFieldAccessor(
+                field, camelCaseNames[i], messageClass, builderClass);
+          } else {
+            return new RepeatedMessageFieldAccessor(
+                field, camelCaseNames[i], messageClass, builderClass);
+          }
+        } else if (field.getJavaType() == FieldDescriptor.JavaType.ENUM) {
+          return new RepeatedEnumFieldAccessor(
+              field, camelCaseNames[i], messageClass, builderClass);
+        } else {
+          return new RepeatedFieldAccessor(
+              field, camelCaseNames[i], messageClass, builderClass);
+        }
+      } else {
+        if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
+          return new SingularMessageFieldAccessor(
+              field, camelCaseNames[i], messageClass, builderClass,
+              containingOneofCamelCaseName);
+        } else if (field.getJavaType() == FieldDescriptor.JavaType.ENUM) {
+          return new SingularEnumFieldAccessor(
+              field, camelCaseNames[i], messageClass, builderClass,
+              containingOneofCamelCaseName);
+        } else if (field.getJavaType() == FieldDescriptor.JavaType.STRING) {
+          return new SingularStringFieldAccessor(
+              field, camelCaseNames[i], messageClass, builderClass,
+              containingOneofCamelCaseName);
+        } else {
+          return new SingularFieldAccessor(
+              field, camelCaseNames[i], messageClass, builderClass,
+              containingOneofCamelCaseName);
+        }
+      }
     }
 
-    /** Get the OneofAccessor for a particular oneof. */
-    private OneofAccessor getOneof(final OneofDescriptor oneof) {
+    /** Get the OneofAccessor for a particular oneof. Visible for testing. */
+    OneofAccessor getOneof(final OneofDescriptor oneof) {
       if (oneof.getContainingType() != descriptor) {
         throw new IllegalArgumentException(
           "OneofDescriptor does not match message type.");
       }
-      return oneofs[oneof.getIndex()];
+      final int index = oneof.getIndex();
+      OneofAccessor accessor = oneofs.get(index);
+      if (accessor == null) {
+        oneofs.compareAndSet(index, null, new OneofAccessor(
+            descriptor, camelCaseNames[fields.length() + index],
+            messageClass, builderClass));
+        accessor = oneofs.get(index);
+      }
+      return accessor;
     }
 
     /**
      * Abstract interface that provides access to a single field.  This is
      * implemented differently depending on the field type and cardinality.
      */
-    private interface FieldAccessor {
+    interface FieldAccessor {
       Object get(GeneratedMessageV3 message);
       Object get(GeneratedMessageV3.Builder builder);
       Object getRaw(GeneratedMessageV3 message);
@@ -1856,7 +1886,7 @@ public abstract class GeneratedMessageV3 extends AbstractMessage
     }
 
     /** OneofAccessor provides access to a single oneof. */
-    private static class OneofAccessor {
+    static class OneofAccessor {
       OneofAccessor(
           final Descriptor descriptor, final String camelCaseName,
           final Class<? extends GeneratedMessageV3> messageClass,
@@ -2750,11 +2780,7 @@ public abstract class GeneratedMessageV3 extends AbstractMessage
     }
     Arrays.sort(keys);
     for (int key : keys) {
-      out.writeMessage(fieldNumber,
-          defaultEntry.newBuilderForType()
-              .setKey(key)
-              .setValue(m.get(key))
-              .build());
+      defaultEntry.serializeTo(out, fieldNumber, key, m.get(key));
     }
   }
 
@@ -2777,11 +2803,7 @@ public abstract class GeneratedMessageV3 extends AbstractMessage
     }
     Arrays.sort(keys);
     for (long key : keys) {
-      out.writeMessage(fieldNumber,
-          defaultEntry.newBuilderForType()
-              .setKey(key)
-              .setValue(m.get(key))
-              .build());
+      defaultEntry.serializeTo(out, fieldNumber, key, m.get(key));
     }
   }
 
@@ -2803,11 +2825,7 @@ public abstract class GeneratedMessageV3 extends AbstractMessage
     keys = m.keySet().toArray(keys);
     Arrays.sort(keys);
     for (String key : keys) {
-      out.writeMessage(fieldNumber,
-          defaultEntry.newBuilderForType()
-              .setKey(key)
-              .setValue(m.get(key))
-              .build());
+      defaultEntry.serializeTo(out, fieldNumber, key, m.get(key));
     }
   }
 
@@ -2834,11 +2852,7 @@ public abstract class GeneratedMessageV3 extends AbstractMessage
       boolean key)
       throws IOException {
     if (m.containsKey(key)) {
-      out.writeMessage(fieldNumber,
-          defaultEntry.newBuilderForType()
-              .setKey(key)
-              .setValue(m.get(key))
-              .build());
+      defaultEntry.serializeTo(out, fieldNumber, key, m.get(key));
     }
   }
 
@@ -2850,11 +2864,7 @@ public abstract class GeneratedMessageV3 extends AbstractMessage
       int fieldNumber)
       throws IOException {
     for (Map.Entry<K, V> entry : m.entrySet()) {
-      out.writeMessage(fieldNumber,
-          defaultEntry.newBuilderForType()
-              .setKey(entry.getKey())
-              .setValue(entry.getValue())
-              .build());
+      defaultEntry.serializeTo(out, fieldNumber, entry.getKey(), entry.getValue());
     }
   }
 }
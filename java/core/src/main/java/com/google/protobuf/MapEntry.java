@@ -153,6 +153,25 @@ public final class MapEntry<K, V> extends AbstractMessage {
     MapEntryLite.writeTo(output, metadata, key, value);
   }
 
+  /**
+   * Serializes the provided key and value as though they were wrapped by a {@link MapEntry} of
+   * this type to the output stream. This helper method avoids allocation of a builder and a
+   * {@link MapEntry} for every entry, and sizes the entry only once.
+   *
+   * @throws UninitializedMessageException if the value is a message with missing required
+   *     fields, as building the entry would
+   */
+  void serializeTo(CodedOutputStream output, int fieldNumber, K key, V value)
+      throws IOException {
+    if (!isInitialized(metadata, value)) {
+      throw AbstractMessage.Builder.newUninitializedMessageException(
+          new MapEntry<K, V>(metadata, key, value));
+    }
+    output.writeTag(fieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    output.writeUInt32NoTag(MapEntryLite.computeSerializedSize(metadata, key, value));
+    MapEntryLite.writeTo(output, metadata, key, value);
+  }
+
   @Override
   public boolean isInitialized() {
     return isInitialized(metadata, value);
@@ -119,7 +119,7 @@ final class NioByteString extends ByteString.LeafByteString {
 
   @Override
   public void writeTo(OutputStream out) throws IOException {
-    out.write(toByteArray());
+    ByteBufferWriter.write(buffer.slice(), out);
   }
 
   @Override
@@ -198,6 +198,11 @@ final class NioByteString extends ByteString.LeafByteString {
     if (size() == 0) {
       return true;
     }
+    int thisHash = peekCachedHashCode();
+    int thatHash = otherString.peekCachedHashCode();
+    if (thisHash != 0 && thatHash != 0 && thisHash != thatHash) {
+      return false;
+    }
     if (other instanceof NioByteString) {
       return buffer.equals(((NioByteString) other).buffer);
     }
@@ -494,10 +494,11 @@ final class RopeByteString extends ByteString {
       int thatRemaining = thatString.size() - thatOffset;
       int bytesToCompare = Math.min(thisRemaining, thatRemaining);
 
-      // At least one of the offsets will be zero
-      boolean stillEqual = (thisOffset == 0)
-          ? thisString.equalsRange(thatString, thatOffset, bytesToCompare)
-          : thatString.equalsRange(thisString, thisOffset, bytesToCompare);
+      // At least one of the offsets will be zero. Shared leaves need no comparing.
+      boolean stillEqual = (thisString == thatString && thisOffset == thatOffset)
+          || ((thisOffset == 0)
+              ? thisString.equalsRange(thatString, thatOffset, bytesToCompare)
+              : thatString.equalsRange(thisString, thisOffset, bytesToCompare));
       if (!stillEqual) {
         return false;
       }
@@ -674,15 +675,16 @@ final class RopeByteString extends ByteString {
    * iterator is the same as the depth of the tree being traversed.
    *
    * <p>This iterator is used to implement
-   * {@link RopeByteString#equalsFragments(ByteString)}.
+   * {@link RopeByteString#equalsFragments(ByteString)} and
+   * {@link ByteString#unsignedLexicographicalComparator()}.
    */
-  private static class PieceIterator implements Iterator<LeafByteString> {
+  static final class PieceIterator implements Iterator<LeafByteString> {
 
     private final Stack<RopeByteString> breadCrumbs =
         new Stack<RopeByteString>();
     private LeafByteString next;
 
-    private PieceIterator(ByteString root) {
+    PieceIterator(ByteString root) {
       next = getLeafByLeft(root);
     }
 
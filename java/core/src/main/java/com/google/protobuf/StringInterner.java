@@ -0,0 +1,233 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// https://developers.google.com/protocol-buffers/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import static com.google.protobuf.Internal.UTF_8;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A bounded cache of {@code string} and {@code bytes} field values. A {@link CodedInputStream}
+ * with an interner (see {@link CodedInputStream#setStringInterner}) returns the cached {@link
+ * String} or {@link ByteString} when it reads bytes equal to those of a value it has read before,
+ * without allocating or decoding anything. This pays off when the same few values are parsed over
+ * and over, and the parsed messages are kept around.
+ *
+ * <p>Only values up to a maximum length are interned. The cache is a fixed-size table indexed by
+ * the hash of the bytes, holding one value per slot, so a value is evicted whenever another value
+ * with the same slot is read.
+ *
+ * <p>An interner may be shared by any number of streams and threads. It never locks: lookups race
+ * with updates, which costs at most a cache miss.
+ */
+public final class StringInterner {
+  private static final int DEFAULT_CAPACITY = 4096;
+  private static final int DEFAULT_MAX_VALUE_LENGTH = 64;
+
+  /** Creates an interner that holds up to 4096 strings and 4096 byte strings of up to 64 bytes. */
+  public static StringInterner newInstance() {
+    return newInstance(DEFAULT_CAPACITY, DEFAULT_MAX_VALUE_LENGTH);
+  }
+
+  /**
+   * Creates an interner.
+   *
+   * @param capacity the number of strings, and the number of byte strings, the interner holds at
+   *     most; it is rounded up to a power of two
+   * @param maxValueLength the length in bytes of the longest value to intern
+   */
+  public static StringInterner newInstance(int capacity, int maxValueLength) {
+    if (capacity <= 0 || capacity > (1 << 30)) {
+      throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    }
+    if (maxValueLength < 0) {
+      throw new IllegalArgumentException("Invalid maximum value length: " + maxValueLength);
+    }
+    return new StringInterner(capacity, maxValueLength);
+  }
+
+  // Entries are immutable, so a racy read sees either a complete entry or an older one.
+  private final Entry[] strings;
+  private final Entry[] byteStrings;
+  private final int mask;
+  private final int maxValueLength;
+
+  private StringInterner(int capacity, int maxValueLength) {
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    this.strings = new Entry[size];
+    this.byteStrings = new Entry[size];
+    this.mask = size - 1;
+    this.maxValueLength = maxValueLength;
+  }
+
+  /** Whether values of the given length are interned. */
+  boolean canIntern(int length) {
+    return length <= maxValueLength;
+  }
+
+  /**
+   * Returns the string encoded by the given bytes. Invalid UTF-8 is replaced as by {@link
+   * String#String(byte[], java.nio.charset.Charset)}, unless {@code requireUtf8} is set, in which
+   * case it is rejected.
+   */
+  String internString(byte[] bytes, int offset, int length, boolean requireUtf8)
+      throws InvalidProtocolBufferException {
+    int hash = hash(bytes, offset, length);
+    Entry entry = strings[hash & mask];
+    if (entry != null && entry.matches(hash, bytes, offset, length)) {
+      return (String) entry.value;
+    }
+    return addString(hash, Arrays.copyOfRange(bytes, offset, offset + length), requireUtf8);
+  }
+
+  /** As {@link #internString(byte[], int, int, boolean)}, from absolute buffer indices. */
+  String internString(ByteBuffer buffer, int index, int length, boolean requireUtf8)
+      throws InvalidProtocolBufferException {
+    int hash = hash(buffer, index, length);
+    Entry entry = strings[hash & mask];
+    if (entry != null && entry.matches(hash, buffer, index, length)) {
+      return (String) entry.value;
+    }
+    return addString(hash, copy(buffer, index, length), requireUtf8);
+  }
+
+  private String addString(int hash, byte[] key, boolean requireUtf8)
+      throws InvalidProtocolBufferException {
+    String value;
+    try {
+      value = Utf8.decodeUtf8(key, 0, key.length);
+    } catch (InvalidProtocolBufferException e) {
+      if (requireUtf8) {
+        throw e;
+      }
+      // Not cached, so that every cached string is valid whichever way it is read.
+      return new String(key, UTF_8);
+    }
+    strings[hash & mask] = new Entry(hash, key, value);
+    return value;
+  }
+
+  /** Returns a {@link ByteString} of the given bytes. */
+  ByteString internBytes(byte[] bytes, int offset, int length) {
+    int hash = hash(bytes, offset, length);
+    Entry entry = byteStrings[hash & mask];
+    if (entry != null && entry.matches(hash, bytes, offset, length)) {
+      return (ByteString) entry.value;
+    }
+    return addBytes(hash, Arrays.copyOfRange(bytes, offset, offset + length));
+  }
+
+  /** As {@link #internBytes(byte[], int, int)}, from absolute buffer indices. */
+  ByteString internBytes(ByteBuffer buffer, int index, int length) {
+    int hash = hash(buffer, index, length);
+    Entry entry = byteStrings[hash & mask];
+    if (entry != null && entry.matches(hash, buffer, index, length)) {
+      return (ByteString) entry.value;
+    }
+    return addBytes(hash, copy(buffer, index, length));
+  }
+
+  private ByteString addBytes(int hash, byte[] key) {
+    // The key is never modified, so the value can share it.
+    ByteString value = ByteString.wrap(key);
+    byteStrings[hash & mask] = new Entry(hash, key, value);
+    return value;
+  }
+
+  private static int hash(byte[] bytes, int offset, int length) {
+    int hash = length;
+    for (int i = offset; i < offset + length; i++) {
+      hash = hash * 31 + bytes[i];
+    }
+    return spread(hash);
+  }
+
+  private static int hash(ByteBuffer buffer, int index, int length) {
+    int hash = length;
+    for (int i = index; i < index + length; i++) {
+      hash = hash * 31 + buffer.get(i);
+    }
+    return spread(hash);
+  }
+
+  /** Mixes the high bits of the hash into the low ones, which index the tables. */
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private static byte[] copy(ByteBuffer buffer, int index, int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = buffer.get(index + i);
+    }
+    return bytes;
+  }
+
+  private static final class Entry {
+    final int hash;
+    final byte[] key;
+    final Object value;
+
+    Entry(int hash, byte[] key, Object value) {
+      this.hash = hash;
+      this.key = key;
+      this.value = value;
+    }
+
+    boolean matches(int hash, byte[] bytes, int offset, int length) {
+      if (this.hash != hash || key.length != length) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (key[i] != bytes[offset + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    boolean matches(int hash, ByteBuffer buffer, int index, int length) {
+      if (this.hash != hash || key.length != length) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (key[i] != buffer.get(index + i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
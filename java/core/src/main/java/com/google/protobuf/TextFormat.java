@@ -35,15 +35,22 @@ import com.google.protobuf.Descriptors.EnumDescriptor;
 import com.google.protobuf.Descriptors.EnumValueDescriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Provide text parsing and formatting support for proto2 instances.
@@ -95,6 +102,27 @@ public final class TextFormat {
     Printer.UNICODE.printUnknownFields(fields, multiLineOutput(output));
   }
 
+  /**
+   * Same as {@code print()}, except that the text is written to {@code output}
+   * encoded as UTF-8, without first building it up as a {@code String}.
+   * {@code output} is flushed but not closed.
+   */
+  public static void printTo(
+      final MessageOrBuilder message, final OutputStream output)
+      throws IOException {
+    Printer.DEFAULT.printTo(message, output);
+  }
+
+  /**
+   * Same as {@code printTo()}, except that non-ASCII characters are not
+   * escaped.
+   */
+  public static void printUnicodeTo(
+      final MessageOrBuilder message, final OutputStream output)
+      throws IOException {
+    Printer.UNICODE.printTo(message, output);
+  }
+
   /**
    * Generates a human readable form of this message, useful for debugging and
    * other purposes, with no newline characters.
@@ -303,18 +331,116 @@ public final class TextFormat {
     }
   }
 
-  /** Helper class for converting protobufs to text. */
-  private static final class Printer {
+  /**
+   * Returns a {@link Printer} that prints like {@link #print(MessageOrBuilder, Appendable)}, and
+   * can be configured to print differently.
+   */
+  public static Printer printer() {
+    return Printer.DEFAULT;
+  }
+
+  /** Printer that converts protobufs to text, with the options it was configured with. */
+  public static final class Printer {
     // Printer instance which escapes non-ASCII characters.
-    static final Printer DEFAULT = new Printer(true);
+    static final Printer DEFAULT = new Printer(true, null);
     // Printer instance which emits Unicode (it still escapes newlines and quotes in strings).
-    static final Printer UNICODE = new Printer(false);
+    static final Printer UNICODE = new Printer(false, null);
+
+    // Repeated message fields with more elements than this are split into chunks this size
+    // when printing in parallel.
+    private static final int PARALLEL_CHUNK_SIZE = 1024;
+
+    // The number of chunks printed ahead of the one being written out.
+    private static final int MAX_PENDING_CHUNKS =
+        Math.max(2, 2 * Runtime.getRuntime().availableProcessors());
 
     /** Whether to escape non ASCII characters with backslash and octal. */
     private final boolean escapeNonAscii;
 
-    private Printer(boolean escapeNonAscii) {
+    // Set if large repeated message fields are printed in parallel.
+    private final Executor executor;
+
+    private Printer(boolean escapeNonAscii, Executor executor) {
       this.escapeNonAscii = escapeNonAscii;
+      this.executor = executor;
+    }
+
+    /**
+     * Returns a new {@link Printer} that escapes non-ASCII characters in strings with backslash
+     * and octal, as {@link TextFormat#print} does, or leaves them as they are, as {@link
+     * TextFormat#printUnicode} does. It keeps all other configurations of this printer.
+     */
+    public Printer escapingNonAscii(boolean escapeNonAscii) {
+      return new Printer(escapeNonAscii, executor);
+    }
+
+    /**
+     * Returns a new {@link Printer} that prints large repeated message fields in parallel, by
+     * splitting them into chunks that are printed on {@code executor}. The output is the same as
+     * without it. The thread that prints the message waits for the chunks, so {@code executor}
+     * should not be one that only runs tasks on that thread once it is free. It keeps all other
+     * configurations of this printer.
+     */
+    public Printer usingExecutor(Executor executor) {
+      if (executor == null) {
+        throw new NullPointerException("executor");
+      }
+      return new Printer(escapeNonAscii, executor);
+    }
+
+    /** Outputs a textual representation of {@code message} to {@code output}. */
+    public void print(final MessageOrBuilder message, final Appendable output)
+        throws IOException {
+      print(message, multiLineOutput(output));
+    }
+
+    /**
+     * Like {@link #print(MessageOrBuilder, Appendable)}, but writes the text to {@code output}
+     * encoded as UTF-8, without first building it up as a {@code String}. {@code output} is
+     * flushed but not closed.
+     */
+    public void printTo(final MessageOrBuilder message, final OutputStream output)
+        throws IOException {
+      Utf8Output utf8 = Utf8Output.to(output);
+      print(message, multiLineOutput(utf8));
+      utf8.finish();
+      output.flush();
+    }
+
+    /**
+     * Like {@link #printTo(MessageOrBuilder, OutputStream)}, but writes to {@code output} from
+     * its position on, and advances the position past the text.
+     *
+     * @throws java.nio.BufferOverflowException if the text does not fit; part of it may have been
+     *     written by then
+     */
+    public void printTo(final MessageOrBuilder message, final ByteBuffer output)
+        throws IOException {
+      Utf8Output utf8 = Utf8Output.to(output);
+      print(message, multiLineOutput(utf8));
+      utf8.finish();
+    }
+
+    /**
+     * Like {@link #printTo(MessageOrBuilder, OutputStream)}, but writes to a {@link ByteOutput}.
+     */
+    @ExperimentalApi
+    public void printTo(final MessageOrBuilder message, final ByteOutput output)
+        throws IOException {
+      Utf8Output utf8 = Utf8Output.to(output);
+      print(message, multiLineOutput(utf8));
+      utf8.finish();
+    }
+
+    /** Like {@link #print(MessageOrBuilder, Appendable)}, but returns a {@code String}. */
+    public String printToString(final MessageOrBuilder message) {
+      try {
+        final StringBuilder text = new StringBuilder();
+        print(message, text);
+        return text.toString();
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
     }
 
     private void print(
@@ -330,15 +456,91 @@ public final class TextFormat {
     private void printField(final FieldDescriptor field, final Object value,
         final TextGenerator generator) throws IOException {
       if (field.isRepeated()) {
-        // Repeated field.  Print each element.
-        for (Object element : (List<?>) value) {
-          printSingleField(field, element, generator);
+        List<?> elements = (List<?>) value;
+        if (executor != null
+            && field.getJavaType() == FieldDescriptor.JavaType.MESSAGE
+            && elements.size() > PARALLEL_CHUNK_SIZE) {
+          printElementsInParallel(field, elements, generator);
+        } else {
+          // Repeated field.  Print each element.
+          for (Object element : elements) {
+            printSingleField(field, element, generator);
+          }
         }
       } else {
         printSingleField(field, value, generator);
       }
     }
 
+    /**
+     * Prints each chunk of {@code elements} into its own buffer on {@link #executor}, starting
+     * with the indentation of {@code generator}, and the buffers to {@code generator}'s output in
+     * order.
+     *
+     * <p>The elements of a chunk are copied out of {@code elements} on this thread before the
+     * chunk is handed to the executor, as reading the list of a builder may build its elements.
+     * At most {@link #MAX_PENDING_CHUNKS} chunks are in flight, so that only a bounded part of
+     * the output is buffered at a time.
+     */
+    private void printElementsInParallel(final FieldDescriptor field,
+                                         final List<?> elements,
+                                         final TextGenerator generator)
+                                         throws IOException {
+      ArrayDeque<FutureTask<String>> pending = new ArrayDeque<FutureTask<String>>();
+      int next = 0;
+      try {
+        while (next < elements.size() || !pending.isEmpty()) {
+          while (next < elements.size() && pending.size() < MAX_PENDING_CHUNKS) {
+            int end = Math.min(next + PARALLEL_CHUNK_SIZE, elements.size());
+            List<?> chunk = Arrays.asList(elements.subList(next, end).toArray());
+            // Every element ends its line, so all chunks but the first start a new one.
+            FutureTask<String> task =
+                newChunkTask(field, chunk, generator.forChunk(next == 0));
+            pending.add(task);
+            executor.execute(task);
+            next = end;
+          }
+          generator.printChunk(pending.remove().get());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while printing " + field.getFullName());
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new IllegalStateException(cause);
+      } finally {
+        // Empty unless we failed; stops the chunks that have not been printed yet.
+        for (FutureTask<String> chunk : pending) {
+          chunk.cancel(false);
+        }
+      }
+    }
+
+    private FutureTask<String> newChunkTask(final FieldDescriptor field,
+                                            final List<?> chunk,
+                                            final TextGenerator chunkGenerator) {
+      // Chunks are printed sequentially: waiting for nested chunks from within a task could
+      // otherwise exhaust a bounded executor.
+      final Printer sequential = new Printer(escapeNonAscii, null);
+      return new FutureTask<String>(
+          new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+              for (Object element : chunk) {
+                sequential.printSingleField(field, element, chunkGenerator);
+              }
+              return chunkGenerator.output.toString();
+            }
+          });
+    }
+
     private void printSingleField(final FieldDescriptor field,
                                   final Object value,
                                   final TextGenerator generator)
@@ -539,6 +741,29 @@ public final class TextFormat {
       this.singleLineMode = singleLineMode;
     }
 
+    /**
+     * Returns a generator that prints into a new buffer as this one would from here on, with
+     * the same indentation, for {@link #printChunk}. Unless it is the {@code first} chunk, this
+     * one is at the start of a line by the time the chunk is printed.
+     */
+    TextGenerator forChunk(boolean first) {
+      TextGenerator chunk = new TextGenerator(new StringBuilder(), singleLineMode);
+      chunk.indent.append(indent);
+      chunk.atStartOfLine = first ? atStartOfLine : true;
+      return chunk;
+    }
+
+    /**
+     * Prints the output of a generator returned by {@link #forChunk}, which ended the last line
+     * it printed.
+     */
+    void printChunk(final CharSequence chunk) throws IOException {
+      if (chunk.length() > 0) {
+        output.append(chunk);
+        atStartOfLine = true;
+      }
+    }
+
     /**
      * Indent text by two spaces.  After calling Indent(), two spaces will be
      * inserted at the beginning of each line of text.  Indent() may be called
@@ -612,19 +837,22 @@ public final class TextFormat {
    *   numbers.
    * </ul>
    *
-   * <p>Luckily, Java's regular expression support does manage to be useful to
-   * us.  (Barely:  We need {@code Matcher.usePattern()}, which is new in
-   * Java 1.5.)  So, we can use that, at least.  Unfortunately, this implies
-   * that we need to have the entire input in one contiguous string.
+   * <p>So we scan the tokens by hand.  The grammar is small, and doing so is
+   * much faster than the regular expressions this class used to be built on;
+   * the methods below document the expressions whose behavior they keep.  We
+   * still need to have the entire input in one contiguous string.
    */
   private static final class Tokenizer {
     private final CharSequence text;
-    private final Matcher matcher;
     private String currentToken;
 
     // The character index within this.text at which the current token begins.
     private int pos = 0;
 
+    // The character index within this.text at which the next token begins,
+    // i.e. just past the current token and the whitespace that follows it.
+    private int nextTokenStart = 0;
+
     // The line and column numbers of the current token.
     private int line = 0;
     private int column = 0;
@@ -634,31 +862,19 @@ public final class TextFormat {
     private int previousLine = 0;
     private int previousColumn = 0;
 
-    // We use possessive quantifiers (*+ and ++) because otherwise the Java
-    // regex matcher has stack overflows on large inputs.
-    private static final Pattern WHITESPACE =
-      Pattern.compile("(\\s|(#.*$))++", Pattern.MULTILINE);
-    private static final Pattern TOKEN = Pattern.compile(
-      "[a-zA-Z_][0-9a-zA-Z_+-]*+|" +                // an identifier
-      "[.]?[0-9+-][0-9a-zA-Z_.+-]*+|" +             // a number
-      "\"([^\"\n\\\\]|\\\\.)*+(\"|\\\\?$)|" +       // a double-quoted string
-      "\'([^\'\n\\\\]|\\\\.)*+(\'|\\\\?$)",         // a single-quoted string
-      Pattern.MULTILINE);
-
-    private static final Pattern DOUBLE_INFINITY = Pattern.compile(
-      "-?inf(inity)?",
-      Pattern.CASE_INSENSITIVE);
-    private static final Pattern FLOAT_INFINITY = Pattern.compile(
-      "-?inf(inity)?f?",
-      Pattern.CASE_INSENSITIVE);
-    private static final Pattern FLOAT_NAN = Pattern.compile(
-      "nanf?",
-      Pattern.CASE_INSENSITIVE);
+    // Single-character tokens, such as ':' and '{', shared rather than
+    // allocated every time they are read.
+    private static final String[] ASCII_TOKENS = new String[0x80];
+
+    static {
+      for (int i = 0; i < ASCII_TOKENS.length; i++) {
+        ASCII_TOKENS[i] = String.valueOf((char) i);
+      }
+    }
 
     /** Construct a tokenizer that parses tokens from the given text. */
     private Tokenizer(final CharSequence text) {
       this.text = text;
-      this.matcher = WHITESPACE.matcher(text);
       skipWhitespace();
       nextToken();
     }
@@ -690,7 +906,7 @@ public final class TextFormat {
       previousColumn = column;
 
       // Advance the line counter to the current position.
-      while (pos < matcher.regionStart()) {
+      while (pos < nextTokenStart) {
         if (text.charAt(pos) == '\n') {
           ++line;
           column = 0;
@@ -701,33 +917,138 @@ public final class TextFormat {
       }
 
       // Match the next token.
-      if (matcher.regionStart() == matcher.regionEnd()) {
+      if (nextTokenStart == text.length()) {
         // EOF
         currentToken = "";
       } else {
-        matcher.usePattern(TOKEN);
-        if (matcher.lookingAt()) {
-          currentToken = matcher.group();
-          matcher.region(matcher.end(), matcher.regionEnd());
+        final int tokenEnd = scanToken(nextTokenStart);
+        final char first = text.charAt(nextTokenStart);
+        if (tokenEnd == nextTokenStart + 1 && first < ASCII_TOKENS.length) {
+          currentToken = ASCII_TOKENS[first];
         } else {
-          // Take one character.
-          currentToken = String.valueOf(text.charAt(pos));
-          matcher.region(pos + 1, matcher.regionEnd());
+          currentToken = text.subSequence(nextTokenStart, tokenEnd).toString();
         }
+        nextTokenStart = tokenEnd;
 
         skipWhitespace();
       }
     }
 
     /**
-     * Skip over any whitespace so that the matcher region starts at the next
-     * token.
+     * Returns the end of the token starting at {@code start}, which is the
+     * longest prefix matching one of
+     *
+     * <pre>
+     * [a-zA-Z_][0-9a-zA-Z_+-]*                  an identifier
+     * [.]?[0-9+-][0-9a-zA-Z_.+-]*               a number
+     * "([^"\n\\]|\\.)*("|\\?$)                a double-quoted string
+     * '([^'\n\\]|\\.)*('|\\?$)                a single-quoted string
+     * </pre>
+     *
+     * tried in that order, or else just the character at {@code start}.
+     */
+    private int scanToken(final int start) {
+      final int end = text.length();
+      final char c = text.charAt(start);
+      if (('a' <= c && c <= 'z') || ('A' <= c && c <= 'Z') || c == '_') {
+        int i = start + 1;
+        while (i < end && isIdentifierChar(text.charAt(i))) {
+          ++i;
+        }
+        return i;
+      }
+
+      final int digits = c == '.' ? start + 1 : start;
+      if (digits < end && isNumberStart(text.charAt(digits))) {
+        int i = digits + 1;
+        while (i < end && (isIdentifierChar(text.charAt(i)) || text.charAt(i) == '.')) {
+          ++i;
+        }
+        return i;
+      }
+
+      if (c == '\"' || c == '\'') {
+        int i = start + 1;
+        while (i < end) {
+          final char d = text.charAt(i);
+          if (d == c || d == '\n') {
+            break;
+          } else if (d != '\\') {
+            ++i;
+          } else if (i + 1 < end && !isLineTerminator(text.charAt(i + 1))) {
+            i += 2;
+          } else {
+            break;
+          }
+        }
+        if (i < end && text.charAt(i) == c) {
+          return i + 1;
+        }
+        if (i < end && text.charAt(i) == '\\' && isAtEndOfLine(i + 1)) {
+          return i + 1;
+        }
+        if (isAtEndOfLine(i)) {
+          return i;
+        }
+      }
+
+      // Take one character.
+      return start + 1;
+    }
+
+    private static boolean isIdentifierChar(final char c) {
+      return ('a' <= c && c <= 'z')
+          || ('A' <= c && c <= 'Z')
+          || ('0' <= c && c <= '9')
+          || c == '_' || c == '+' || c == '-';
+    }
+
+    private static boolean isNumberStart(final char c) {
+      return ('0' <= c && c <= '9') || c == '+' || c == '-';
+    }
+
+    /** Whether {@code c} ends a line, i.e. is not matched by regex '.'. */
+    private static boolean isLineTerminator(final char c) {
+      return c == '\n' || c == '\r'
+          || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /** Whether a multi-line regex '$' would match at {@code index}. */
+    private boolean isAtEndOfLine(final int index) {
+      if (index == text.length()) {
+        return true;
+      }
+      final char c = text.charAt(index);
+      if (c == '\n') {
+        // '$' doesn't match between "\r" and "\n".
+        return index == 0 || text.charAt(index - 1) != '\r';
+      }
+      return isLineTerminator(c);
+    }
+
+    /**
+     * Skip over any whitespace and comments, i.e. {@code (\s|(#.*$))*}, so
+     * that {@code nextTokenStart} is the start of the next token.
      */
     private void skipWhitespace() {
-      matcher.usePattern(WHITESPACE);
-      if (matcher.lookingAt()) {
-        matcher.region(matcher.end(), matcher.regionEnd());
+      final int end = text.length();
+      int i = nextTokenStart;
+      while (i < end) {
+        final char c = text.charAt(i);
+        if (c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r') {
+          ++i;
+        } else if (c == '#') {
+          // A comment runs up to the next line terminator, which can't follow
+          // a '\r' here, so '$' always matches there.
+          ++i;
+          while (i < end && !isLineTerminator(text.charAt(i))) {
+            ++i;
+          }
+        } else {
+          break;
+        }
       }
+      nextTokenStart = i;
     }
 
     /**
@@ -900,7 +1221,7 @@ public final class TextFormat {
     public double consumeDouble() throws ParseException {
       // We need to parse infinity and nan separately because
       // Double.parseDouble() does not accept "inf", "infinity", or "nan".
-      if (DOUBLE_INFINITY.matcher(currentToken).matches()) {
+      if (isInfinity(currentToken, false)) {
         final boolean negative = currentToken.startsWith("-");
         nextToken();
         return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
@@ -918,6 +1239,49 @@ public final class TextFormat {
       }
     }
 
+    /**
+     * Whether {@code token} matches {@code -?inf(inity)?}, or
+     * {@code -?inf(inity)?f?} if {@code allowSuffix}, ignoring ASCII case.
+     */
+    private static boolean isInfinity(final String token, final boolean allowSuffix) {
+      final int start = token.startsWith("-") ? 1 : 0;
+      final int end = token.length();
+      if (regionEqualsIgnoreAsciiCase(token, start, end, "inf")
+          || regionEqualsIgnoreAsciiCase(token, start, end, "infinity")) {
+        return true;
+      }
+      return allowSuffix
+          && end > start
+          && (token.charAt(end - 1) | 0x20) == 'f'
+          && (regionEqualsIgnoreAsciiCase(token, start, end - 1, "inf")
+              || regionEqualsIgnoreAsciiCase(token, start, end - 1, "infinity"));
+    }
+
+    /** Whether {@code token} matches {@code nanf?}, ignoring ASCII case. */
+    private static boolean isNaN(final String token) {
+      return regionEqualsIgnoreAsciiCase(token, 0, token.length(), "nan")
+          || regionEqualsIgnoreAsciiCase(token, 0, token.length(), "nanf");
+    }
+
+    /**
+     * Whether {@code token.substring(start, end)} equals the lower case ASCII
+     * string {@code expected}, ignoring ASCII case.
+     */
+    private static boolean regionEqualsIgnoreAsciiCase(
+        final String token, final int start, final int end, final String expected) {
+      if (end - start != expected.length()) {
+        return false;
+      }
+      for (int i = 0; i < expected.length(); i++) {
+        final char c = token.charAt(start + i);
+        final char lower = ('A' <= c && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+        if (lower != expected.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
     /**
      * If the next token is a double, consume it and return {@code true}.
      * Otherwise, return {@code false} without doing anything.
@@ -938,12 +1302,12 @@ public final class TextFormat {
     public float consumeFloat() throws ParseException {
       // We need to parse infinity and nan separately because
       // Float.parseFloat() does not accept "inf", "infinity", or "nan".
-      if (FLOAT_INFINITY.matcher(currentToken).matches()) {
+      if (isInfinity(currentToken, true)) {
         final boolean negative = currentToken.startsWith("-");
         nextToken();
         return negative ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY;
       }
-      if (FLOAT_NAN.matcher(currentToken).matches()) {
+      if (isNaN(currentToken)) {
         nextToken();
         return Float.NaN;
       }
@@ -2068,6 +2432,27 @@ public final class TextFormat {
     return parseInteger(text, false, true);
   }
 
+  /**
+   * Same as {@code Long.parseLong(text.substring(pos), radix)}, without the
+   * substring in the common case where it only contains digits.
+   */
+  private static long parseDigits(final String text, final int pos, final int radix) {
+    if (pos == text.length()) {
+      // Let parseLong() report the error.
+      return Long.parseLong("", radix);
+    }
+    long result = 0;
+    for (int i = pos; i < text.length(); i++) {
+      final int digit = Character.digit(text.charAt(i), radix);
+      if (digit < 0) {
+        // Let parseLong() handle the sign or report the error.
+        return Long.parseLong(text.substring(pos), radix);
+      }
+      result = result * radix + digit;
+    }
+    return result;
+  }
+
   private static long parseInteger(final String text,
                                    final boolean isSigned,
                                    final boolean isLong)
@@ -2091,12 +2476,10 @@ public final class TextFormat {
       radix = 8;
     }
 
-    final String numberText = text.substring(pos);
-
     long result = 0;
-    if (numberText.length() < 16) {
+    if (text.length() - pos < 16) {
       // Can safely assume no overflow.
-      result = Long.parseLong(numberText, radix);
+      result = parseDigits(text, pos, radix);
       if (negative) {
         result = -result;
       }
@@ -2118,7 +2501,7 @@ public final class TextFormat {
         }
       }
     } else {
-      BigInteger bigValue = new BigInteger(numberText, radix);
+      BigInteger bigValue = new BigInteger(text.substring(pos), radix);
       if (negative) {
         bigValue = bigValue.negate();
       }
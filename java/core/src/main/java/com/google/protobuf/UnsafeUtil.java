@@ -47,7 +47,7 @@ final class UnsafeUtil {
       supportsUnsafeByteBufferOperations();
   private static final boolean HAS_UNSAFE_ARRAY_OPERATIONS = supportsUnsafeArrayOperations();
 
-  private static final long BYTE_ARRAY_BASE_OFFSET = arrayBaseOffset(byte[].class);
+  static final long BYTE_ARRAY_BASE_OFFSET = arrayBaseOffset(byte[].class);
   // Micro-optimization: we can assume a scale of 1 and skip the multiply
   // private static final long BYTE_ARRAY_INDEX_SCALE = 1;
 
@@ -159,6 +159,11 @@ final class UnsafeUtil {
     MEMORY_ACCESSOR.putByte(target, BYTE_ARRAY_BASE_OFFSET + index, value);
   }
 
+  /** Reads the 8 bytes of {@code target} starting at {@code index} in native byte order. */
+  static long getLong(byte[] target, long index) {
+    return MEMORY_ACCESSOR.getLong(target, BYTE_ARRAY_BASE_OFFSET + index);
+  }
+
   static int getInt(int[] target, long index) {
     return MEMORY_ACCESSOR.getInt(target, INT_ARRAY_BASE_OFFSET + (index * INT_ARRAY_INDEX_SCALE));
   }
@@ -1417,7 +1417,12 @@ final class Utf8 {
       char[] resultArr = new char[size];
       int resultPos = 0;
 
-      // Optimize for 100% ASCII (Hotspot loves small simple top-level loops like this).
+      // Optimize for 100% ASCII: find the run a word at a time and widen it without branching.
+      int skipped = decodeAsciiRun(bytes, offset, size, resultArr, resultPos);
+      offset += skipped;
+      resultPos += skipped;
+
+      // Finish the ASCII prefix (Hotspot loves small simple top-level loops like this).
       // This simple loop stops when we encounter a byte >= 0x80 (i.e. non-ASCII).
       while (offset < limit) {
         byte b = UnsafeUtil.getByte(bytes, offset);
@@ -1434,6 +1439,9 @@ final class Utf8 {
           DecodeUtil.handleOneByte(byte1, resultArr, resultPos++);
           // It's common for there to be multiple ASCII characters in a run mixed in, so add an
           // extra optimized loop to take care of these runs.
+          skipped = decodeAsciiRun(bytes, offset, limit - offset, resultArr, resultPos);
+          offset += skipped;
+          resultPos += skipped;
           while (offset < limit) {
             byte b = UnsafeUtil.getByte(bytes, offset);
             if (!DecodeUtil.isOneByte(b)) {
@@ -1496,7 +1504,12 @@ final class Utf8 {
       char[] resultArr = new char[size];
       int resultPos = 0;
 
-      // Optimize for 100% ASCII (Hotspot loves small simple top-level loops like this).
+      // Optimize for 100% ASCII: find the run a word at a time and widen it without branching.
+      int skipped = decodeAsciiRun(address, size, resultArr, resultPos);
+      address += skipped;
+      resultPos += skipped;
+
+      // Finish the ASCII prefix (Hotspot loves small simple top-level loops like this).
       // This simple loop stops when we encounter a byte >= 0x80 (i.e. non-ASCII).
       while (address < addressLimit) {
         byte b = UnsafeUtil.getByte(address);
@@ -1513,6 +1526,9 @@ final class Utf8 {
           DecodeUtil.handleOneByte(byte1, resultArr, resultPos++);
           // It's common for there to be multiple ASCII characters in a run mixed in, so add an
           // extra optimized loop to take care of these runs.
+          skipped = decodeAsciiRun(address, (int) (addressLimit - address), resultArr, resultPos);
+          address += skipped;
+          resultPos += skipped;
           while (address < addressLimit) {
             byte b = UnsafeUtil.getByte(address);
             if (!DecodeUtil.isOneByte(b)) {
@@ -1700,12 +1716,23 @@ final class Utf8 {
         return 0;
       }
 
-      for (int i = 0; i < maxChars; i++) {
+      // Read bytes until 8-byte aligned so that we can read longs in the loop below. Array
+      // objects are 8-byte aligned, so we align the absolute offset of the element rather than
+      // the index.
+      final int unaligned = (int) -(UnsafeUtil.BYTE_ARRAY_BASE_OFFSET + offset) & 7;
+      int i = 0;
+      for (; i < unaligned; i++) {
         if (UnsafeUtil.getByte(bytes, offset++) < 0) {
           return i;
         }
       }
-      return maxChars;
+
+      // This simple loop stops when we encounter a byte >= 0x80 (i.e. non-ASCII).
+      // To speed things up further, we're reading longs instead of bytes so we use a mask to
+      // determine if any byte in the current long is non-ASCII.
+      for (; i + 8 <= maxChars && (UnsafeUtil.getLong(bytes, offset) & ASCII_MASK_LONG) == 0;
+          i += 8, offset += 8) {}
+      return i;
     }
 
     /**
@@ -1722,7 +1749,7 @@ final class Utf8 {
       // Read bytes until 8-byte aligned so that we can read longs in the loop below.
       // We do this by ANDing the address with 7 to determine the number of bytes that need to
       // be read before we're 8-byte aligned.
-      final int unaligned = 8 - ((int) address & 7);
+      final int unaligned = (int) -address & 7;
       for (int j = unaligned; j > 0; j--) {
         if (UnsafeUtil.getByte(address++) < 0) {
           return unaligned - j;
@@ -1738,16 +1765,40 @@ final class Utf8 {
       return maxChars - remaining;
     }
 
-    private static int partialIsValidUtf8(final byte[] bytes, long offset, int remaining) {
-      // Skip past ASCII characters as quickly as possible. 
-      final int skipped = unsafeEstimateConsecutiveAscii(bytes, offset, remaining);
-      remaining -= skipped;
-      offset += skipped;
+    /**
+     * Widens the run of ASCII bytes starting at {@code offset} into {@code resultArr} at {@code
+     * resultPos}.
+     *
+     * @return the number of chars written. Like {@link #unsafeEstimateConsecutiveAscii(byte[],
+     *     long, int)}, this may stop short of the first non-ASCII byte.
+     */
+    private static int decodeAsciiRun(
+        byte[] bytes, long offset, int maxChars, char[] resultArr, int resultPos) {
+      final int count = unsafeEstimateConsecutiveAscii(bytes, offset, maxChars);
+      for (int i = 0; i < count; i++) {
+        resultArr[resultPos + i] = (char) UnsafeUtil.getByte(bytes, offset + i);
+      }
+      return count;
+    }
+
+    /** Same as {@link #decodeAsciiRun(byte[], long, int, char[], int)} for off-heap memory. */
+    private static int decodeAsciiRun(long address, int maxChars, char[] resultArr, int resultPos) {
+      final int count = unsafeEstimateConsecutiveAscii(address, maxChars);
+      for (int i = 0; i < count; i++) {
+        resultArr[resultPos + i] = (char) UnsafeUtil.getByte(address + i);
+      }
+      return count;
+    }
 
+    private static int partialIsValidUtf8(final byte[] bytes, long offset, int remaining) {
       for (;;) {
-        // Optimize for interior runs of ASCII bytes.
-        // TODO(nathanmittler): Consider checking 8 bytes at a time after some threshold?
-        // Maybe after seeing a few in a row that are ASCII, go back to fast mode?
+        // Skip past ASCII characters as quickly as possible. This also covers interior runs of
+        // ASCII in mixed text; when the next byte is not ASCII it costs a single byte read.
+        final int skipped = unsafeEstimateConsecutiveAscii(bytes, offset, remaining);
+        remaining -= skipped;
+        offset += skipped;
+
+        // Finish the bytes left over by the word-at-a-time scan.
         int byte1 = 0;
         for (; remaining > 0 && (byte1 = UnsafeUtil.getByte(bytes, offset++)) >= 0; --remaining) {
         }
@@ -1815,15 +1866,14 @@ final class Utf8 {
     }
 
     private static int partialIsValidUtf8(long address, int remaining) {
-      // Skip past ASCII characters as quickly as possible.
-      final int skipped = unsafeEstimateConsecutiveAscii(address, remaining);
-      address += skipped;
-      remaining -= skipped;
-
       for (;;) {
-        // Optimize for interior runs of ASCII bytes.
-        // TODO(nathanmittler): Consider checking 8 bytes at a time after some threshold?
-        // Maybe after seeing a few in a row that are ASCII, go back to fast mode?
+        // Skip past ASCII characters as quickly as possible. This also covers interior runs of
+        // ASCII in mixed text; when the next byte is not ASCII it costs a single byte read.
+        final int skipped = unsafeEstimateConsecutiveAscii(address, remaining);
+        address += skipped;
+        remaining -= skipped;
+
+        // Finish the bytes left over by the word-at-a-time scan.
         int byte1 = 0;
         for (; remaining > 0 && (byte1 = UnsafeUtil.getByte(address++)) >= 0; --remaining) {
         }
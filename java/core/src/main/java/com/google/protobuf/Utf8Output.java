@@ -0,0 +1,165 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// https://developers.google.com/protocol-buffers/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.google.protobuf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link Appendable} that encodes what is appended to it as UTF-8 into a buffer, which it hands
+ * to its target whenever it fills up. The text and JSON printers append many short pieces of text,
+ * and unlike an {@link java.io.OutputStreamWriter} this takes no lock and goes through no {@link
+ * java.nio.charset.CharsetEncoder} for each of them. Unpaired surrogates become {@code '?'}, as
+ * they do there.
+ *
+ * <p>Used internally by {@link TextFormat} and {@code JsonFormat}. It is public only because the
+ * latter does not reside in the {@code protobuf} package. Others should not use this class
+ * directly.
+ */
+public abstract class Utf8Output implements Appendable {
+  private final byte[] buffer = new byte[8192];
+  private int position;
+  // Set if the last character appended was a high surrogate, to be paired with the next one.
+  private char highSurrogate;
+
+  private Utf8Output() {}
+
+  /** Returns an output that writes to {@code output}, which it does not flush. */
+  public static Utf8Output to(final OutputStream output) {
+    return new Utf8Output() {
+      @Override
+      void write(byte[] bytes, int length) throws IOException {
+        output.write(bytes, 0, length);
+      }
+    };
+  }
+
+  /**
+   * Returns an output that writes to {@code output} from its position on.
+   *
+   * @throws java.nio.BufferOverflowException from the append that does not fit
+   */
+  public static Utf8Output to(final ByteBuffer output) {
+    return new Utf8Output() {
+      @Override
+      void write(byte[] bytes, int length) {
+        output.put(bytes, 0, length);
+      }
+    };
+  }
+
+  /** Returns an output that writes to {@code output}. */
+  public static Utf8Output to(final ByteOutput output) {
+    return new Utf8Output() {
+      @Override
+      void write(byte[] bytes, int length) throws IOException {
+        output.write(bytes, 0, length);
+      }
+    };
+  }
+
+  /** Hands the first {@code length} bytes of {@code bytes} to the target, to be copied. */
+  abstract void write(byte[] bytes, int length) throws IOException;
+
+  @Override
+  public final Utf8Output append(final CharSequence text) throws IOException {
+    return text == null ? append("null") : append(text, 0, text.length());
+  }
+
+  @Override
+  public final Utf8Output append(CharSequence text, final int start, final int end)
+      throws IOException {
+    if (text == null) {
+      text = "null";
+    }
+    for (int i = start; i < end; i++) {
+      append(text.charAt(i));
+    }
+    return this;
+  }
+
+  @Override
+  public final Utf8Output append(final char c) throws IOException {
+    // Room for a surrogate pair, or for a '?' and a three-byte character.
+    if (position > buffer.length - 4) {
+      write(buffer, position);
+      position = 0;
+    }
+    if (c < 0x80 && highSurrogate == 0) {
+      buffer[position++] = (byte) c;
+    } else {
+      encode(c);
+    }
+    return this;
+  }
+
+  private void encode(final char c) {
+    if (highSurrogate != 0) {
+      final char high = highSurrogate;
+      highSurrogate = 0;
+      if (Character.isLowSurrogate(c)) {
+        final int codePoint = Character.toCodePoint(high, c);
+        buffer[position++] = (byte) (0xF0 | (codePoint >>> 18));
+        buffer[position++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3F));
+        buffer[position++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3F));
+        buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+        return;
+      }
+      buffer[position++] = '?';
+    }
+    if (c < 0x80) {
+      buffer[position++] = (byte) c;
+    } else if (c < 0x800) {
+      buffer[position++] = (byte) (0xC0 | (c >>> 6));
+      buffer[position++] = (byte) (0x80 | (c & 0x3F));
+    } else if (Character.isHighSurrogate(c)) {
+      highSurrogate = c;
+    } else if (Character.isLowSurrogate(c)) {
+      buffer[position++] = '?';
+    } else {
+      buffer[position++] = (byte) (0xE0 | (c >>> 12));
+      buffer[position++] = (byte) (0x80 | ((c >>> 6) & 0x3F));
+      buffer[position++] = (byte) (0x80 | (c & 0x3F));
+    }
+  }
+
+  /** Hands everything appended so far to the target. Call it once, after the last append. */
+  public void finish() throws IOException {
+    if (highSurrogate != 0) {
+      highSurrogate = 0;
+      buffer[position++] = '?';
+    }
+    write(buffer, position);
+    position = 0;
+  }
+}
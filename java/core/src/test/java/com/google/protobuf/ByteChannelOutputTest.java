@@ -0,0 +1,227 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// https://developers.google.com/protocol-buffers/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.google.protobuf;
+
+import protobuf_unittest.UnittestProto.TestAllTypes;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ByteChannelOutput} and {@link CodedOutputStream#newInstance(
+ * java.nio.channels.WritableByteChannel)}.
+ */
+public class ByteChannelOutputTest extends TestCase {
+
+  public void testGatheringChannel() throws IOException {
+    TestAllTypes message = newMessage();
+    RecordingChannel channel = new RecordingChannel(Integer.MAX_VALUE);
+    CodedOutputStream output = CodedOutputStream.newInstance(channel);
+    message.writeTo(output);
+    assertEquals(0, channel.out.size());
+    output.flush();
+    assertTrue(Arrays.equals(message.toByteArray(), channel.out.toByteArray()));
+    // Everything goes out in one gathering write.
+    assertEquals(1, channel.gatheringWrites);
+    assertEquals(0, channel.writes);
+  }
+
+  public void testPartialWrites() throws IOException {
+    TestAllTypes message = newMessage();
+    RecordingChannel channel = new RecordingChannel(100);
+    CodedOutputStream output = CodedOutputStream.newInstance(channel, 64);
+    message.writeTo(output);
+    output.flush();
+    assertTrue(Arrays.equals(message.toByteArray(), channel.out.toByteArray()));
+  }
+
+  public void testNonGatheringChannel() throws IOException {
+    TestAllTypes message = newMessage();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CodedOutputStream output = CodedOutputStream.newInstance(Channels.newChannel(out));
+    message.writeTo(output);
+    output.flush();
+    assertTrue(Arrays.equals(message.toByteArray(), out.toByteArray()));
+  }
+
+  public void testLargeWritesAreNotCopied() throws IOException {
+    byte[] bytes = randomBytes(10000);
+    RecordingChannel channel = new RecordingChannel(Integer.MAX_VALUE);
+    ByteChannelOutput output = new ByteChannelOutput(channel, 100);
+    output.write((byte) 1);
+    output.writeLazy(bytes, 0, bytes.length);
+    output.write((byte) 2);
+    output.flush();
+    assertEquals(3, channel.buffers.size());
+    assertSame(bytes, channel.buffers.get(1).array());
+
+    byte[] expected = new byte[bytes.length + 2];
+    expected[0] = 1;
+    System.arraycopy(bytes, 0, expected, 1, bytes.length);
+    expected[expected.length - 1] = 2;
+    assertTrue(Arrays.equals(expected, channel.out.toByteArray()));
+  }
+
+  public void testSmallWritesAreCopied() throws IOException {
+    byte[] bytes = randomBytes(100);
+    RecordingChannel channel = new RecordingChannel(Integer.MAX_VALUE);
+    ByteChannelOutput output = new ByteChannelOutput(channel, 100);
+    output.writeLazy(bytes, 0, bytes.length);
+    output.writeLazy(ByteBuffer.wrap(bytes));
+    // Changes after the writes must not show up in the output.
+    byte[] expected = new byte[bytes.length * 2];
+    System.arraycopy(bytes, 0, expected, 0, bytes.length);
+    System.arraycopy(bytes, 0, expected, bytes.length, bytes.length);
+    Arrays.fill(bytes, (byte) 0);
+    output.flush();
+    assertEquals(1, channel.buffers.size());
+    assertTrue(Arrays.equals(expected, channel.out.toByteArray()));
+  }
+
+  public void testEncoderWritesIntoScratchBuffer() throws IOException {
+    final List<byte[]> allocated = new ArrayList<byte[]>();
+    BufferAllocator allocator =
+        new BufferAllocator() {
+          @Override
+          public byte[] allocateHeapBuffer(int capacity) {
+            byte[] buffer = new byte[capacity];
+            allocated.add(buffer);
+            return buffer;
+          }
+        };
+    TestAllTypes message = newMessage();
+    RecordingChannel channel = new RecordingChannel(Integer.MAX_VALUE);
+    CodedOutputStream output = CodedOutputStream.newInstance(channel, 100, allocator);
+    message.writeTo(output);
+    output.flush();
+    assertTrue(Arrays.equals(message.toByteArray(), channel.out.toByteArray()));
+    // The small fields reach the channel in the one array the stream borrowed.
+    assertEquals(1, allocated.size());
+    assertSame(allocated.get(0), channel.buffers.get(0).array());
+    output.release();
+  }
+
+  public void testReleasedOutputDropsScratchArray() throws IOException {
+    ByteChannelOutput output =
+        new ByteChannelOutput(
+            new RecordingChannel(Integer.MAX_VALUE), 100, BufferAllocator.unpooled());
+    output.release();
+    output.release();
+    try {
+      output.scratchArray();
+      fail("Should have thrown an exception!");
+    } catch (IllegalStateException expected) {
+    }
+    try {
+      output.write(new byte[10], 0, 10);
+      fail("Should have thrown an exception!");
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  private static TestAllTypes newMessage() {
+    ByteString large = ByteString.copyFrom(randomBytes(5000));
+    ByteString rope = large.concat(ByteString.copyFrom(randomBytes(3000)));
+    return TestAllTypes.newBuilder()
+        .setOptionalInt32(1)
+        .setOptionalString("small")
+        .setOptionalBytes(large)
+        .addRepeatedBytes(rope)
+        .addRepeatedBytes(ByteString.copyFromUtf8("small"))
+        .addRepeatedBytes(large)
+        .setOptionalNestedMessage(TestAllTypes.NestedMessage.newBuilder().setBb(2))
+        .build();
+  }
+
+  private static byte[] randomBytes(int size) {
+    byte[] bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return bytes;
+  }
+
+  /** A channel that records what is written to it, taking at most a given number of bytes. */
+  private static final class RecordingChannel implements GatheringByteChannel {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+    final int maxBytesPerWrite;
+    int writes;
+    int gatheringWrites;
+
+    RecordingChannel(int maxBytesPerWrite) {
+      this.maxBytesPerWrite = maxBytesPerWrite;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+      writes++;
+      return consume(src, maxBytesPerWrite);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+      gatheringWrites++;
+      int written = 0;
+      for (int i = offset; i < offset + length && written < maxBytesPerWrite; i++) {
+        buffers.add(srcs[i]);
+        written += consume(srcs[i], maxBytesPerWrite - written);
+      }
+      return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) {
+      return write(srcs, 0, srcs.length);
+    }
+
+    private int consume(ByteBuffer src, int max) {
+      int n = Math.min(src.remaining(), max);
+      for (int i = 0; i < n; i++) {
+        out.write(src.get());
+      }
+      return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
@@ -31,8 +31,12 @@
 package com.google.protobuf;
 
 import com.google.protobuf.ByteString.Output;
+import protobuf_unittest.UnittestProto.TestAllTypes;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -41,6 +45,7 @@ import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -298,6 +303,70 @@ public class ByteStringTest extends TestCase {
         isArray(byteString.toByteArray(), data));
   }
 
+  public void testFromMappedFile() throws IOException {
+    byte[] bytes = getTestBytes(10000, 42L);
+    File file = writeTempFile(bytes);
+    try {
+      ByteString mapped = ByteString.fromMappedFile(file, 1000, 5000);
+      ByteString expected = ByteString.copyFrom(bytes, 1000, 5000);
+      assertEquals(expected, mapped);
+      assertEquals(expected.hashCode(), mapped.hashCode());
+      assertEquals(expected.substring(100, 200), mapped.substring(100, 200));
+      assertEquals(ByteString.EMPTY, ByteString.fromMappedFile(file, 10000, 0));
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      mapped.writeTo(out);
+      assertTrue(isArrayRange(out.toByteArray(), bytes, 1000, 5000));
+    } finally {
+      file.delete();
+    }
+  }
+
+  public void testFromMappedFile_parse() throws IOException {
+    TestAllTypes message = TestUtil.getAllSet();
+    File file = writeTempFile(message.toByteArray());
+    try {
+      ByteString mapped = ByteString.fromMappedFile(file, 0, file.length());
+      assertEquals(message, TestAllTypes.parseFrom(mapped));
+    } finally {
+      file.delete();
+    }
+  }
+
+  public void testFromMappedFile_invalidRegion() throws IOException {
+    File file = writeTempFile(new byte[100]);
+    try {
+      try {
+        ByteString.fromMappedFile(file, 50, 51);
+        fail("Should have thrown");
+      } catch (EOFException expected) {
+      }
+      try {
+        ByteString.fromMappedFile(file, -1, 10);
+        fail("Should have thrown");
+      } catch (IllegalArgumentException expected) {
+      }
+      try {
+        ByteString.fromMappedFile(file, 0, Integer.MAX_VALUE + 1L);
+        fail("Should have thrown");
+      } catch (IllegalArgumentException expected) {
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  private static File writeTempFile(byte[] bytes) throws IOException {
+    File file = File.createTempFile("ByteStringTest", ".bin");
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
   // Fails unless ByteString.readFrom reads the bytes correctly.
   private void assertReadFrom(byte[] bytes) throws IOException {
     ByteString byteString =
@@ -588,6 +657,79 @@ public class ByteStringTest extends TestCase {
         literalString.hashCode(), listString.hashCode());
   }
 
+  public void testUnsignedLexicographicalComparator() {
+    Comparator<ByteString> comparator = ByteString.unsignedLexicographicalComparator();
+    ByteString[] ordered = {
+      ByteString.EMPTY,
+      ByteString.copyFrom(new byte[] {0}),
+      ByteString.copyFrom(new byte[] {0, 0}),
+      ByteString.copyFrom(new byte[] {1}),
+      ByteString.copyFrom(new byte[] {1, 0}),
+      ByteString.copyFrom(new byte[] {(byte) 0x7f}),
+      ByteString.copyFrom(new byte[] {(byte) 0x80}),
+      ByteString.copyFrom(new byte[] {(byte) 0xff}),
+      ByteString.copyFrom(new byte[] {(byte) 0xff, 0}),
+    };
+    for (int i = 0; i < ordered.length; i++) {
+      for (int j = 0; j < ordered.length; j++) {
+        int expected = i < j ? -1 : i > j ? 1 : 0;
+        int actual = comparator.compare(ordered[i], ordered[j]);
+        assertEquals(i + " vs " + j, expected, Integer.signum(actual));
+      }
+    }
+  }
+
+  public void testUnsignedLexicographicalComparator_representations() {
+    Comparator<ByteString> comparator = ByteString.unsignedLexicographicalComparator();
+    Random random = new Random(42);
+    byte[] bytes = getTestBytes(2000, 42L);
+    for (int trial = 0; trial < 200; trial++) {
+      // Mostly equal ranges, differing in one byte at a random place, at random alignments.
+      byte[] other = bytes.clone();
+      int length = random.nextInt(100) + 1;
+      int thisStart = random.nextInt(bytes.length - length);
+      int otherStart = random.nextInt(bytes.length - length);
+      System.arraycopy(bytes, thisStart, other, otherStart, length);
+      if (random.nextBoolean()) {
+        other[otherStart + random.nextInt(length)] = (byte) random.nextInt();
+      }
+      int otherLength = random.nextBoolean() ? length : random.nextInt(length) + 1;
+      byte[] left = Arrays.copyOfRange(bytes, thisStart, thisStart + length);
+      byte[] right = Arrays.copyOfRange(other, otherStart, otherStart + otherLength);
+      int expected = Integer.signum(compareUnsigned(left, right));
+
+      for (ByteString former : representations(bytes, thisStart, length)) {
+        for (ByteString latter : representations(other, otherStart, otherLength)) {
+          assertEquals(expected, Integer.signum(comparator.compare(former, latter)));
+          assertEquals(-expected, Integer.signum(comparator.compare(latter, former)));
+          assertEquals(expected == 0, former.equals(latter));
+        }
+      }
+    }
+  }
+
+  private static List<ByteString> representations(byte[] bytes, int offset, int length) {
+    byte[] copy = Arrays.copyOfRange(bytes, offset, offset + length);
+    List<ByteString> result = new ArrayList<ByteString>();
+    result.add(ByteString.copyFrom(copy));
+    result.add(ByteString.wrap(bytes, offset, length));
+    result.add(ByteString.wrap(ByteBuffer.wrap(copy).asReadOnlyBuffer()));
+    int split = length / 3;
+    result.add(
+        ByteString.wrap(bytes, offset, split)
+            .concat(ByteString.wrap(bytes, offset + split, length - split)));
+    return result;
+  }
+
+  private static int compareUnsigned(byte[] left, byte[] right) {
+    for (int i = 0; i < Math.min(left.length, right.length); i++) {
+      if (left[i] != right[i]) {
+        return (left[i] & 0xff) - (right[i] & 0xff);
+      }
+    }
+    return left.length - right.length;
+  }
+
   public void testConcat() {
     byte[] referenceBytes = getTestBytes(77748, 113344L);
     ByteString literalString = ByteString.copyFrom(referenceBytes);
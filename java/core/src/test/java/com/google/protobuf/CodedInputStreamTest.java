@@ -853,6 +853,108 @@ public class CodedInputStreamTest extends TestCase {
     }
   }
 
+  public void testStringInterner() throws Exception {
+    ByteString.Output rawOutput = ByteString.newOutput();
+    CodedOutputStream output = CodedOutputStream.newInstance(rawOutput);
+    String longText = "a string too long to be interned, or so one hopes";
+    for (int i = 0; i < 2; i++) {
+      output.writeStringNoTag("host");
+      output.writeStringNoTag("\u00e9t\u00e9");
+      output.writeBytesNoTag(ByteString.copyFromUtf8("label"));
+      output.writeStringNoTag(longText);
+    }
+    output.writeByteArrayNoTag(new byte[] {(byte) 0x80});
+    output.writeByteArrayNoTag(new byte[] {(byte) 0x80});
+    output.flush();
+
+    byte[] rawInput = rawOutput.toByteString().toByteArray();
+    for (InputType inputType : InputType.values()) {
+      StringInterner interner = StringInterner.newInstance(16, 20);
+      String host = null;
+      for (int i = 0; i < 2; i++) {
+        CodedInputStream input = inputType.newDecoder(rawInput);
+        input.setStringInterner(interner);
+        String host1 = input.readString();
+        String summer1 = input.readStringRequireUtf8();
+        ByteString label1 = input.readBytes();
+        String long1 = input.readString();
+        String host2 = input.readStringRequireUtf8();
+        String summer2 = input.readString();
+        ByteString label2 = input.readBytes();
+        String long2 = input.readString();
+        assertEquals(inputType.name(), "host", host1);
+        assertEquals(inputType.name(), "\u00e9t\u00e9", summer1);
+        assertEquals(inputType.name(), ByteString.copyFromUtf8("label"), label1);
+        assertEquals(inputType.name(), longText, long1);
+        assertSame(inputType.name(), host1, host2);
+        assertSame(inputType.name(), summer1, summer2);
+        assertSame(inputType.name(), label1, label2);
+        assertEquals(inputType.name(), long1, long2);
+        assertNotSame(inputType.name(), long1, long2);
+        if (host != null) {
+          // Interners are shared between streams.
+          assertSame(inputType.name(), host, host1);
+        }
+        host = host1;
+
+        // Invalid UTF-8 is replaced by readString(), but still rejected afterwards.
+        assertEquals(inputType.name(), 0xfffd, input.readString().charAt(0));
+        try {
+          input.readStringRequireUtf8();
+          fail(inputType.name() + ": Expected invalid UTF-8 exception.");
+        } catch (InvalidProtocolBufferException expected) {
+        }
+      }
+    }
+  }
+
+  public void testReset() throws Exception {
+    byte[] first = TestUtil.getAllSet().toByteArray();
+    byte[] second = makeRecursiveMessage(5).toByteArray();
+
+    CodedInputStream array = CodedInputStream.newInstance(new byte[0]);
+    array.setRecursionLimit(1);
+    array.setStringInterner(StringInterner.newInstance(16, 16));
+    array.reset(first);
+    assertNull(array.stringInterner);
+    assertEquals(TestUtil.getAllSet(), TestAllTypes.parseFrom(array));
+    array.reset(second);
+    assertMessageDepth("array", TestRecursiveMessage.parseFrom(array), 5);
+    array.reset(ByteBuffer.wrap(first));
+    assertEquals(TestUtil.getAllSet(), TestAllTypes.parseFrom(array));
+    array.reset(ByteBuffer.wrap(first).asReadOnlyBuffer());
+    assertEquals(TestUtil.getAllSet(), TestAllTypes.parseFrom(array));
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(first.length);
+    direct.put(first).flip();
+    CodedInputStream nio = CodedInputStream.newInstance(direct);
+    assertEquals(TestUtil.getAllSet(), TestAllTypes.parseFrom(nio));
+    direct.clear();
+    direct.put(second).flip();
+    nio.reset(direct);
+    assertMessageDepth("nio", TestRecursiveMessage.parseFrom(nio), 5);
+
+    CodedInputStream stream = CodedInputStream.newInstance(new ByteArrayInputStream(first));
+    stream.setSizeLimit(16);
+    stream.setStringInterner(StringInterner.newInstance(16, 16));
+    stream.readTag();
+    stream.reset(new SmallBlockInputStream(second, 3));
+    assertEquals(0, stream.getTotalBytesRead());
+    assertNull(stream.stringInterner);
+    assertMessageDepth("stream", TestRecursiveMessage.parseFrom(stream), 5);
+
+    try {
+      stream.reset(first);
+      fail("Should have thrown an exception!");
+    } catch (UnsupportedOperationException expected) {
+    }
+    try {
+      array.reset(new ByteArrayInputStream(first));
+      fail("Should have thrown an exception!");
+    } catch (UnsupportedOperationException expected) {
+    }
+  }
+
   public void testReadFromSlice() throws Exception {
     byte[] bytes = bytes(0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
     CodedInputStream in = CodedInputStream.newInstance(bytes, 3, 5);
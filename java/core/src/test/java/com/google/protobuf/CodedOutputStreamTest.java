@@ -38,6 +38,7 @@ import protobuf_unittest.UnittestProto.TestSparseEnum;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -82,6 +83,59 @@ public class CodedOutputStreamTest extends TestCase {
     }
   }
 
+  private static final class ByteOutputCoder implements Coder {
+    private final CodedOutputStream stream;
+    private final ByteArrayOutputStream output;
+
+    ByteOutputCoder(int size) {
+      output = new ByteArrayOutputStream();
+      stream =
+          CodedOutputStream.newInstance(
+              new ByteOutput() {
+                @Override
+                public void write(byte value) {
+                  output.write(value);
+                }
+
+                @Override
+                public void write(byte[] value, int offset, int length) {
+                  output.write(value, offset, length);
+                }
+
+                @Override
+                public void writeLazy(byte[] value, int offset, int length) {
+                  output.write(value, offset, length);
+                }
+
+                @Override
+                public void write(ByteBuffer value) {
+                  throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public void writeLazy(ByteBuffer value) {
+                  throw new UnsupportedOperationException();
+                }
+              },
+              size);
+    }
+
+    @Override
+    public CodedOutputStream stream() {
+      return stream;
+    }
+
+    @Override
+    public byte[] toByteArray() {
+      return output.toByteArray();
+    }
+
+    @Override
+    public OutputType getOutputType() {
+      return OutputType.BYTE_OUTPUT;
+    }
+  }
+
   private static final class ArrayCoder implements Coder {
     private final CodedOutputStream stream;
     private final byte[] bytes;
@@ -218,6 +272,12 @@ public class CodedOutputStreamTest extends TestCase {
       Coder newCoder(int size) {
         return new OutputStreamCoder(size);
       }
+    },
+    BYTE_OUTPUT() {
+      @Override
+      Coder newCoder(int size) {
+        return new ByteOutputCoder(size);
+      }
     };
 
     abstract Coder newCoder(int size);
@@ -427,6 +487,63 @@ public class CodedOutputStreamTest extends TestCase {
     }
   }
 
+  public void testWriteStringNoTag_lengthNeedsLongerVarint() throws Exception {
+    // 50 chars need a 1 byte length, but their 150 byte encoding needs a 2 byte length, so the
+    // encoded string has to be shifted after it is written.
+    String string = "";
+    for (int i = 0; i < 50; i++) {
+      string += "\u0981";
+    }
+    byte[] encoded = ByteString.copyFromUtf8(string).toByteArray();
+    assertEquals(2, CodedOutputStream.computeUInt32SizeNoTag(encoded.length));
+
+    for (OutputType outputType : new OutputType[] {OutputType.ARRAY, OutputType.NIO_HEAP}) {
+      // There is room for the string behind a 1 byte length, but not behind a 2 byte length.
+      Coder coder = outputType.newCoder(encoded.length + 1);
+      try {
+        coder.stream().writeStringNoTag(string);
+        fail("Should have thrown an out of space exception");
+      } catch (OutOfSpaceException expected) {
+      }
+
+      coder = outputType.newCoder(encoded.length + 2);
+      coder.stream().writeStringNoTag(string);
+      coder.stream().flush();
+      CodedInputStream input = CodedInputStream.newInstance(coder.toByteArray());
+      assertEquals(string, input.readStringRequireUtf8());
+      assertTrue(input.isAtEnd());
+    }
+  }
+
+  public void testWriteStringNoTag_lengthVarintBoundaries() throws Exception {
+    // Two byte characters make strings whose encoded lengths sit on either side of a varint
+    // boundary while their char counts stay below it, so the longer lengths need a shift.
+    for (int encodedLength : new int[] {127, 128, 16383, 16384}) {
+      StringBuilder builder = new StringBuilder();
+      for (int i = 0; i < encodedLength / 2; i++) {
+        builder.append("\u00e9");
+      }
+      if (encodedLength % 2 != 0) {
+        builder.append('a');
+      }
+      String string = builder.toString();
+      assertEquals(encodedLength, ByteString.copyFromUtf8(string).size());
+
+      for (OutputType outputType : OutputType.values()) {
+        // Leave the streaming encoders enough room to encode the string into their buffer.
+        Coder coder = outputType.newCoder(string.length() * Utf8.MAX_BYTES_PER_CHAR + 3);
+        coder.stream().writeStringNoTag(string);
+        coder.stream().flush();
+        assertEquals(
+            CodedOutputStream.computeStringSizeNoTag(string),
+            coder.stream().getTotalBytesWritten());
+        CodedInputStream input = CodedInputStream.newInstance(coder.toByteArray());
+        assertEquals(outputType.name(), string, input.readStringRequireUtf8());
+        assertTrue(input.isAtEnd());
+      }
+    }
+  }
+
   public void testWriteToByteBuffer() throws Exception {
     final int bufferSize = 16 * 1024;
     ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
@@ -613,6 +730,56 @@ public class CodedOutputStreamTest extends TestCase {
     }
   }
 
+  public void testReset() throws Exception {
+    TestAllTypes message = TestUtil.getAllSet();
+    byte[] expected = message.toByteArray();
+
+    byte[] array = new byte[expected.length];
+    CodedOutputStream arrayOutput = CodedOutputStream.newInstance(new byte[1]);
+    arrayOutput.useDeterministicSerialization();
+    arrayOutput.reset(array);
+    assertFalse(arrayOutput.isSerializationDeterministic());
+    message.writeTo(arrayOutput);
+    arrayOutput.checkNoSpaceLeft();
+    assertTrue(Arrays.equals(expected, array));
+
+    for (ByteBuffer buffer :
+        new ByteBuffer[] {
+          ByteBuffer.allocate(expected.length), ByteBuffer.allocateDirect(expected.length)
+        }) {
+      CodedOutputStream bufferOutput = CodedOutputStream.newInstance(buffer.duplicate());
+      bufferOutput.writeStringNoTag("unused");
+      bufferOutput.reset(buffer);
+      message.writeTo(bufferOutput);
+      bufferOutput.flush();
+      assertEquals(expected.length, buffer.position());
+      buffer.flip();
+      assertEquals(ByteString.copyFrom(expected), ByteString.copyFrom(buffer));
+    }
+
+    ByteArrayOutputStream first = new ByteArrayOutputStream();
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+    CodedOutputStream streamOutput = CodedOutputStream.newInstance(first);
+    streamOutput.writeStringNoTag("discarded");
+    streamOutput.reset(second);
+    message.writeTo(streamOutput);
+    streamOutput.flush();
+    assertEquals(0, first.size());
+    assertEquals(expected.length, streamOutput.getTotalBytesWritten());
+    assertTrue(Arrays.equals(expected, second.toByteArray()));
+
+    try {
+      streamOutput.reset(array);
+      fail("Should have thrown an exception!");
+    } catch (UnsupportedOperationException expectedException) {
+    }
+    try {
+      CodedOutputStream.newInstance(ByteBuffer.allocate(1)).reset(ByteBuffer.allocateDirect(1));
+      fail("Should have thrown an exception!");
+    } catch (UnsupportedOperationException expectedException) {
+    }
+  }
+
   public void testNioEncodersWithInitialOffsets() throws Exception {
     String value = "abc";
     for (Coder coder :
@@ -625,6 +792,160 @@ public class CodedOutputStreamTest extends TestCase {
     }
   }
 
+  public void testBufferAllocator() throws Exception {
+    TestAllTypes message = TestUtil.getAllSet();
+    RecordingAllocator allocator = new RecordingAllocator();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CodedOutputStream output = CodedOutputStream.newInstance(out, 100, allocator);
+    assertEquals(1, allocator.heapBuffers.size());
+    assertEquals(100, allocator.heapBuffers.get(0).length);
+    message.writeTo(output);
+    output.flush();
+    output.release();
+    output.release();
+    assertEquals(allocator.heapBuffers, allocator.releasedHeapBuffers);
+    assertTrue(Arrays.equals(message.toByteArray(), out.toByteArray()));
+  }
+
+  public void testBufferAllocatorForChannel() throws Exception {
+    TestAllTypes message = TestUtil.getAllSet();
+    RecordingAllocator allocator = new RecordingAllocator();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CodedOutputStream output =
+        CodedOutputStream.newInstance(Channels.newChannel(out), 100, allocator);
+    // The stream encodes into the buffer the channel reads from.
+    assertEquals(1, allocator.heapBuffers.size());
+    message.writeTo(output);
+    output.flush();
+    output.release();
+    output.release();
+    assertEquals(allocator.heapBuffers, allocator.releasedHeapBuffers);
+    assertTrue(Arrays.equals(message.toByteArray(), out.toByteArray()));
+  }
+
+  public void testReleaseThenReset() throws Exception {
+    TestAllTypes message = TestUtil.getAllSet();
+    byte[] expected = message.toByteArray();
+    PoolingAllocator allocator = new PoolingAllocator();
+    CodedOutputStream output =
+        CodedOutputStream.newInstance(new ByteArrayOutputStream(), 100, allocator);
+    output.writeStringNoTag("discarded");
+    output.flush();
+    output.release();
+
+    // The pool hands the released array to another stream...
+    ByteArrayOutputStream otherOut = new ByteArrayOutputStream();
+    CodedOutputStream other = CodedOutputStream.newInstance(otherOut, 100, allocator);
+    assertEquals(1, allocator.allocated);
+
+    try {
+      output.writeInt32NoTag(1);
+      fail("Should have thrown an exception!");
+    } catch (IllegalStateException expectedException) {
+    }
+    try {
+      output.write((byte) 1);
+      fail("Should have thrown an exception!");
+    } catch (IllegalStateException expectedException) {
+    }
+    try {
+      output.writeStringNoTag("");
+      fail("Should have thrown an exception!");
+    } catch (IllegalStateException expectedException) {
+    }
+    try {
+      output.writeRawBytes(new byte[1000]);
+      fail("Should have thrown an exception!");
+    } catch (IllegalStateException expectedException) {
+    }
+
+    // ...so a reset stream must borrow a new one rather than keep writing to it.
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    output.reset(out);
+    assertEquals(2, allocator.allocated);
+    message.writeTo(output);
+    message.writeTo(other);
+    output.flush();
+    other.flush();
+    assertTrue(Arrays.equals(expected, out.toByteArray()));
+    assertTrue(Arrays.equals(expected, otherOut.toByteArray()));
+    output.release();
+    other.release();
+    assertEquals(2, allocator.heapPool.size());
+  }
+
+  public void testReleaseForChannel() throws Exception {
+    PoolingAllocator allocator = new PoolingAllocator();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CodedOutputStream output =
+        CodedOutputStream.newInstance(Channels.newChannel(out), 100, allocator);
+    output.writeStringNoTag("abc");
+    output.flush();
+    output.release();
+    assertEquals(1, allocator.heapPool.size());
+    try {
+      output.writeByteArrayNoTag(new byte[ByteChannelOutput.MIN_LAZY_SEGMENT_SIZE]);
+      fail("Should have thrown an exception!");
+    } catch (IllegalStateException expectedException) {
+    }
+    try {
+      output.writeRawBytes(new byte[ByteChannelOutput.MIN_LAZY_SEGMENT_SIZE]);
+      fail("Should have thrown an exception!");
+    } catch (IllegalStateException expectedException) {
+    }
+    try {
+      output.flush();
+      fail("Should have thrown an exception!");
+    } catch (IllegalStateException expectedException) {
+    }
+    try {
+      output.reset(out);
+      fail("Should have thrown an exception!");
+    } catch (UnsupportedOperationException expectedException) {
+    }
+    assertTrue(Arrays.equals(new byte[] {3, 'a', 'b', 'c'}, out.toByteArray()));
+  }
+
+  /** An allocator that hands released buffers out again. */
+  private static final class PoolingAllocator extends BufferAllocator {
+    final List<byte[]> heapPool = new ArrayList<byte[]>();
+    int allocated;
+
+    @Override
+    public byte[] allocateHeapBuffer(int capacity) {
+      for (int i = 0; i < heapPool.size(); i++) {
+        if (heapPool.get(i).length >= capacity) {
+          return heapPool.remove(i);
+        }
+      }
+      allocated++;
+      return new byte[capacity];
+    }
+
+    @Override
+    public void release(byte[] buffer) {
+      heapPool.add(buffer);
+    }
+  }
+
+  /** An allocator that records what it allocates and what is given back. */
+  private static final class RecordingAllocator extends BufferAllocator {
+    final List<byte[]> heapBuffers = new ArrayList<byte[]>();
+    final List<byte[]> releasedHeapBuffers = new ArrayList<byte[]>();
+
+    @Override
+    public byte[] allocateHeapBuffer(int capacity) {
+      byte[] buffer = new byte[capacity];
+      heapBuffers.add(buffer);
+      return buffer;
+    }
+
+    @Override
+    public void release(byte[] buffer) {
+      releasedHeapBuffers.add(buffer);
+    }
+  }
+
   /**
    * Parses the given bytes using writeRawLittleEndian32() and checks
    * that the result matches the given value.
@@ -5,6 +5,7 @@ import com.google.protobuf.Utf8.SafeProcessor;
 import com.google.protobuf.Utf8.UnsafeProcessor;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
 import junit.framework.TestCase;
@@ -124,6 +125,32 @@ public class DecodeUtf8Test extends TestCase {
             + "\u4e2d\u7684\u4e0b\u4e00");
   }
 
+  public void testLongAsciiRuns() throws Exception {
+    // Runs long enough for the word-at-a-time ASCII scan, starting at every alignment.
+    String ascii = "The quick brown fox jumps over the lazy dog";
+    String str =
+        ascii + "\u3044\u308d" + ascii + "\u00e6" + ascii + "\uD841\uDF0E" + ascii;
+    int length = str.getBytes(Internal.UTF_8).length;
+    for (int start = 0; start < 8; start++) {
+      assertRoundTrips(str, start, length - start);
+      assertRoundTrips(str, 0, length - start);
+    }
+  }
+
+  public void testInvalidByteInLongAsciiRun() throws Exception {
+    byte[] bytes = new byte[64];
+    for (int i = 0; i < bytes.length; i++) {
+      Arrays.fill(bytes, (byte) 'a');
+      bytes[i] = (byte) 0xFF;
+      assertInvalid(bytes);
+      assertFalse(UNSAFE_PROCESSOR.isValidUtf8(bytes, 0, bytes.length));
+      ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+      direct.put(bytes);
+      direct.flip();
+      assertFalse(UNSAFE_PROCESSOR.isValidUtf8(direct, 0, bytes.length));
+    }
+  }
+
   public void testOverlong() throws Exception {
     assertInvalid(0xc0, 0xaf);
     assertInvalid(0xe0, 0x80, 0xaf);
@@ -0,0 +1,223 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// https://developers.google.com/protocol-buffers/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.google.protobuf;
+
+import protobuf_unittest.UnittestProto.TestAllTypes;
+import protobuf_unittest.UnittestProto.TestRequired;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+
+/** Unit test for {@link DelimitedMessageDecoder}. */
+public class DelimitedMessageDecoderTest extends TestCase {
+
+  private static final class CollectingListener<MessageType>
+      implements DelimitedMessageDecoder.Listener<MessageType> {
+    final List<MessageType> messages = new ArrayList<MessageType>();
+
+    @Override
+    public void onMessage(MessageType message) {
+      messages.add(message);
+    }
+  }
+
+  private final List<TestAllTypes> inputs =
+      Arrays.asList(
+          TestUtil.getAllSet(),
+          TestAllTypes.getDefaultInstance(),
+          TestAllTypes.newBuilder().setOptionalInt32(1).build(),
+          TestAllTypes.newBuilder().setOptionalString(repeat('x', 300)).build());
+
+  private CollectingListener<TestAllTypes> listener;
+  private DelimitedMessageDecoder<TestAllTypes> decoder;
+
+  @Override
+  protected void setUp() {
+    listener = new CollectingListener<TestAllTypes>();
+    decoder = DelimitedMessageDecoder.newInstance(TestAllTypes.parser(), listener);
+  }
+
+  public void testDecodeWholeStream() throws Exception {
+    decoder.decode(ByteBuffer.wrap(writeDelimited(inputs)));
+    assertEquals(inputs, listener.messages);
+    assertTrue(decoder.isAtMessageBoundary());
+  }
+
+  public void testDecodeChunks() throws Exception {
+    byte[] stream = writeDelimited(inputs);
+    for (int chunkSize = 1; chunkSize <= 17; chunkSize++) {
+      setUp();
+      for (int offset = 0; offset < stream.length; offset += chunkSize) {
+        int length = Math.min(chunkSize, stream.length - offset);
+        decoder.decode(ByteBuffer.wrap(stream, offset, length));
+      }
+      assertEquals("chunk size " + chunkSize, inputs, listener.messages);
+      assertTrue(decoder.isAtMessageBoundary());
+    }
+  }
+
+  public void testDecodeDirectChunks() throws Exception {
+    byte[] stream = writeDelimited(inputs);
+    int chunkSize = 64;
+    for (int offset = 0; offset < stream.length; offset += chunkSize) {
+      int length = Math.min(chunkSize, stream.length - offset);
+      ByteBuffer chunk = ByteBuffer.allocateDirect(length);
+      chunk.put(stream, offset, length);
+      chunk.flip();
+      decoder.decode(chunk);
+      assertFalse(chunk.hasRemaining());
+    }
+    assertEquals(inputs, listener.messages);
+  }
+
+  public void testIsAtMessageBoundary() throws Exception {
+    byte[] stream = writeDelimited(Arrays.asList(inputs.get(3)));
+    // The length prefix of a 300+ byte message takes two bytes.
+    decoder.decode(ByteBuffer.wrap(stream, 0, 1));
+    assertFalse(decoder.isAtMessageBoundary());
+    decoder.decode(ByteBuffer.wrap(stream, 1, 1));
+    assertFalse(decoder.isAtMessageBoundary());
+    decoder.decode(ByteBuffer.wrap(stream, 2, stream.length - 3));
+    assertFalse(decoder.isAtMessageBoundary());
+    assertTrue(listener.messages.isEmpty());
+    decoder.decode(ByteBuffer.wrap(stream, stream.length - 1, 1));
+    assertTrue(decoder.isAtMessageBoundary());
+    assertEquals(inputs.get(3), listener.messages.get(0));
+  }
+
+  public void testMissingRequiredFields() throws Exception {
+    CollectingListener<TestRequired> requiredListener = new CollectingListener<TestRequired>();
+    DelimitedMessageDecoder<TestRequired> requiredDecoder =
+        DelimitedMessageDecoder.newInstance(TestRequired.parser(), requiredListener);
+    TestRequired initialized = TestRequired.newBuilder().setA(1).setB(2).setC(3).build();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    TestRequired.newBuilder().setA(1).buildPartial().writeDelimitedTo(output);
+    initialized.writeDelimitedTo(output);
+    ByteBuffer stream = ByteBuffer.wrap(output.toByteArray());
+
+    try {
+      requiredDecoder.decode(stream);
+      fail("Should have thrown an exception");
+    } catch (InvalidProtocolBufferException expected) {
+      // The bad message has been consumed and the decoder is still framed.
+    }
+    assertTrue(requiredDecoder.isAtMessageBoundary());
+    requiredDecoder.decode(stream);
+    assertEquals(Arrays.asList(initialized), requiredListener.messages);
+  }
+
+  public void testMalformedSize() throws Exception {
+    try {
+      decoder.decode(ByteBuffer.wrap(new byte[] {-1, -1, -1, -1, -1, 1}));
+      fail("Should have thrown an exception");
+    } catch (InvalidProtocolBufferException expected) {
+    }
+
+    setUp();
+    try {
+      // 2^31 does not fit in an int.
+      decoder.decode(ByteBuffer.wrap(new byte[] {-128, -128, -128, -128, 8}));
+      fail("Should have thrown an exception");
+    } catch (InvalidProtocolBufferException expected) {
+    }
+  }
+
+  public void testDecodeLargeMessageInChunks() throws Exception {
+    // Larger than the initial buffer of a split message, so the buffer has to grow.
+    TestAllTypes large =
+        TestAllTypes.newBuilder().setOptionalString(repeat('y', 10000)).build();
+    byte[] stream = writeDelimited(Arrays.asList(large, inputs.get(2)));
+    int chunkSize = 1000;
+    for (int offset = 0; offset < stream.length; offset += chunkSize) {
+      int length = Math.min(chunkSize, stream.length - offset);
+      decoder.decode(ByteBuffer.wrap(stream, offset, length));
+    }
+    assertEquals(Arrays.asList(large, inputs.get(2)), listener.messages);
+    assertTrue(decoder.isAtMessageBoundary());
+  }
+
+  public void testOversizedPrefixAllocatesOnlyWhatArrives() throws Exception {
+    // A prefix of Integer.MAX_VALUE followed by a few bytes must not make the decoder allocate
+    // a buffer of that size.
+    decoder.decode(ByteBuffer.wrap(new byte[] {-1, -1, -1, -1, 7, 1, 2, 3}));
+    assertFalse(decoder.isAtMessageBoundary());
+    assertTrue(listener.messages.isEmpty());
+  }
+
+  public void testSizeLimit() throws Exception {
+    assertEquals(Integer.MAX_VALUE, decoder.setSizeLimit(100));
+    TestAllTypes small = inputs.get(2);
+    TestAllTypes tooLarge = inputs.get(3);
+    byte[] stream = writeDelimited(Arrays.asList(small, tooLarge, small));
+    int tooLargeEnd = small.getSerializedSize() + 1 + tooLarge.getSerializedSize() + 2;
+
+    // The oversized message is rejected as soon as its prefix is complete, before its body.
+    ByteBuffer chunk = ByteBuffer.wrap(stream, 0, small.getSerializedSize() + 3);
+    try {
+      decoder.decode(chunk);
+      fail("Should have thrown an exception");
+    } catch (InvalidProtocolBufferException expected) {
+    }
+    assertEquals(Arrays.asList(small), listener.messages);
+    assertFalse(decoder.isAtMessageBoundary());
+
+    // Its body is skipped as it arrives, and the next message is decoded.
+    decoder.decode(chunk);
+    decoder.decode(ByteBuffer.wrap(stream, chunk.position(), tooLargeEnd - chunk.position()));
+    assertTrue(decoder.isAtMessageBoundary());
+    decoder.decode(ByteBuffer.wrap(stream, tooLargeEnd, stream.length - tooLargeEnd));
+    assertEquals(Arrays.asList(small, small), listener.messages);
+
+    try {
+      decoder.setSizeLimit(-1);
+      fail("Should have thrown an exception");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private static byte[] writeDelimited(List<? extends MessageLite> messages) throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    for (MessageLite message : messages) {
+      message.writeDelimitedTo(output);
+    }
+    return output.toByteArray();
+  }
+
+  private static String repeat(char c, int count) {
+    char[] chars = new char[count];
+    Arrays.fill(chars, c);
+    return new String(chars);
+  }
+}
@@ -54,9 +54,12 @@ import protobuf_unittest.UnittestProto.ForeignEnum;
 import protobuf_unittest.UnittestProto.ForeignMessage;
 import protobuf_unittest.UnittestProto.TestAllExtensions;
 import protobuf_unittest.UnittestProto.TestAllTypes;
+import protobuf_unittest.UnittestProto.TestEmptyMessage;
 import protobuf_unittest.UnittestProto.TestExtremeDefaultValues;
+import protobuf_unittest.UnittestProto.TestFieldOrderings;
 import protobuf_unittest.UnittestProto.TestJsonName;
 import protobuf_unittest.UnittestProto.TestMultipleExtensionRanges;
+import protobuf_unittest.UnittestProto.TestNestedExtension;
 import protobuf_unittest.UnittestProto.TestRequired;
 import protobuf_unittest.UnittestProto.TestReservedFields;
 import protobuf_unittest.UnittestProto.TestService;
@@ -192,6 +195,42 @@ public class DescriptorsTest extends TestCase {
     }
   }
 
+  public void testFindField() throws Exception {
+    // Every field can be found by name and by number.
+    for (Descriptor type : Arrays.asList(TestAllTypes.getDescriptor(),
+        TestFieldOrderings.getDescriptor(), TestEmptyMessage.getDescriptor())) {
+      for (FieldDescriptor field : type.getFields()) {
+        assertSame(field, type.findFieldByName(field.getName()));
+        assertSame(field, type.findFieldByNumber(field.getNumber()));
+      }
+      assertNull(type.findFieldByNumber(0));
+      assertNull(type.findFieldByNumber(-1));
+      assertNull(type.findFieldByNumber(536870911));
+      assertNull(type.findFieldByName(""));
+    }
+
+    // Numbers between those of a sparse message type.
+    Descriptor sparseType = TestFieldOrderings.getDescriptor();
+    assertNull(sparseType.findFieldByNumber(2));
+    assertNull(sparseType.findFieldByNumber(100));
+    assertNull(sparseType.findFieldByNumber(102));
+
+    // Extensions are found by name in the scope they are declared in, but
+    // not by number.
+    Descriptor scope = TestNestedExtension.getDescriptor();
+    assertSame(TestNestedExtension.test.getDescriptor(),
+        scope.findFieldByName("test"));
+    assertNull(scope.findFieldByNumber(1002));
+    assertNull(TestAllExtensions.getDescriptor().findFieldByName("test"));
+
+    // Names of other kinds of symbols are not fields.
+    assertNull(TestAllTypes.getDescriptor().findFieldByName("NestedMessage"));
+    assertNull(TestAllTypes.getDescriptor().findFieldByName("FOO"));
+    // A qualified name resolves within the type's scope.
+    assertSame(TestAllTypes.NestedMessage.getDescriptor().findFieldByName("bb"),
+        TestAllTypes.getDescriptor().findFieldByName("NestedMessage.bb"));
+  }
+
   public void testFieldDescriptor() throws Exception {
     Descriptor messageType = TestAllTypes.getDescriptor();
     FieldDescriptor primitiveField =
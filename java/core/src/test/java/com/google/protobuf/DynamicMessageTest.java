@@ -33,10 +33,13 @@ package com.google.protobuf;
 import com.google.protobuf.Descriptors.EnumDescriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.Descriptors.OneofDescriptor;
+import protobuf_unittest.UnittestProto;
 import protobuf_unittest.UnittestProto.TestAllExtensions;
 import protobuf_unittest.UnittestProto.TestAllTypes;
 import protobuf_unittest.UnittestProto.TestEmptyMessage;
+import protobuf_unittest.UnittestProto.TestFieldOrderings;
 import protobuf_unittest.UnittestProto.TestPackedTypes;
+import java.util.ArrayList;
 import java.util.Arrays;
 import junit.framework.TestCase;
 
@@ -321,4 +324,80 @@ public class DynamicMessageTest extends TestCase {
     assertEquals(
         enumDescriptor.getValues(), message.getField(repeatedEnumField));
   }
+
+  public void testFieldsAndExtensionsSerializedInNumberOrder() throws Exception {
+    TestFieldOrderings expected = TestFieldOrderings.newBuilder()
+        .setMyInt(1)
+        .setMyString("foo")
+        .setMyFloat(1.0F)
+        .setExtension(UnittestProto.myExtensionInt, 23)
+        .setExtension(UnittestProto.myExtensionString, "bar")
+        .build();
+
+    Descriptors.Descriptor type = TestFieldOrderings.getDescriptor();
+    DynamicMessage message = DynamicMessage.newBuilder(type)
+        .setField(UnittestProto.myExtensionString.getDescriptor(), "bar")
+        .setField(type.findFieldByName("my_float"), 1.0F)
+        .setField(UnittestProto.myExtensionInt.getDescriptor(), 23)
+        .setField(type.findFieldByName("my_string"), "foo")
+        .setField(type.findFieldByName("my_int"), 1L)
+        .build();
+
+    assertEquals(expected.toByteString(), message.toByteString());
+    assertEquals(expected.getSerializedSize(), message.getSerializedSize());
+
+    // getAllFields() interleaves them the same way, and is built only once per message.
+    assertEquals(expected.getAllFields(), message.getAllFields());
+    assertEquals(
+        new ArrayList<FieldDescriptor>(expected.getAllFields().keySet()),
+        new ArrayList<FieldDescriptor>(message.getAllFields().keySet()));
+    assertSame(message.getAllFields(), message.getAllFields());
+  }
+
+  public void testRepeatedFieldsNotSharedWithBuiltMessage() throws Exception {
+    FieldDescriptor field =
+        TestAllTypes.getDescriptor().findFieldByName("repeated_int32");
+    DynamicMessage.Builder builder =
+        DynamicMessage.newBuilder(TestAllTypes.getDescriptor());
+    builder.addRepeatedField(field, 1);
+    DynamicMessage message = builder.build();
+
+    builder.addRepeatedField(field, 2);
+    builder.setRepeatedField(field, 0, 3);
+    assertEquals(Arrays.asList(1), message.getField(field));
+    assertEquals(Arrays.asList(3, 2), builder.getField(field));
+
+    DynamicMessage copy = message.toBuilder().mergeFrom(message).build();
+    assertEquals(Arrays.asList(1, 1), copy.getField(field));
+    assertEquals(Arrays.asList(1), message.getField(field));
+  }
+
+  public void testParsingMatchesGeneratedCode() throws Exception {
+    TestAllTypes first = TestAllTypes.newBuilder()
+        .setOptionalInt32(1)
+        .setOptionalString("foo")
+        .setOptionalNestedMessage(TestAllTypes.NestedMessage.newBuilder().setBb(1))
+        .setOneofUint32(2)
+        .addRepeatedInt32(3)
+        .addRepeatedNestedEnum(TestAllTypes.NestedEnum.BAR)
+        .build();
+    TestAllTypes second = TestAllTypes.newBuilder()
+        .setOptionalInt32(4)
+        .setOptionalNestedMessage(TestAllTypes.NestedMessage.getDefaultInstance())
+        .setOneofString("bar")
+        .addRepeatedInt32(5)
+        .setUnknownFields(UnknownFieldSet.newBuilder()
+            .mergeVarintField(
+                TestAllTypes.OPTIONAL_NESTED_ENUM_FIELD_NUMBER, 12345)
+            .build())
+        .build();
+    ByteString data = first.toByteString().concat(second.toByteString());
+
+    TestAllTypes expected = TestAllTypes.parseFrom(data);
+    DynamicMessage message =
+        DynamicMessage.parseFrom(TestAllTypes.getDescriptor(), data);
+    assertEquals(expected.toByteString(), message.toByteString());
+    assertEquals(expected.getUnknownFields(), message.getUnknownFields());
+    assertEquals(expected, TestAllTypes.parseFrom(message.toByteString()));
+  }
 }
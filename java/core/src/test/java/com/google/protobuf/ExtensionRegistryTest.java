@@ -0,0 +1,102 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// https://developers.google.com/protocol-buffers/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.google.protobuf;
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.ExtensionRegistry.ExtensionInfo;
+import com.google.protobuf.UnittestLite.TestAllExtensionsLite;
+import protobuf_unittest.UnittestProto;
+import protobuf_unittest.UnittestProto.TestAllExtensions;
+import protobuf_unittest.UnittestProto.TestAllTypes;
+import junit.framework.TestCase;
+
+/**
+ * Tests for looking up extensions by number in {@link ExtensionRegistry} and
+ * {@link ExtensionRegistryLite}.
+ */
+public class ExtensionRegistryTest extends TestCase {
+
+  public void testFindExtensionByNumber() {
+    ExtensionRegistry registry = TestUtil.getExtensionRegistry();
+    Descriptor type = TestAllExtensions.getDescriptor();
+    for (FieldDescriptor extension : UnittestProto.getDescriptor().getExtensions()) {
+      if (extension.getContainingType() != type) {
+        continue;
+      }
+      ExtensionInfo info =
+          registry.findImmutableExtensionByNumber(type, extension.getNumber());
+      assertSame(extension, info.descriptor);
+      assertSame(info, registry.findImmutableExtensionByName(extension.getFullName()));
+    }
+    assertNull(registry.findImmutableExtensionByNumber(type, 0));
+    assertNull(registry.findImmutableExtensionByNumber(type, 536870911));
+    // Same number, another containing type.
+    assertNull(registry.findImmutableExtensionByNumber(
+        TestAllTypes.getDescriptor(),
+        UnittestProto.OPTIONAL_INT32_EXTENSION_FIELD_NUMBER));
+    assertNull(registry.findMutableExtensionByNumber(
+        type, UnittestProto.OPTIONAL_INT32_EXTENSION_FIELD_NUMBER));
+  }
+
+  public void testFindLiteExtensionByNumber() {
+    ExtensionRegistryLite registry = ExtensionRegistryLite.newInstance();
+    UnittestLite.registerAllExtensions(registry);
+    TestAllExtensionsLite defaultInstance = TestAllExtensionsLite.getDefaultInstance();
+    assertSame(UnittestLite.optionalInt32ExtensionLite,
+        registry.findLiteExtensionByNumber(defaultInstance,
+            UnittestLite.OPTIONAL_INT32_EXTENSION_LITE_FIELD_NUMBER));
+    assertSame(UnittestLite.repeatedStringExtensionLite,
+        registry.findLiteExtensionByNumber(defaultInstance,
+            UnittestLite.REPEATED_STRING_EXTENSION_LITE_FIELD_NUMBER));
+    assertNull(registry.findLiteExtensionByNumber(defaultInstance, 536870911));
+  }
+
+  public void testUnmodifiableViewSeesLaterAdditions() {
+    ExtensionRegistry registry = ExtensionRegistry.newInstance();
+    ExtensionRegistry view = registry.getUnmodifiable();
+    Descriptor type = TestAllExtensions.getDescriptor();
+    int number = UnittestProto.OPTIONAL_INT32_EXTENSION_FIELD_NUMBER;
+    assertNull(view.findImmutableExtensionByNumber(type, number));
+
+    // Enough extensions to grow the table several times.
+    UnittestProto.registerAllExtensions(registry);
+    assertSame(UnittestProto.optionalInt32Extension.getDescriptor(),
+        view.findImmutableExtensionByNumber(type, number).descriptor);
+
+    // Adding an extension again replaces it.
+    registry.add(UnittestProto.optionalInt32Extension.getDescriptor());
+    assertSame(view.findImmutableExtensionByName(
+            UnittestProto.optionalInt32Extension.getDescriptor().getFullName()),
+        view.findImmutableExtensionByNumber(type, number));
+  }
+}
@@ -32,6 +32,8 @@ package com.google.protobuf;
 
 import com.google.protobuf.Descriptors.Descriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.GeneratedMessageV3.FieldAccessorTable;
+import com.google.protobuf.GeneratedMessageV3.FieldAccessorTable.FieldAccessor;
 import com.google.protobuf.test.UnittestImport;
 import protobuf_unittest.EnumWithNoOuter;
 import protobuf_unittest.MessageWithNoOuter;
@@ -64,10 +66,16 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import junit.framework.TestCase;
 
 /**
@@ -1586,4 +1594,132 @@ public class GeneratedMessageTest extends TestCase {
       // We expect this exception.
     }
   }
+
+  // FieldAccessorTable creates the accessor of each field and oneof on first use. These tests
+  // start from a fresh table, so that the access under test is the first one.
+
+  public void testFieldAccessorsCreatedThroughBuilder() {
+    FieldAccessorTable table = newAccessorTable(camelCaseNames(TestAllTypes.getDescriptor()));
+    TestAllTypes.Builder builder = TestUtil.getAllSetBuilder();
+    FieldDescriptor nestedField =
+        TestAllTypes.getDescriptor().findFieldByName("optional_nested_message");
+    FieldAccessor nestedAccessor = table.getField(nestedField);
+    ((NestedMessage.Builder) nestedAccessor.getBuilder(builder)).setBb(7);
+    assertSame(nestedAccessor, table.getField(nestedField));
+    assertEquals(7, builder.getOptionalNestedMessage().getBb());
+
+    for (FieldDescriptor field : TestAllTypes.getDescriptor().getFields()) {
+      FieldAccessor accessor = table.getField(field);
+      assertEquals(builder.getField(field), accessor.get(builder));
+      assertSame(accessor, table.getField(field));
+    }
+  }
+
+  public void testFieldAccessorCreatedThroughOneofAccessor() {
+    FieldAccessorTable table = newAccessorTable(camelCaseNames(TestAllTypes.getDescriptor()));
+    Descriptors.OneofDescriptor oneof = TestAllTypes.getDescriptor().getOneofs().get(0);
+    TestAllTypes message = TestAllTypes.newBuilder().setOneofString("foo").build();
+    FieldAccessorTable.OneofAccessor oneofAccessor = table.getOneof(oneof);
+    FieldDescriptor field = oneofAccessor.get(message);
+    assertEquals("oneof_string", field.getName());
+    assertSame(oneofAccessor, table.getOneof(oneof));
+
+    FieldAccessor accessor = table.getField(field);
+    assertTrue(accessor.has(message));
+    assertEquals("foo", accessor.get(message));
+    assertSame(accessor, table.getField(field));
+
+    TestAllTypes.Builder builder = message.toBuilder();
+    oneofAccessor.clear(builder);
+    assertFalse(accessor.has(builder));
+    assertNull(oneofAccessor.get(builder));
+  }
+
+  public void testFieldAccessorsCreatedByRacingThreads() throws Exception {
+    final List<FieldDescriptor> fields = TestAllTypes.getDescriptor().getFields();
+    final String[] camelCaseNames = camelCaseNames(TestAllTypes.getDescriptor());
+    TestAllTypes message = TestUtil.getAllSet();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      for (int round = 0; round < 100; round++) {
+        final FieldAccessorTable table = newAccessorTable(camelCaseNames);
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        Callable<FieldAccessor[]> task = new Callable<FieldAccessor[]>() {
+          @Override
+          public FieldAccessor[] call() throws Exception {
+            barrier.await();
+            FieldAccessor[] accessors = new FieldAccessor[fields.size()];
+            for (int i = 0; i < accessors.length; i++) {
+              accessors[i] = table.getField(fields.get(i));
+            }
+            return accessors;
+          }
+        };
+        Future<FieldAccessor[]> first = executor.submit(task);
+        Future<FieldAccessor[]> second = executor.submit(task);
+        FieldAccessor[] firstAccessors = first.get();
+        FieldAccessor[] secondAccessors = second.get();
+        for (int i = 0; i < fields.size(); i++) {
+          assertSame(firstAccessors[i], secondAccessors[i]);
+          assertSame(firstAccessors[i], table.getField(fields.get(i)));
+          assertEquals(message.getField(fields.get(i)), firstAccessors[i].get(message));
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void testMissingAccessorMethodFailsOnFirstAccess() {
+    String[] camelCaseNames = camelCaseNames(TestAllTypes.getDescriptor());
+    camelCaseNames[0] = "NoSuchField";
+    // Only the classes are recorded here, so the missing methods go unnoticed.
+    FieldAccessorTable table = newAccessorTable(camelCaseNames);
+    List<FieldDescriptor> fields = TestAllTypes.getDescriptor().getFields();
+    TestAllTypes message = TestUtil.getAllSet();
+    assertEquals(message.getField(fields.get(1)), table.getField(fields.get(1)).get(message));
+    try {
+      table.getField(fields.get(0));
+      fail("Exception was not thrown");
+    } catch (RuntimeException e) {
+      // We expect this exception.
+    }
+  }
+
+  private static FieldAccessorTable newAccessorTable(String[] camelCaseNames) {
+    return new FieldAccessorTable(TestAllTypes.getDescriptor(), camelCaseNames)
+        .ensureFieldAccessorsInitialized(TestAllTypes.class, TestAllTypes.Builder.class);
+  }
+
+  /** Returns the names protoc derives for the accessors of the fields and oneofs of a type. */
+  private static String[] camelCaseNames(Descriptor descriptor) {
+    List<String> names = new ArrayList<String>();
+    for (FieldDescriptor field : descriptor.getFields()) {
+      // Groups are named after their type.
+      names.add(toCamelCase(field.getType() == FieldDescriptor.Type.GROUP
+          ? field.getMessageType().getName() : field.getName()));
+    }
+    for (Descriptors.OneofDescriptor oneof : descriptor.getOneofs()) {
+      names.add(toCamelCase(oneof.getName()));
+    }
+    return names.toArray(new String[names.size()]);
+  }
+
+  private static String toCamelCase(String name) {
+    StringBuilder result = new StringBuilder();
+    boolean capitalizeNext = true;
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (c == '_') {
+        capitalizeNext = true;
+      } else if (Character.isDigit(c)) {
+        result.append(c);
+        capitalizeNext = true;
+      } else {
+        result.append(capitalizeNext ? Character.toUpperCase(c) : c);
+        capitalizeNext = false;
+      }
+    }
+    return result.toString();
+  }
 }
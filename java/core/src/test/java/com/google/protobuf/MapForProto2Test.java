@@ -847,6 +847,13 @@ public class MapForProto2Test extends TestCase {
     builder.putRequiredMessageMap(0, MessageWithRequiredFields.newBuilder().buildPartial());
     TestMap message = builder.buildPartial();
     assertFalse(message.isInitialized());
+    // Writing the map checks each entry, as building a MapEntry for it used to.
+    try {
+      message.writeTo(CodedOutputStream.newInstance(new byte[100]));
+      fail("Should have thrown an exception!");
+    } catch (UninitializedMessageException e) {
+      assertEquals(Arrays.asList("value.value"), e.getMissingFields());
+    }
 
     builder.putRequiredMessageMap(0, MessageWithRequiredFields.newBuilder().setValue(1).build());
     message = builder.build();
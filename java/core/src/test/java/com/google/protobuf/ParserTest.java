@@ -44,6 +44,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import junit.framework.TestCase;
 
 /**
@@ -186,6 +187,42 @@ public class ParserTest extends TestCase {
                           TestUtil.getExtensionRegistry());
   }
 
+  public void testParseWithAliasing() throws Exception {
+    Parser<TestAllTypes> parser = AbstractParser.aliasing(TestAllTypes.parser());
+    assertSame(parser, AbstractParser.aliasing(parser));
+    TestAllTypes allSet = TestUtil.getAllSet();
+    assertEquals(allSet, parser.parseFrom(allSet.toByteArray()));
+    assertEquals(allSet, parser.parseFrom(allSet.toByteString()));
+    assertEquals(allSet, parser.parseFrom(allSet.toByteString().asReadOnlyByteBuffer()));
+
+    // bytes and (proto2) string fields are views into the input array.
+    TestAllTypes message =
+        TestAllTypes.newBuilder()
+            .setOptionalString("abc")
+            .setOptionalBytes(ByteString.copyFromUtf8("def"))
+            .build();
+    byte[] data = message.toByteArray();
+    TestAllTypes aliased = parser.parseFrom(data);
+    TestAllTypes copied = TestAllTypes.parser().parseFrom(data);
+    for (int i = 0; i < data.length; i++) {
+      if (data[i] == 'a' || data[i] == 'd') {
+        data[i] = 'x';
+      }
+    }
+    assertEquals("xbc", aliased.getOptionalString());
+    assertEquals(ByteString.copyFromUtf8("xef"), aliased.getOptionalBytes());
+    assertEquals("abc", copied.getOptionalString());
+    assertEquals(ByteString.copyFromUtf8("def"), copied.getOptionalBytes());
+
+    // The same holds for direct buffers.
+    ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+    direct.put(message.toByteArray());
+    direct.flip();
+    aliased = parser.parseFrom(direct);
+    direct.put(direct.limit() - 3, (byte) 'x');
+    assertEquals(ByteString.copyFromUtf8("xef"), aliased.getOptionalBytes());
+  }
+
   public void testParseDelimitedTo() throws Exception {
     // Write normal Message.
     TestAllTypes normalMessage = TestUtil.getAllSet();
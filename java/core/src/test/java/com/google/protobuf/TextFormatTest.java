@@ -39,6 +39,7 @@ import com.google.protobuf.TextFormat.Parser.SingularOverwritePolicy;
 import map_test.MapTestProto.TestMap;
 import protobuf_unittest.UnittestMset.TestMessageSetExtension1;
 import protobuf_unittest.UnittestMset.TestMessageSetExtension2;
+import protobuf_unittest.UnittestProto.NestedTestAllTypes;
 import protobuf_unittest.UnittestProto.OneString;
 import protobuf_unittest.UnittestProto.TestAllExtensions;
 import protobuf_unittest.UnittestProto.TestAllTypes;
@@ -47,8 +48,14 @@ import protobuf_unittest.UnittestProto.TestEmptyMessage;
 import protobuf_unittest.UnittestProto.TestOneof2;
 import protobuf_unittest.UnittestProto.TestRequired;
 import proto2_wireformat_unittest.UnittestMsetWireFormat.TestMessageSet;
+import java.io.ByteArrayOutputStream;
 import java.io.StringReader;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import junit.framework.TestCase;
 
 /**
@@ -520,6 +527,28 @@ public class TextFormatTest extends TestCase {
     assertEquals(2, builder.getOptionalInt64());
   }
 
+  public void testMergeTokenBoundaries() throws Exception {
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    TextFormat.merge(
+      "optional_int32:-12#comment\r\n" +
+      "optional_float:.5f\toptional_double : -Infinity\r" +
+      "optional_string:'a\\'b'\"c\"\u000b" +
+      "repeated_int64:[0x1F,017,+5]\f" +
+      "optional_nested_message{bb:1}", builder);
+    assertEquals(-12, builder.getOptionalInt32());
+    assertEquals(0.5f, builder.getOptionalFloat());
+    assertEquals(Double.NEGATIVE_INFINITY, builder.getOptionalDouble());
+    assertEquals("a'bc", builder.getOptionalString());
+    assertEquals(
+        Arrays.asList(31L, 15L, 5L), builder.getRepeatedInt64List());
+    assertEquals(1, builder.getOptionalNestedMessage().getBb());
+
+    // Line and column numbers only count '\n' as a line break.
+    assertParseError(
+      "3:17: Expected \":\".",
+      "# comment\r\noptional_int32: 1\n\roptional_int64 2");
+  }
+
   private void assertParseError(String error, String text) {
     // Test merge().
     TestAllTypes.Builder builder = TestAllTypes.newBuilder();
@@ -972,6 +1001,133 @@ public class TextFormatTest extends TestCase {
     assertEquals(message.getOptionalString(), builder.getOptionalString());
   }
 
+  public void testPrintToOutputStream() throws Exception {
+    TestAllTypes message = TestUtil.getAllSet();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    TextFormat.printTo(message, output);
+    assertEquals(TextFormat.printToString(message), output.toString("UTF-8"));
+
+    message = TestAllTypes.newBuilder()
+        .setOptionalString("abc\u3042efg\ud83d\ude00")
+        .addRepeatedString("\u00e9")
+        .build();
+    output = new ByteArrayOutputStream();
+    TextFormat.printUnicodeTo(message, output);
+    assertEquals(TextFormat.printToUnicodeString(message), output.toString("UTF-8"));
+    assertEquals(
+        ByteString.copyFromUtf8(TextFormat.printToUnicodeString(message)),
+        ByteString.copyFrom(output.toByteArray()));
+  }
+
+  public void testPrintToBytes() throws Exception {
+    // Long enough to cross the encoder's buffer boundaries at every offset of a surrogate pair,
+    // with unpaired surrogates at the end of a field too.
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 3000; i++) {
+      text.append("a\u00e9\u4e2d\ud83d\ude00");
+    }
+    TestAllTypes message = TestAllTypes.newBuilder()
+        .setOptionalString(text.toString())
+        .addRepeatedString("\ude00x\ud83d")
+        .addRepeatedString("\ud83d")
+        .build();
+    byte[] expected = TextFormat.printToUnicodeString(message).getBytes(Internal.UTF_8);
+    TextFormat.Printer printer = TextFormat.printer().escapingNonAscii(false);
+
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    printer.printTo(message, stream);
+    assertEquals(ByteString.copyFrom(expected), ByteString.copyFrom(stream.toByteArray()));
+
+    ByteBuffer buffer = ByteBuffer.allocate(expected.length + 2);
+    buffer.put((byte) 1);
+    printer.printTo(message, buffer);
+    assertEquals(expected.length + 1, buffer.position());
+    buffer.flip().position(1);
+    assertEquals(ByteString.copyFrom(expected), ByteString.copyFrom(buffer));
+    try {
+      printer.printTo(message, ByteBuffer.allocate(expected.length - 1));
+      fail("Should have thrown an exception!");
+    } catch (BufferOverflowException e) {
+      // Expected.
+    }
+
+    final ByteString.Output byteOutput = ByteString.newOutput();
+    printer.printTo(
+        message,
+        new ByteOutput() {
+          @Override
+          public void write(byte value) {
+            byteOutput.write(value);
+          }
+
+          @Override
+          public void write(byte[] value, int offset, int length) {
+            byteOutput.write(value, offset, length);
+          }
+
+          @Override
+          public void writeLazy(byte[] value, int offset, int length) {
+            byteOutput.write(value, offset, length);
+          }
+
+          @Override
+          public void write(ByteBuffer value) {
+            throw new UnsupportedOperationException();
+          }
+
+          @Override
+          public void writeLazy(ByteBuffer value) {
+            throw new UnsupportedOperationException();
+          }
+        });
+    assertEquals(ByteString.copyFrom(expected), byteOutput.toByteString());
+  }
+
+  public void testPrinter() throws Exception {
+    TestAllTypes message = TestAllTypes.newBuilder()
+        .setOptionalString("abc\u3042efg")
+        .build();
+    assertEquals(
+        TextFormat.printToString(message), TextFormat.printer().printToString(message));
+    assertEquals(
+        TextFormat.printToUnicodeString(message),
+        TextFormat.printer().escapingNonAscii(false).printToString(message));
+    StringBuilder output = new StringBuilder();
+    TextFormat.printer().escapingNonAscii(false).escapingNonAscii(true).print(message, output);
+    assertEquals(TextFormat.printToString(message), output.toString());
+  }
+
+  public void testPrintingInParallel() throws Exception {
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    for (int i = 0; i < 5000; i++) {
+      builder.addRepeatedNestedMessage(NestedMessage.newBuilder().setBb(i));
+      builder.addRepeatedString("s\u3042" + i);
+    }
+    TestAllTypes message = builder.build();
+    NestedTestAllTypes nested = NestedTestAllTypes.newBuilder()
+        .setChild(NestedTestAllTypes.newBuilder().setPayload(message))
+        .build();
+    // Its elements are only built when they are read.
+    TestAllTypes.Builder nestedBuilders = TestAllTypes.newBuilder();
+    for (int i = 0; i < 5000; i++) {
+      nestedBuilders.addRepeatedNestedMessageBuilder().setBb(i);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      TextFormat.Printer parallelPrinter = TextFormat.printer().usingExecutor(executor);
+      assertEquals(TextFormat.printToString(message), parallelPrinter.printToString(message));
+      assertEquals(TextFormat.printToString(nested), parallelPrinter.printToString(nested));
+      assertEquals(
+          TextFormat.printToUnicodeString(nested),
+          parallelPrinter.escapingNonAscii(false).printToString(nested));
+      String printedBuilder = parallelPrinter.printToString(nestedBuilders);
+      assertEquals(TextFormat.printToString(nestedBuilders.build()), printedBuilder);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
   public void testPrintToUnicodeStringWithNewlines() throws Exception {
     // No newlines at start and end
     assertEquals("optional_string: \"test newlines\\n\\nin\\nstring\"\n",
@@ -0,0 +1,83 @@
+// Protocol Buffers - Google's data interchange format
+// Copyright 2008 Google Inc.  All rights reserved.
+// https://developers.google.com/protocol-buffers/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.google.protobuf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import junit.framework.TestCase;
+
+/** Unit tests for {@link Utf8Output}. */
+public class Utf8OutputTest extends TestCase {
+
+  public void testMatchesStringGetBytes() throws IOException {
+    // Crosses the buffer boundary at every offset of each kind of character, and ends with an
+    // unpaired high surrogate.
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < 3000; i++) {
+      builder.append("a\u00e9\u4e2d\ud83d\ude00\ude00\ud83dx");
+    }
+    String text = builder.append('\ud83d').toString();
+    byte[] expected = text.getBytes(Internal.UTF_8);
+
+    assertEquals(ByteString.copyFrom(expected), appendChars(text));
+    assertEquals(ByteString.copyFrom(expected), appendSequence(text));
+  }
+
+  public void testAppendNull() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Utf8Output output = Utf8Output.to(out);
+    output.append(null).append(null, 1, 3);
+    output.finish();
+    assertEquals("nullul", out.toString("UTF-8"));
+  }
+
+  private static ByteString appendChars(String text) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Utf8Output output = Utf8Output.to(out);
+    for (int i = 0; i < text.length(); i++) {
+      output.append(text.charAt(i));
+    }
+    output.finish();
+    return ByteString.copyFrom(out.toByteArray());
+  }
+
+  private static ByteString appendSequence(String text) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Utf8Output output = Utf8Output.to(out);
+    // In uneven pieces, so that surrogate pairs are split between appends.
+    for (int start = 0; start < text.length(); start += 7) {
+      output.append(text, start, Math.min(start + 7, text.length()));
+    }
+    output.finish();
+    return ByteString.copyFrom(out.toByteArray());
+  }
+}
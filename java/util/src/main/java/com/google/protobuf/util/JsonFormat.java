@@ -31,9 +31,8 @@
 package com.google.protobuf.util;
 
 import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.io.BaseEncoding;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonIOException;
@@ -42,8 +41,11 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
 import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
 import com.google.protobuf.Any;
 import com.google.protobuf.BoolValue;
+import com.google.protobuf.ByteOutput;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.BytesValue;
 import com.google.protobuf.Descriptors.Descriptor;
@@ -69,13 +71,20 @@ import com.google.protobuf.Struct;
 import com.google.protobuf.Timestamp;
 import com.google.protobuf.UInt32Value;
 import com.google.protobuf.UInt64Value;
+import com.google.protobuf.Utf8Output;
 import com.google.protobuf.Value;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.StringReader;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -83,6 +92,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Logger;
 
 /**
@@ -99,13 +113,22 @@ public class JsonFormat {
 
   private JsonFormat() {}
 
+  // The most message types whose printing or parsing state is kept. Without a bound, every
+  // dynamic type printed or parsed over the life of the process would stay reachable.
+  private static final int MAX_CACHED_TYPES = 1000;
+
+  /** Returns a map for per-type state that evicts the least recently used types beyond a bound. */
+  private static <V> ConcurrentMap<Descriptor, V> newTypeCache() {
+    return CacheBuilder.newBuilder().maximumSize(MAX_CACHED_TYPES).<Descriptor, V>build().asMap();
+  }
+
   /**
    * Creates a {@link Printer} with default configurations.
    */
   public static Printer printer() {
     return new Printer(
         TypeRegistry.getEmptyTypeRegistry(), false, Collections.<FieldDescriptor>emptySet(),
-        false, false, false);
+        false, false, false, null);
   }
 
   /**
@@ -126,6 +149,7 @@ public class JsonFormat {
     private final boolean preservingProtoFieldNames;
     private final boolean omittingInsignificantWhitespace;
     private final boolean printingEnumsAsInts;
+    private final Executor executor;
 
     private Printer(
         TypeRegistry registry,
@@ -133,13 +157,15 @@ public class JsonFormat {
         Set<FieldDescriptor> includingDefaultValueFields,
         boolean preservingProtoFieldNames,
         boolean omittingInsignificantWhitespace,
-        boolean printingEnumsAsInts) {
+        boolean printingEnumsAsInts,
+        Executor executor) {
       this.registry = registry;
       this.alwaysOutputDefaultValueFields = alwaysOutputDefaultValueFields;
       this.includingDefaultValueFields = includingDefaultValueFields;
       this.preservingProtoFieldNames = preservingProtoFieldNames;
       this.omittingInsignificantWhitespace = omittingInsignificantWhitespace;
       this.printingEnumsAsInts = printingEnumsAsInts;
+      this.executor = executor;
     }
 
     /**
@@ -158,7 +184,8 @@ public class JsonFormat {
           includingDefaultValueFields,
           preservingProtoFieldNames,
           omittingInsignificantWhitespace,
-          printingEnumsAsInts);
+          printingEnumsAsInts,
+          executor);
     }
 
     /**
@@ -175,7 +202,8 @@ public class JsonFormat {
           Collections.<FieldDescriptor>emptySet(),
           preservingProtoFieldNames,
           omittingInsignificantWhitespace,
-          printingEnumsAsInts);
+          printingEnumsAsInts,
+          executor);
     }
 
     /**
@@ -192,7 +220,8 @@ public class JsonFormat {
           Collections.<FieldDescriptor>emptySet(),
           preservingProtoFieldNames,
           omittingInsignificantWhitespace,
-          true);
+          true,
+          executor);
     }
 
     private void checkUnsetPrintingEnumsAsInts() {
@@ -220,7 +249,8 @@ public class JsonFormat {
           fieldsToAlwaysOutput,
           preservingProtoFieldNames,
           omittingInsignificantWhitespace,
-          printingEnumsAsInts);
+          printingEnumsAsInts,
+          executor);
     }
 
     private void checkUnsetIncludingDefaultValueFields() {
@@ -243,7 +273,8 @@ public class JsonFormat {
           includingDefaultValueFields,
           true,
           omittingInsignificantWhitespace,
-          printingEnumsAsInts);
+          printingEnumsAsInts,
+          executor);
     }
 
 
@@ -271,7 +302,27 @@ public class JsonFormat {
           includingDefaultValueFields,
           preservingProtoFieldNames,
           true,
-          printingEnumsAsInts);
+          printingEnumsAsInts,
+          executor);
+    }
+
+    /**
+     * Creates a new {@link Printer} that prints large repeated message fields in parallel, by
+     * splitting them into chunks that are printed on {@code executor}. The output is the same as
+     * without it. The thread that prints the message waits for the chunks, so {@code executor}
+     * should not be one that only runs tasks on that thread once it is free. The new Printer
+     * clones all other configurations from the current {@link Printer}.
+     */
+    public Printer usingExecutor(Executor executor) {
+      Preconditions.checkNotNull(executor);
+      return new Printer(
+          registry,
+          alwaysOutputDefaultValueFields,
+          includingDefaultValueFields,
+          preservingProtoFieldNames,
+          omittingInsignificantWhitespace,
+          printingEnumsAsInts,
+          executor);
     }
 
     /**
@@ -291,10 +342,49 @@ public class JsonFormat {
               preservingProtoFieldNames,
               output,
               omittingInsignificantWhitespace,
-              printingEnumsAsInts)
+              printingEnumsAsInts,
+              executor)
           .print(message);
     }
 
+    /**
+     * Converts a protobuf message to JSON format and writes it to {@code output} encoded as
+     * UTF-8, without first building it up as a {@code String}. {@code output} is flushed but not
+     * closed.
+     *
+     * @throws InvalidProtocolBufferException if the message contains Any types that can't be
+     *     resolved.
+     * @throws IOException if writing to the output fails.
+     */
+    public void printTo(MessageOrBuilder message, OutputStream output) throws IOException {
+      Utf8Output utf8 = Utf8Output.to(output);
+      appendTo(message, utf8);
+      utf8.finish();
+      output.flush();
+    }
+
+    /**
+     * Like {@link #printTo(MessageOrBuilder, OutputStream)}, but writes to {@code output} from its
+     * position on, and advances the position past the JSON text.
+     *
+     * @throws java.nio.BufferOverflowException if the text does not fit; part of it may have been
+     *     written by then
+     */
+    public void printTo(MessageOrBuilder message, ByteBuffer output) throws IOException {
+      Utf8Output utf8 = Utf8Output.to(output);
+      appendTo(message, utf8);
+      utf8.finish();
+    }
+
+    /**
+     * Like {@link #printTo(MessageOrBuilder, OutputStream)}, but writes to a {@link ByteOutput}.
+     */
+    public void printTo(MessageOrBuilder message, ByteOutput output) throws IOException {
+      Utf8Output utf8 = Utf8Output.to(output);
+      appendTo(message, utf8);
+      utf8.finish();
+    }
+
     /**
      * Converts a protobuf message to JSON format. Throws exceptions if there
      * are unknown Any types in the message.
@@ -604,14 +694,23 @@ public class JsonFormat {
     private final boolean preservingProtoFieldNames;
     private final boolean printingEnumsAsInts;
     private final TextGenerator generator;
-    // We use Gson to help handle string escapes.
-    private final Gson gson;
     private final CharSequence blankOrSpace;
     private final CharSequence blankOrNewLine;
+    private final boolean omittingInsignificantWhitespace;
+    // Follows each field name: ":" and the blank or space.
+    private final String nameSeparator;
+    // Set if large repeated message fields are printed in parallel.
+    private final Executor executor;
+    // Reused to escape string values.
+    private final StringBuilder escaped = new StringBuilder();
 
-    private static class GsonHolder {
-      private static final Gson DEFAULT_GSON = new GsonBuilder().disableHtmlEscaping().create();
-    }
+    // Repeated message fields with more elements than this are split into chunks this size
+    // when printing in parallel.
+    private static final int PARALLEL_CHUNK_SIZE = 1024;
+
+    // The number of chunks printed ahead of the one being written out.
+    private static final int MAX_PENDING_CHUNKS =
+        Math.max(2, 2 * Runtime.getRuntime().availableProcessors());
 
     PrinterImpl(
         TypeRegistry registry,
@@ -620,33 +719,90 @@ public class JsonFormat {
         boolean preservingProtoFieldNames,
         Appendable jsonOutput,
         boolean omittingInsignificantWhitespace,
-        boolean printingEnumsAsInts) {
+        boolean printingEnumsAsInts,
+        Executor executor) {
       this.registry = registry;
       this.alwaysOutputDefaultValueFields = alwaysOutputDefaultValueFields;
       this.includingDefaultValueFields = includingDefaultValueFields;
       this.preservingProtoFieldNames = preservingProtoFieldNames;
       this.printingEnumsAsInts = printingEnumsAsInts;
-      this.gson = GsonHolder.DEFAULT_GSON;
+      this.omittingInsignificantWhitespace = omittingInsignificantWhitespace;
+      this.executor = executor;
       // json format related properties, determined by printerType
       if (omittingInsignificantWhitespace) {
         this.generator = new CompactTextGenerator(jsonOutput);
         this.blankOrSpace = "";
         this.blankOrNewLine = "";
+        this.nameSeparator = ":";
       } else {
         this.generator = new PrettyTextGenerator(jsonOutput);
         this.blankOrSpace = " ";
         this.blankOrNewLine = "\n";
+        this.nameSeparator = ": ";
       }
     }
 
     void print(MessageOrBuilder message) throws IOException {
-      WellKnownTypePrinter specialPrinter =
-          wellKnownTypePrinters.get(message.getDescriptorForType().getFullName());
-      if (specialPrinter != null) {
-        specialPrinter.print(this, message);
+      TypePlan plan = getTypePlan(message.getDescriptorForType());
+      if (plan.specialPrinter != null) {
+        plan.specialPrinter.print(this, message);
         return;
       }
-      print(message, null);
+      print(message, null, plan);
+    }
+
+    /**
+     * Everything about printing a message type that only depends on the type, so that it is worked
+     * out once per type instead of for every message. Shared by all printers, whatever their
+     * options, so that a one-off {@code JsonFormat.printer().print(message)} benefits too.
+     */
+    static final class TypePlan {
+      // Set if the type is a well-known type with its own JSON representation.
+      final WellKnownTypePrinter specialPrinter;
+      // The quoted JSON and proto names of each field, indexed by FieldDescriptor.getIndex().
+      final String[] quotedJsonNames;
+      final String[] quotedProtoNames;
+
+      TypePlan(
+          WellKnownTypePrinter specialPrinter,
+          String[] quotedJsonNames,
+          String[] quotedProtoNames) {
+        this.specialPrinter = specialPrinter;
+        this.quotedJsonNames = quotedJsonNames;
+        this.quotedProtoNames = quotedProtoNames;
+      }
+    }
+
+    private static final ConcurrentMap<Descriptor, TypePlan> typePlans = newTypeCache();
+
+    private static TypePlan getTypePlan(Descriptor type) {
+      TypePlan plan = typePlans.get(type);
+      if (plan == null) {
+        plan = buildTypePlan(type);
+        TypePlan existing = typePlans.putIfAbsent(type, plan);
+        if (existing != null) {
+          plan = existing;
+        }
+      }
+      return plan;
+    }
+
+    private static TypePlan buildTypePlan(Descriptor type) {
+      List<FieldDescriptor> fields = type.getFields();
+      String[] quotedJsonNames = new String[fields.size()];
+      String[] quotedProtoNames = new String[fields.size()];
+      for (FieldDescriptor field : fields) {
+        quotedJsonNames[field.getIndex()] = quote(field.getJsonName());
+        quotedProtoNames[field.getIndex()] = quote(field.getName());
+      }
+      return new TypePlan(
+          wellKnownTypePrinters.get(type.getFullName()), quotedJsonNames, quotedProtoNames);
+    }
+
+    private static String quote(String name) {
+      StringBuilder quoted = new StringBuilder();
+      appendQuoted(name, quoted);
+      return quoted.toString();
     }
 
     private interface WellKnownTypePrinter {
@@ -767,13 +923,16 @@ public class JsonFormat {
       ByteString content = (ByteString) message.getField(valueField);
       Message contentMessage =
           DynamicMessage.getDefaultInstance(type).getParserForType().parseFrom(content);
-      WellKnownTypePrinter printer = wellKnownTypePrinters.get(typeName);
+      TypePlan plan = getTypePlan(type);
+      WellKnownTypePrinter printer = plan.specialPrinter;
       if (printer != null) {
         // If the type is one of the well-known types, we use a special
         // formatting.
         generator.print("{" + blankOrNewLine);
         generator.indent();
-        generator.print("\"@type\":" + blankOrSpace + gson.toJson(typeUrl) + "," + blankOrNewLine);
+        generator.print("\"@type\":" + blankOrSpace);
+        printQuoted(typeUrl);
+        generator.print("," + blankOrNewLine);
         generator.print("\"value\":" + blankOrSpace);
         printer.print(this, contentMessage);
         generator.print(blankOrNewLine);
@@ -781,7 +940,7 @@ public class JsonFormat {
         generator.print("}");
       } else {
         // Print the content message instead (with a "@type" field added).
-        print(contentMessage, typeUrl);
+        print(contentMessage, typeUrl, plan);
       }
     }
 
@@ -864,13 +1023,15 @@ public class JsonFormat {
     }
 
     /** Prints a regular message with an optional type URL. */
-    private void print(MessageOrBuilder message, String typeUrl) throws IOException {
+    private void print(MessageOrBuilder message, String typeUrl, TypePlan plan)
+        throws IOException {
       generator.print("{" + blankOrNewLine);
       generator.indent();
 
       boolean printedField = false;
       if (typeUrl != null) {
-        generator.print("\"@type\":" + blankOrSpace + gson.toJson(typeUrl));
+        generator.print("\"@type\":" + blankOrSpace);
+        printQuoted(typeUrl);
         printedField = true;
       }
       Map<FieldDescriptor, Object> fieldsToPrint = null;
@@ -905,7 +1066,7 @@ public class JsonFormat {
         } else {
           printedField = true;
         }
-        printField(field.getKey(), field.getValue());
+        printField(field.getKey(), field.getValue(), plan);
       }
 
       // Add line-endings for the last field.
@@ -916,12 +1077,16 @@ public class JsonFormat {
       generator.print("}");
     }
 
-    private void printField(FieldDescriptor field, Object value) throws IOException {
-      if (preservingProtoFieldNames) {
-        generator.print("\"" + field.getName() + "\":" + blankOrSpace);
+    private void printField(FieldDescriptor field, Object value, TypePlan plan)
+        throws IOException {
+      if (field.isExtension()) {
+        generator.print(quote(preservingProtoFieldNames ? field.getName() : field.getJsonName()));
       } else {
-        generator.print("\"" + field.getJsonName() + "\":" + blankOrSpace);
+        String[] quotedNames =
+            preservingProtoFieldNames ? plan.quotedProtoNames : plan.quotedJsonNames;
+        generator.print(quotedNames[field.getIndex()]);
       }
+      generator.print(nameSeparator);
       if (field.isMapField()) {
         printMapFieldValue(field, value);
       } else if (field.isRepeated()) {
@@ -931,11 +1096,23 @@ public class JsonFormat {
       }
     }
 
-    @SuppressWarnings("rawtypes")
     private void printRepeatedFieldValue(FieldDescriptor field, Object value) throws IOException {
+      List<?> elements = (List<?>) value;
       generator.print("[");
-      boolean printedElement = false;
-      for (Object element : (List) value) {
+      if (executor != null
+          && field.getJavaType() == FieldDescriptor.JavaType.MESSAGE
+          && elements.size() > PARALLEL_CHUNK_SIZE) {
+        printElementsInParallel(field, elements);
+      } else {
+        printElements(field, elements, true);
+      }
+      generator.print("]");
+    }
+
+    private void printElements(FieldDescriptor field, List<?> elements, boolean first)
+        throws IOException {
+      boolean printedElement = !first;
+      for (Object element : elements) {
         if (printedElement) {
           generator.print("," + blankOrSpace);
         } else {
@@ -943,7 +1120,78 @@ public class JsonFormat {
         }
         printSingleFieldValue(field, element);
       }
-      generator.print("]");
+    }
+
+    /**
+     * Prints each chunk of {@code elements} into its own buffer on {@link #executor}, and the
+     * buffers to the output in order. A chunk is printed without the enclosing indentation; our
+     * generator adds that to every line when printing the buffer, so the output is the same as
+     * when printing the elements directly.
+     *
+     * <p>The elements of a chunk are copied out of {@code elements} on this thread before the
+     * chunk is handed to the executor, as reading the list of a builder may build its elements.
+     * At most {@link #MAX_PENDING_CHUNKS} chunks are in flight, so that only a bounded part of
+     * the output is buffered at a time.
+     */
+    private void printElementsInParallel(final FieldDescriptor field, final List<?> elements)
+        throws IOException {
+      ArrayDeque<FutureTask<String>> pending = new ArrayDeque<FutureTask<String>>();
+      int next = 0;
+      try {
+        while (next < elements.size() || !pending.isEmpty()) {
+          while (next < elements.size() && pending.size() < MAX_PENDING_CHUNKS) {
+            int end = Math.min(next + PARALLEL_CHUNK_SIZE, elements.size());
+            List<?> chunk = Arrays.asList(elements.subList(next, end).toArray());
+            FutureTask<String> task = newChunkTask(field, chunk, next == 0);
+            pending.add(task);
+            executor.execute(task);
+            next = end;
+          }
+          generator.print(pending.remove().get());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while printing " + field.getFullName());
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new IllegalStateException(cause);
+      } finally {
+        // Empty unless we failed; stops the chunks that have not been printed yet.
+        for (FutureTask<String> chunk : pending) {
+          chunk.cancel(false);
+        }
+      }
+    }
+
+    private FutureTask<String> newChunkTask(
+        final FieldDescriptor field, final List<?> chunk, final boolean first) {
+      return new FutureTask<String>(
+          new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+              StringBuilder output = new StringBuilder();
+              // Chunks are printed sequentially: waiting for nested chunks from within a task
+              // could otherwise exhaust a bounded executor.
+              new PrinterImpl(
+                      registry,
+                      alwaysOutputDefaultValueFields,
+                      includingDefaultValueFields,
+                      preservingProtoFieldNames,
+                      output,
+                      omittingInsignificantWhitespace,
+                      printingEnumsAsInts,
+                      null)
+                  .printElements(field, chunk, first);
+              return output.toString();
+            }
+          });
     }
 
     @SuppressWarnings("rawtypes")
@@ -1083,7 +1331,7 @@ public class JsonFormat {
           break;
 
         case STRING:
-          generator.print(gson.toJson(value));
+          printQuoted((String) value);
           break;
 
         case BYTES:
@@ -1118,6 +1366,55 @@ public class JsonFormat {
           break;
       }
     }
+
+    private void printQuoted(String value) throws IOException {
+      escaped.setLength(0);
+      appendQuoted(value, escaped);
+      generator.print(escaped);
+    }
+  }
+
+  /**
+   * Appends {@code value} as a JSON string literal, escaped the same way as by a Gson instance
+   * with HTML escaping disabled.
+   */
+  private static void appendQuoted(String value, StringBuilder output) {
+    output.append('"');
+    int length = value.length();
+    int start = 0;
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      String replacement;
+      if (c < 0x20) {
+        replacement = CONTROL_CHARACTER_ESCAPES[c];
+      } else if (c == '"') {
+        replacement = "\\\"";
+      } else if (c == '\\') {
+        replacement = "\\\\";
+      } else if (c == '\u2028') {
+        replacement = "\\u2028";
+      } else if (c == '\u2029') {
+        replacement = "\\u2029";
+      } else {
+        continue;
+      }
+      output.append(value, start, i).append(replacement);
+      start = i + 1;
+    }
+    output.append(value, start, length).append('"');
+  }
+
+  private static final String[] CONTROL_CHARACTER_ESCAPES = new String[0x20];
+
+  static {
+    for (int i = 0; i < CONTROL_CHARACTER_ESCAPES.length; i++) {
+      CONTROL_CHARACTER_ESCAPES[i] = String.format("\\u%04x", i);
+    }
+    CONTROL_CHARACTER_ESCAPES['\t'] = "\\t";
+    CONTROL_CHARACTER_ESCAPES['\b'] = "\\b";
+    CONTROL_CHARACTER_ESCAPES['\n'] = "\\n";
+    CONTROL_CHARACTER_ESCAPES['\r'] = "\\r";
+    CONTROL_CHARACTER_ESCAPES['\f'] = "\\f";
   }
 
   /** Convert an unsigned 32-bit integer to a string. */
@@ -1165,11 +1462,16 @@ public class JsonFormat {
 
     void merge(Reader json, Message.Builder builder) throws IOException {
       try {
-        JsonReader reader = new JsonReader(json);
-        reader.setLenient(false);
-        merge(jsonParser.parse(reader), builder);
+        mergeOrRollBack(newJsonReader(json), builder);
       } catch (InvalidProtocolBufferException e) {
         throw e;
+      } catch (MalformedJsonException e) {
+        throw new InvalidProtocolBufferException(e.getMessage());
+      } catch (EOFException e) {
+        throw new InvalidProtocolBufferException(e.getMessage());
+      } catch (IOException e) {
+        // Thrown by the underlying Reader.
+        throw e;
       } catch (JsonIOException e) {
         // Unwrap IOException.
         if (e.getCause() instanceof IOException) {
@@ -1185,9 +1487,7 @@ public class JsonFormat {
 
     void merge(String json, Message.Builder builder) throws InvalidProtocolBufferException {
       try {
-        JsonReader reader = new JsonReader(new StringReader(json));
-        reader.setLenient(false);
-        merge(jsonParser.parse(reader), builder);
+        mergeOrRollBack(newJsonReader(new StringReader(json)), builder);
       } catch (InvalidProtocolBufferException e) {
         throw e;
       } catch (Exception e) {
@@ -1196,6 +1496,30 @@ public class JsonFormat {
       }
     }
 
+    private void mergeOrRollBack(JsonReader json, Message.Builder builder) throws IOException {
+      // Fields are set as soon as they are read, so a syntax error or an invalid value found
+      // further on would leave the builder half-merged. Put back what it held before instead.
+      Message original = builder.buildPartial();
+      boolean merged = false;
+      try {
+        merge(json, builder);
+        merged = true;
+      } finally {
+        if (!merged) {
+          builder.clear().mergeFrom(original);
+        }
+      }
+    }
+
+    private static JsonReader newJsonReader(Reader json) {
+      JsonReader reader = new JsonReader(json);
+      // JsonParser.parse(JsonReader) always reads leniently, whatever the reader was configured
+      // with. The subtrees it is still used for read leniently too, so do the same here to accept
+      // exactly the input we always have.
+      reader.setLenient(true);
+      return reader;
+    }
+
     private interface WellKnownTypeParser {
       void merge(ParserImpl parser, JsonElement json, Message.Builder builder)
           throws InvalidProtocolBufferException;
@@ -1308,21 +1632,23 @@ public class JsonFormat {
       mergeMessage(json, builder, false);
     }
 
-    // Maps from camel-case field names to FieldDescriptor.
-    private final Map<Descriptor, Map<String, FieldDescriptor>> fieldNameMaps =
-        new HashMap<Descriptor, Map<String, FieldDescriptor>>();
+    // Maps from the JSON and proto names of each message type's fields to the fields, shared by
+    // all parsers.
+    private static final ConcurrentMap<Descriptor, Map<String, FieldDescriptor>> fieldNameMaps =
+        newTypeCache();
 
-    private Map<String, FieldDescriptor> getFieldNameMap(Descriptor descriptor) {
-      if (!fieldNameMaps.containsKey(descriptor)) {
-        Map<String, FieldDescriptor> fieldNameMap = new HashMap<String, FieldDescriptor>();
+    private static Map<String, FieldDescriptor> getFieldNameMap(Descriptor descriptor) {
+      Map<String, FieldDescriptor> fieldNameMap = fieldNameMaps.get(descriptor);
+      if (fieldNameMap == null) {
+        fieldNameMap = new HashMap<String, FieldDescriptor>();
         for (FieldDescriptor field : descriptor.getFields()) {
           fieldNameMap.put(field.getName(), field);
           fieldNameMap.put(field.getJsonName(), field);
         }
-        fieldNameMaps.put(descriptor, fieldNameMap);
-        return fieldNameMap;
+        // Racing threads build equal maps, so it doesn't matter whose is kept.
+        fieldNameMaps.putIfAbsent(descriptor, fieldNameMap);
       }
-      return fieldNameMaps.get(descriptor);
+      return fieldNameMap;
     }
 
     private void mergeMessage(JsonElement json, Message.Builder builder, boolean skipTypeUrl)
@@ -1351,6 +1677,126 @@ public class JsonFormat {
       }
     }
 
+    // The methods below merge straight from the token stream, so that messages, repeated fields
+    // and maps are never materialized as a JsonElement tree. Only leaf values, well-known types
+    // (including Any, which needs to see "@type" before its other members) and anything that
+    // doesn't have the expected shape are read as subtrees and handed to the JsonElement-based
+    // methods above, which keeps the accepted input and the error messages unchanged.
+
+    private void merge(JsonReader json, Message.Builder builder) throws IOException {
+      if (json.peek() == JsonToken.BEGIN_OBJECT
+          && !wellKnownTypeParsers.containsKey(builder.getDescriptorForType().getFullName())) {
+        mergeMessage(json, builder);
+      } else {
+        merge(jsonParser.parse(json), builder);
+      }
+    }
+
+    private void mergeMessage(JsonReader json, Message.Builder builder) throws IOException {
+      Map<String, FieldDescriptor> fieldNameMap = getFieldNameMap(builder.getDescriptorForType());
+      Set<String> names = new HashSet<String>();
+      json.beginObject();
+      while (json.hasNext()) {
+        String name = json.nextName();
+        FieldDescriptor field = fieldNameMap.get(name);
+        if (!names.add(name) && field != null) {
+          // GSON's JsonObject keeps the last of several entries with the same name, so do the
+          // same here. The same field under a different name is still rejected by mergeField.
+          builder.clearField(field);
+        }
+        if (field == null) {
+          if (ignoringUnknownFields) {
+            json.skipValue();
+            continue;
+          }
+          throw new InvalidProtocolBufferException(
+              "Cannot find field: "
+                  + name
+                  + " in message "
+                  + builder.getDescriptorForType().getFullName());
+        }
+        mergeField(field, json, builder);
+      }
+      json.endObject();
+    }
+
+    private void mergeField(FieldDescriptor field, JsonReader json, Message.Builder builder)
+        throws IOException {
+      JsonToken token = json.peek();
+      if (field.isMapField() && token == JsonToken.BEGIN_OBJECT) {
+        checkFieldNotSet(field, builder);
+        mergeMapField(field, json, builder);
+      } else if (field.isRepeated() && !field.isMapField() && token == JsonToken.BEGIN_ARRAY) {
+        checkFieldNotSet(field, builder);
+        mergeRepeatedField(field, json, builder);
+      } else if (!field.isRepeated()
+          && field.getJavaType() == FieldDescriptor.JavaType.MESSAGE
+          && token != JsonToken.NULL) {
+        checkFieldNotSet(field, builder);
+        builder.setField(field, parseMessage(field, json, builder));
+      } else {
+        mergeField(field, jsonParser.parse(json), builder);
+      }
+    }
+
+    private void mergeMapField(FieldDescriptor field, JsonReader json, Message.Builder builder)
+        throws IOException {
+      Descriptor type = field.getMessageType();
+      FieldDescriptor keyField = type.findFieldByName("key");
+      FieldDescriptor valueField = type.findFieldByName("value");
+      if (keyField == null || valueField == null) {
+        throw new InvalidProtocolBufferException("Invalid map field: " + field.getFullName());
+      }
+      json.beginObject();
+      while (json.hasNext()) {
+        Message.Builder entryBuilder = builder.newBuilderForField(field);
+        Object key = parseFieldValue(keyField, new JsonPrimitive(json.nextName()), entryBuilder);
+        Object value = parseFieldValue(valueField, json, entryBuilder);
+        if (value == null) {
+          throw new InvalidProtocolBufferException("Map value cannot be null.");
+        }
+        entryBuilder.setField(keyField, key);
+        entryBuilder.setField(valueField, value);
+        builder.addRepeatedField(field, entryBuilder.build());
+      }
+      json.endObject();
+    }
+
+    private void mergeRepeatedField(
+        FieldDescriptor field, JsonReader json, Message.Builder builder) throws IOException {
+      json.beginArray();
+      while (json.hasNext()) {
+        Object value = parseFieldValue(field, json, builder);
+        if (value == null) {
+          throw new InvalidProtocolBufferException(
+              "Repeated field elements cannot be null in field: " + field.getFullName());
+        }
+        builder.addRepeatedField(field, value);
+      }
+      json.endArray();
+    }
+
+    private Object parseFieldValue(FieldDescriptor field, JsonReader json, Message.Builder builder)
+        throws IOException {
+      if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE
+          && json.peek() != JsonToken.NULL) {
+        return parseMessage(field, json, builder);
+      }
+      return parseFieldValue(field, jsonParser.parse(json), builder);
+    }
+
+    private Message parseMessage(FieldDescriptor field, JsonReader json, Message.Builder builder)
+        throws IOException {
+      if (currentDepth >= recursionLimit) {
+        throw new InvalidProtocolBufferException("Hit recursion limit.");
+      }
+      ++currentDepth;
+      Message.Builder subBuilder = builder.newBuilderForField(field);
+      merge(json, subBuilder);
+      --currentDepth;
+      return subBuilder.build();
+    }
+
     private void mergeAny(JsonElement json, Message.Builder builder)
         throws InvalidProtocolBufferException {
       Descriptor descriptor = builder.getDescriptorForType();
@@ -1484,6 +1930,26 @@ public class JsonFormat {
 
     private void mergeField(FieldDescriptor field, JsonElement json, Message.Builder builder)
         throws InvalidProtocolBufferException {
+      checkFieldNotSet(field, builder);
+      if (field.isRepeated() && json instanceof JsonNull) {
+        // We allow "null" as value for all field types and treat it as if the
+        // field is not present.
+        return;
+      }
+      if (field.isMapField()) {
+        mergeMapField(field, json, builder);
+      } else if (field.isRepeated()) {
+        mergeRepeatedField(field, json, builder);
+      } else {
+        Object value = parseFieldValue(field, json, builder);
+        if (value != null) {
+          builder.setField(field, value);
+        }
+      }
+    }
+
+    private void checkFieldNotSet(FieldDescriptor field, Message.Builder builder)
+        throws InvalidProtocolBufferException {
       if (field.isRepeated()) {
         if (builder.getRepeatedFieldCount(field) > 0) {
           throw new InvalidProtocolBufferException(
@@ -1505,21 +1971,6 @@ public class JsonFormat {
                   + " belonging to the same oneof has already been set ");
         }
       }
-      if (field.isRepeated() && json instanceof JsonNull) {
-        // We allow "null" as value for all field types and treat it as if the
-        // field is not present.
-        return;
-      }
-      if (field.isMapField()) {
-        mergeMapField(field, json, builder);
-      } else if (field.isRepeated()) {
-        mergeRepeatedField(field, json, builder);
-      } else {
-        Object value = parseFieldValue(field, json, builder);
-        if (value != null) {
-          builder.setField(field, value);
-        }
-      }
     }
 
     private void mergeMapField(FieldDescriptor field, JsonElement json, Message.Builder builder)
@@ -30,8 +30,10 @@
 
 package com.google.protobuf.util;
 
+import com.google.gson.GsonBuilder;
 import com.google.protobuf.Any;
 import com.google.protobuf.BoolValue;
+import com.google.protobuf.ByteOutput;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.BytesValue;
 import com.google.protobuf.Descriptors.FieldDescriptor;
@@ -62,6 +64,7 @@ import com.google.protobuf.util.JsonTestProto.TestRecursive;
 import com.google.protobuf.util.JsonTestProto.TestStruct;
 import com.google.protobuf.util.JsonTestProto.TestTimestamp;
 import com.google.protobuf.util.JsonTestProto.TestWrappers;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -69,11 +72,16 @@ import java.io.Reader;
 import java.io.StringReader;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import junit.framework.TestCase;
 
 public class JsonFormatTest extends TestCase {
@@ -509,6 +517,51 @@ public class JsonFormatTest extends TestCase {
     }
   }
 
+  public void testParserKeepsLastOfSameNamedFields() throws Exception {
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    mergeFromJson(
+        "{\n"
+            + "  \"optionalInt32\": 0,\n"
+            + "  \"optionalInt32\": 5,\n"
+            + "  \"optionalNestedMessage\": {\"value\": 1},\n"
+            + "  \"repeatedInt32\": [1, 2],\n"
+            + "  \"optionalNestedMessage\": {},\n"
+            + "  \"repeatedInt32\": [3]\n"
+            + "}",
+        builder);
+    assertEquals(5, builder.getOptionalInt32());
+    assertTrue(builder.hasOptionalNestedMessage());
+    assertEquals(0, builder.getOptionalNestedMessage().getValue());
+    assertEquals(Arrays.asList(3), builder.getRepeatedInt32List());
+
+    builder = TestAllTypes.newBuilder();
+    mergeFromJson("{\"optionalInt32\": 5, \"optionalInt32\": 6}", builder);
+    assertEquals(6, builder.getOptionalInt32());
+
+    TestOneof.Builder oneofBuilder = TestOneof.newBuilder();
+    mergeFromJson("{\"oneofInt32\": 1, \"oneofInt32\": 2}", oneofBuilder);
+    assertEquals(2, oneofBuilder.getOneofInt32());
+  }
+
+  public void testParserLeavesBuilderUnchangedOnError() throws Exception {
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder().setOptionalInt64(7);
+    String[] invalidInputs = {
+      "{\"optionalInt32\": 1, \"repeatedInt32\": [1, 2,",
+      "{\"optionalInt32\": 1, \"optionalNestedMessage\": {\"value\": \"abc",
+      "{\"optionalInt32\": 1, \"repeatedInt32\": [1, \"x\"]}",
+      "{\"optionalInt32\": 1, \"optionalInt64\": 2}",
+    };
+    for (String json : invalidInputs) {
+      try {
+        mergeFromJson(json, builder);
+        fail("Exception is expected: " + json);
+      } catch (InvalidProtocolBufferException e) {
+        // Expected.
+      }
+      assertEquals(TestAllTypes.newBuilder().setOptionalInt64(7).build(), builder.build());
+    }
+  }
+
   public void testMapFields() throws Exception {
     TestMap.Builder builder = TestMap.newBuilder();
     builder.putInt32ToInt32Map(1, 10);
@@ -1174,6 +1227,47 @@ public class JsonFormatTest extends TestCase {
     JsonFormat.parser().ignoringUnknownFields().merge(json, builder);
   }
 
+  public void testParserIgnoringUnknownNestedFields() throws Exception {
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    String json =
+        "{\n"
+            + "  \"unknownObject\": {\"a\": [1, {\"b\": null}], \"c\": {}},\n"
+            + "  \"optionalNestedMessage\": {\"unknownArray\": [[], {}], \"value\": 100},\n"
+            + "  \"repeatedNestedMessage\": [{\"value\": 1, \"unknownField\": \"XXX\"}]\n"
+            + "}";
+    JsonFormat.parser().ignoringUnknownFields().merge(json, builder);
+    assertEquals(100, builder.getOptionalNestedMessage().getValue());
+    assertEquals(1, builder.getRepeatedNestedMessageCount());
+    assertEquals(1, builder.getRepeatedNestedMessage(0).getValue());
+
+    try {
+      JsonFormat.parser().merge(json, TestAllTypes.newBuilder());
+      fail("Exception is expected.");
+    } catch (InvalidProtocolBufferException e) {
+      // Expected.
+    }
+  }
+
+  public void testParserLargeInputFromReader() throws Exception {
+    TestAllTypes.Builder expected = TestAllTypes.newBuilder();
+    TestMap.Builder expectedMap = TestMap.newBuilder();
+    for (int i = 0; i < 10000; i++) {
+      expected.addRepeatedNestedMessage(NestedMessage.newBuilder().setValue(i));
+      expected.addRepeatedString("string" + i);
+      expectedMap.putInt32ToMessageMap(i, NestedMessage.newBuilder().setValue(-i).build());
+    }
+
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    JsonFormat.parser()
+        .merge(new StringReader(JsonFormat.printer().print(expected)), builder);
+    assertEquals(expected.build(), builder.build());
+
+    TestMap.Builder mapBuilder = TestMap.newBuilder();
+    JsonFormat.parser()
+        .merge(new StringReader(JsonFormat.printer().print(expectedMap)), mapBuilder);
+    assertEquals(expectedMap.build(), mapBuilder.build());
+  }
+
   public void testParserIntegerEnumValue() throws Exception {
     TestAllTypes.Builder actualBuilder = TestAllTypes.newBuilder();
     mergeFromJson("{\n" + "  \"optionalNestedEnum\": 2\n" + "}", actualBuilder);
@@ -1194,6 +1288,177 @@ public class JsonFormatTest extends TestCase {
         "{\n" + "  \"optionalString\": \"=\"" + "\n}", JsonFormat.printer().print(message));
   }
 
+  public void testStringEscapingMatchesGson() throws Exception {
+    StringBuilder value = new StringBuilder("<tag attr='1'> \"quoted\" back\\slash / ");
+    for (char c = 0; c < 0x80; c++) {
+      value.append(c);
+    }
+    value.append("\u00e9\u2028\u2029\ud83d\ude00");
+    TestAllTypes message = TestAllTypes.newBuilder().setOptionalString(value.toString()).build();
+    String expected =
+        "{\"optionalString\":"
+            + new GsonBuilder().disableHtmlEscaping().create().toJson(value.toString())
+            + "}";
+    assertEquals(expected, JsonFormat.printer().omittingInsignificantWhitespace().print(message));
+
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    mergeFromJson(expected, builder);
+    assertEquals(message, builder.build());
+  }
+
+  public void testPrintToOutputStream() throws Exception {
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    setAllFields(builder);
+    builder.addRepeatedString("\u00e9\u3042\ud83d\ude00");
+    TestAllTypes message = builder.build();
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    JsonFormat.printer().printTo(message, output);
+    assertEquals(toJsonString(message), output.toString("UTF-8"));
+
+    output = new ByteArrayOutputStream();
+    JsonFormat.printer().omittingInsignificantWhitespace().printTo(message, output);
+    assertEquals(toCompactJsonString(message), output.toString("UTF-8"));
+  }
+
+  public void testPrintToBytes() throws Exception {
+    // Long enough to cross the encoder's buffer boundaries at every offset of a surrogate pair,
+    // with unpaired surrogates at the end of a field too.
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 3000; i++) {
+      text.append("a\u00e9\u4e2d\ud83d\ude00");
+    }
+    TestAllTypes message = TestAllTypes.newBuilder()
+        .setOptionalString(text.toString())
+        .addRepeatedString("\ude00x\ud83d")
+        .addRepeatedString("\ud83d")
+        .build();
+    JsonFormat.Printer printer = JsonFormat.printer();
+    byte[] expected = printer.print(message).getBytes("UTF-8");
+
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    printer.printTo(message, stream);
+    assertEquals(ByteString.copyFrom(expected), ByteString.copyFrom(stream.toByteArray()));
+
+    ByteBuffer buffer = ByteBuffer.allocate(expected.length + 2);
+    buffer.put((byte) 1);
+    printer.printTo(message, buffer);
+    assertEquals(expected.length + 1, buffer.position());
+    buffer.flip().position(1);
+    assertEquals(ByteString.copyFrom(expected), ByteString.copyFrom(buffer));
+    try {
+      printer.printTo(message, ByteBuffer.allocate(expected.length - 1));
+      fail("Should have thrown an exception!");
+    } catch (BufferOverflowException e) {
+      // Expected.
+    }
+
+    final ByteString.Output byteOutput = ByteString.newOutput();
+    printer.printTo(
+        message,
+        new ByteOutput() {
+          @Override
+          public void write(byte value) {
+            byteOutput.write(value);
+          }
+
+          @Override
+          public void write(byte[] value, int offset, int length) {
+            byteOutput.write(value, offset, length);
+          }
+
+          @Override
+          public void writeLazy(byte[] value, int offset, int length) {
+            byteOutput.write(value, offset, length);
+          }
+
+          @Override
+          public void write(ByteBuffer value) {
+            throw new UnsupportedOperationException();
+          }
+
+          @Override
+          public void writeLazy(ByteBuffer value) {
+            throw new UnsupportedOperationException();
+          }
+        });
+    assertEquals(ByteString.copyFrom(expected), byteOutput.toByteString());
+  }
+
+  public void testPrintingInParallel() throws Exception {
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    for (int i = 0; i < 5000; i++) {
+      builder.addRepeatedNestedMessage(NestedMessage.newBuilder().setValue(i));
+      builder.addRepeatedString("s" + i);
+    }
+    TestAllTypes message = builder.build();
+    ListValue.Builder listBuilder = ListValue.newBuilder();
+    for (int i = 0; i < 3000; i++) {
+      listBuilder
+          .addValuesBuilder()
+          .getStructValueBuilder()
+          .putFields(
+              "list",
+              Value.newBuilder()
+                  .setListValue(
+                      ListValue.newBuilder()
+                          .addValues(Value.newBuilder().setNumberValue(i))
+                          .addValues(Value.newBuilder().setStringValue("x" + i)))
+                  .build());
+    }
+    TestStruct struct = TestStruct.newBuilder().setListValue(listBuilder).build();
+    // Its elements are only built when they are read.
+    TestAllTypes.Builder nestedBuilders = TestAllTypes.newBuilder();
+    for (int i = 0; i < 5000; i++) {
+      nestedBuilders.addRepeatedNestedMessageBuilder().setValue(i);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      JsonFormat.Printer printer = JsonFormat.printer();
+      JsonFormat.Printer parallelPrinter = printer.usingExecutor(executor);
+      assertEquals(printer.print(message), parallelPrinter.print(message));
+      String printedBuilder = parallelPrinter.print(nestedBuilders);
+      assertEquals(printer.print(nestedBuilders.build()), printedBuilder);
+      assertEquals(printer.print(struct), parallelPrinter.print(struct));
+      assertEquals(
+          printer.omittingInsignificantWhitespace().print(struct),
+          parallelPrinter.omittingInsignificantWhitespace().print(struct));
+      assertEquals(
+          printer.includingDefaultValueFields().print(message),
+          parallelPrinter.includingDefaultValueFields().print(message));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void testPrinterAndParserReuse() throws Exception {
+    JsonFormat.Printer printer = JsonFormat.printer();
+    JsonFormat.Printer protoNamePrinter = printer.preservingProtoFieldNames();
+    JsonFormat.Parser parser = JsonFormat.parser();
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    setAllFields(builder);
+    TestAllTypes message = builder.build();
+    TestMap mapMessage =
+        TestMap.newBuilder()
+            .putInt32ToMessageMap(1, NestedMessage.newBuilder().setValue(2).build())
+            .build();
+
+    for (int i = 0; i < 3; i++) {
+      String json = printer.print(message);
+      assertEquals(toJsonString(message), json);
+      assertTrue(protoNamePrinter.print(message).contains("\"optional_int32\""));
+      assertFalse(json.contains("\"optional_int32\""));
+      builder = TestAllTypes.newBuilder();
+      parser.merge(json, builder);
+      assertEquals(message, builder.build());
+
+      TestMap.Builder mapBuilder = TestMap.newBuilder();
+      parser.merge(printer.print(mapMessage), mapBuilder);
+      assertEquals(mapMessage, mapBuilder.build());
+    }
+  }
+
   public void testIncludingDefaultValueFields() throws Exception {
     TestAllTypes message = TestAllTypes.getDefaultInstance();
     assertEquals("{\n}", JsonFormat.printer().print(message));
@@ -1432,6 +1697,14 @@ public class JsonFormatTest extends TestCase {
     assertEquals(
         "{\n" + "  \"optional_int32\": 12345\n" + "}",
         JsonFormat.printer().preservingProtoFieldNames().print(message));
+    // Printers with different options share what they work out about a type.
+    assertEquals(
+        "{\"optional_int32\":12345}",
+        JsonFormat.printer()
+            .preservingProtoFieldNames()
+            .omittingInsignificantWhitespace()
+            .print(message));
+    assertEquals("{\n" + "  \"optionalInt32\": 12345\n" + "}", JsonFormat.printer().print(message));
 
     // The json_name field option is ignored when configured to use original proto field names.
     TestCustomJsonName messageWithCustomJsonName =